@@ -12,6 +12,7 @@ import ij.plugin.frame.RoiManager;
 import ij.plugin.tool.PlugInTool;
 import ij.process.FloatPolygon;
 import ij.util.Tools;
+import nlScript.figure.CompositeRenderer;
 
 import java.awt.*;
 import java.awt.event.InputEvent;
@@ -89,6 +90,7 @@ public class CustomImageCanvas extends Canvas implements MouseListener, MouseMot
 	private boolean painted;
 	private boolean hideZoomIndicator;
 	private boolean flattening;
+	private boolean paintImage = true;
 
 	public CustomImageCanvas(ImagePlus imp) {
 		this.imp = imp;
@@ -195,6 +197,11 @@ public class CustomImageCanvas extends Canvas implements MouseListener, MouseMot
 		imageUpdated = true;
 	}
 
+	/** Whether paint() draws the image itself, or only overlay, selection and zoom indicator. */
+	public void setPaintImage(boolean paintImage) {
+		this.paintImage = paintImage;
+	}
+
 	public void setPaintPending(boolean state) {
 		paintPending.set(state);
 	}
@@ -228,10 +235,18 @@ public class CustomImageCanvas extends Canvas implements MouseListener, MouseMot
 				imp.updateImage();
 			}
 			setInterpolation(g, Prefs.interpolateScaledImages);
-			Image img = imp.getImage();
-			if (img!=null)
-				g.drawImage(img, 0, 0, (int)(srcRect.width*magnification+0.5), (int)(srcRect.height*magnification+0.5),
-						srcRect.x, srcRect.y, srcRect.x+srcRect.width, srcRect.y+srcRect.height, null);
+			if (!paintImage) {
+				// image drawn elsewhere
+			} else if (CompositeRenderer.canRender(imp)) {
+				// merge the channels directly from the pixel arrays, only within srcRect
+				Image img = CompositeRenderer.render(imp, srcRect);
+				g.drawImage(img, 0, 0, (int)(srcRect.width*magnification+0.5), (int)(srcRect.height*magnification+0.5), null);
+			} else {
+				Image img = imp.getImage();
+				if (img!=null)
+					g.drawImage(img, 0, 0, (int)(srcRect.width*magnification+0.5), (int)(srcRect.height*magnification+0.5),
+							srcRect.x, srcRect.y, srcRect.x+srcRect.width, srcRect.y+srcRect.height, null);
+			}
 			if (overlay!=null)
 				drawOverlay(overlay, g);
 			if (showAllOverlay!=null)
@@ -0,0 +1,119 @@
+package nlScript.figure;
+
+import com.itextpdf.awt.FontMapper;
+import com.itextpdf.text.FontFactoryImp;
+import com.itextpdf.text.pdf.BaseFont;
+
+import java.awt.Font;
+import java.util.Locale;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * A FontMapper which is shared by all PDF documents of the JVM, so that each AWT font is
+ * resolved to an iText BaseFont only once, instead of once per document.
+ *
+ * The logical Java fonts (SansSerif, Serif, Monospaced, ...) and Helvetica, Times and Courier
+ * are mapped to the corresponding standard Type 1 fonts, which are not embedded. All other
+ * fonts are looked up in the system font directories (scanned once, on first use), and
+ * embedded as subsets with only the glyphs used in the respective document. Fonts which
+ * cannot be found fall back to Helvetica.
+ */
+final class CachingFontMapper implements FontMapper {
+
+	private static final CachingFontMapper INSTANCE = new CachingFontMapper();
+
+	private final ConcurrentHashMap<String, BaseFont> baseFonts = new ConcurrentHashMap<>();
+
+	private final ConcurrentHashMap<BaseFont, Font> awtFonts = new ConcurrentHashMap<>();
+
+	private CachingFontMapper() {
+	}
+
+	static CachingFontMapper getInstance() {
+		return INSTANCE;
+	}
+
+	/**
+	 * Scans the system font directories, lazily, on first access.
+	 */
+	private static final class SystemFonts {
+		static final FontFactoryImp FACTORY = new FontFactoryImp();
+		static {
+			FACTORY.registerDirectories();
+		}
+	}
+
+	@Override
+	public BaseFont awtToPdf(Font font) {
+		String key = font.getFontName() + '/' + font.getFamily() + '/' + font.getStyle();
+		BaseFont bf = baseFonts.computeIfAbsent(key, k -> resolve(font));
+		awtFonts.putIfAbsent(bf, font);
+		return bf;
+	}
+
+	@Override
+	public Font pdfToAwt(BaseFont font, int size) {
+		Font awt = awtFonts.get(font);
+		return awt != null
+				? awt.deriveFont((float) size)
+				: new Font("Helvetica", Font.PLAIN, size);
+	}
+
+	private static BaseFont resolve(Font font) {
+		boolean bold = font.isBold();
+		boolean italic = font.isItalic();
+		String standard = getStandardFont(font.getFamily().toLowerCase(Locale.ROOT), bold, italic);
+		if(standard == null) {
+			BaseFont bf = getSystemFont(font.getFontName(), com.itextpdf.text.Font.NORMAL);
+			if(bf == null)
+				bf = getSystemFont(font.getFamily(), (bold ? com.itextpdf.text.Font.BOLD : 0) | (italic ? com.itextpdf.text.Font.ITALIC : 0));
+			if(bf != null)
+				return bf;
+			standard = getStandardFont("helvetica", bold, italic);
+		}
+		try {
+			return BaseFont.createFont(standard, BaseFont.CP1252, BaseFont.NOT_EMBEDDED);
+		} catch(Exception e) {
+			throw new RuntimeException("Cannot create font " + standard, e);
+		}
+	}
+
+	private static BaseFont getSystemFont(String name, int style) {
+		if(!SystemFonts.FACTORY.isRegistered(name))
+			return null;
+		com.itextpdf.text.Font f = SystemFonts.FACTORY.getFont(name, BaseFont.IDENTITY_H, BaseFont.EMBEDDED, 10, style);
+		BaseFont bf = f.getBaseFont();
+		if(bf != null)
+			bf.setSubset(true);
+		return bf;
+	}
+
+	private static String getStandardFont(String family, boolean bold, boolean italic) {
+		switch(family) {
+			case "helvetica":
+			case "sansserif":
+			case "dialog":
+				return bold
+						? (italic ? BaseFont.HELVETICA_BOLDOBLIQUE : BaseFont.HELVETICA_BOLD)
+						: (italic ? BaseFont.HELVETICA_OBLIQUE : BaseFont.HELVETICA);
+			case "times":
+			case "timesroman":
+			case "serif":
+				return bold
+						? (italic ? BaseFont.TIMES_BOLDITALIC : BaseFont.TIMES_BOLD)
+						: (italic ? BaseFont.TIMES_ITALIC : BaseFont.TIMES_ROMAN);
+			case "courier":
+			case "monospaced":
+			case "dialoginput":
+				return bold
+						? (italic ? BaseFont.COURIER_BOLDOBLIQUE : BaseFont.COURIER_BOLD)
+						: (italic ? BaseFont.COURIER_OBLIQUE : BaseFont.COURIER);
+			case "symbol":
+				return BaseFont.SYMBOL;
+			case "zapfdingbats":
+				return BaseFont.ZAPFDINGBATS;
+			default:
+				return null;
+		}
+	}
+}
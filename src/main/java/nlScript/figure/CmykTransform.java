@@ -0,0 +1,207 @@
+package nlScript.figure;
+
+import com.itextpdf.text.io.RandomAccessSourceFactory;
+import com.itextpdf.text.pdf.PRTokeniser;
+import com.itextpdf.text.pdf.PdfContentParser;
+import com.itextpdf.text.pdf.PdfLiteral;
+import com.itextpdf.text.pdf.PdfNumber;
+import com.itextpdf.text.pdf.PdfObject;
+import com.itextpdf.text.pdf.PdfWriter;
+import com.itextpdf.text.pdf.RandomAccessFileOrArray;
+
+import java.awt.color.ColorSpace;
+import java.awt.color.ICC_ColorSpace;
+import java.awt.color.ICC_Profile;
+import java.awt.image.ColorConvertOp;
+import java.awt.image.DataBuffer;
+import java.awt.image.Raster;
+import java.awt.image.WritableRaster;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.IntStream;
+
+/**
+ * Converts sRGB to the CMYK space of an ICC output profile.
+ *
+ * The ICC transform is evaluated once per profile, on a regular grid of 33 x 33 x 33 RGB
+ * values, and cached for the lifetime of the JVM; colors are then converted by trilinear
+ * interpolation within this 3D lookup table.
+ */
+final class CmykTransform {
+
+	/** Grid points per RGB axis */
+	private static final int N = 33;
+
+	private static final ConcurrentHashMap<String, CmykTransform> CACHE = new ConcurrentHashMap<>();
+
+	private final File profileFile;
+
+	private final byte[] profile;
+
+	/** CMYK values for each grid point, indexed by ((r * N) + g) * N + b */
+	private final byte[] lut;
+
+	/** For each 8-bit value, the lower grid index along an axis */
+	private static final int[] BASE = new int[256];
+
+	/** For each 8-bit value, the interpolation weight of the upper grid point */
+	private static final float[] FRACTION = new float[256];
+
+	static {
+		for(int v = 0; v < 256; v++) {
+			float pos = v * (N - 1) / 255f;
+			int base = Math.min((int) pos, N - 2);
+			BASE[v] = base;
+			FRACTION[v] = pos - base;
+		}
+	}
+
+	private CmykTransform(File profileFile, byte[] profile) {
+		this.profileFile = profileFile;
+		this.profile = profile;
+		ICC_ColorSpace cmyk = new ICC_ColorSpace(ICC_Profile.getInstance(profile));
+		if(cmyk.getType() != ColorSpace.TYPE_CMYK)
+			throw new RuntimeException("Not a CMYK profile: " + profileFile);
+
+		// evaluate the ICC transform once, for all grid points
+		int n = N * N * N;
+		WritableRaster src = Raster.createInterleavedRaster(DataBuffer.TYPE_BYTE, n, 1, 3, null);
+		byte[] rgb = new byte[3 * n];
+		for(int r = 0, i = 0; r < N; r++)
+			for(int g = 0; g < N; g++)
+				for(int b = 0; b < N; b++) {
+					rgb[i++] = (byte) Math.round(r * 255f / (N - 1));
+					rgb[i++] = (byte) Math.round(g * 255f / (N - 1));
+					rgb[i++] = (byte) Math.round(b * 255f / (N - 1));
+				}
+		src.setDataElements(0, 0, n, 1, rgb);
+		WritableRaster dst = Raster.createInterleavedRaster(DataBuffer.TYPE_BYTE, n, 1, 4, null);
+		new ColorConvertOp(ColorSpace.getInstance(ColorSpace.CS_sRGB), cmyk, null).filter(src, dst);
+		lut = new byte[4 * n];
+		dst.getDataElements(0, 0, n, 1, lut);
+	}
+
+	/**
+	 * Returns the (cached) transform for the given ICC CMYK output profile.
+	 */
+	static CmykTransform forProfile(File iccProfile) {
+		String key = iccProfile.getAbsolutePath() + '/' + iccProfile.lastModified();
+		return CACHE.computeIfAbsent(key, k -> {
+			try {
+				return new CmykTransform(iccProfile, Files.readAllBytes(iccProfile.toPath()));
+			} catch(IOException e) {
+				throw new RuntimeException("Cannot read ICC profile " + iccProfile, e);
+			}
+		});
+	}
+
+	File getProfileFile() {
+		return profileFile;
+	}
+
+	/**
+	 * Declares the profile as output intent of the document written by <code>writer</code>.
+	 */
+	void setOutputIntent(PdfWriter writer) {
+		try {
+			writer.setOutputIntents("Custom", "", "http://www.color.org", profileFile.getName(),
+					com.itextpdf.text.pdf.ICC_Profile.getInstance(profile));
+		} catch(IOException e) {
+			throw new RuntimeException("Cannot embed ICC profile " + profileFile, e);
+		}
+	}
+
+	/**
+	 * Converts a single (A)RGB value into 4 CMYK bytes at <code>offset</code>.
+	 */
+	void convert(int rgb, byte[] cmyk, int offset) {
+		int r = (rgb >> 16) & 0xff;
+		int g = (rgb >> 8) & 0xff;
+		int b = rgb & 0xff;
+		int r0 = BASE[r], g0 = BASE[g], b0 = BASE[b];
+		float fr = FRACTION[r], fg = FRACTION[g], fb = FRACTION[b];
+
+		int i000 = 4 * ((r0 * N + g0) * N + b0);
+		int dB = 4;
+		int dG = 4 * N;
+		int dR = 4 * N * N;
+		for(int c = 0; c < 4; c++) {
+			int i = i000 + c;
+			float c00 = lerp(lut[i] & 0xff,           lut[i + dB] & 0xff,           fb);
+			float c01 = lerp(lut[i + dG] & 0xff,      lut[i + dG + dB] & 0xff,      fb);
+			float c10 = lerp(lut[i + dR] & 0xff,      lut[i + dR + dB] & 0xff,      fb);
+			float c11 = lerp(lut[i + dR + dG] & 0xff, lut[i + dR + dG + dB] & 0xff, fb);
+			float v = lerp(lerp(c00, c01, fg), lerp(c10, c11, fg), fr);
+			cmyk[offset + c] = (byte) (v + 0.5f);
+		}
+	}
+
+	private static float lerp(float a, float b, float f) {
+		return a + (b - a) * f;
+	}
+
+	/**
+	 * Converts the <code>w</code> x <code>h</code> RGB pixels starting at <code>offset</code>
+	 * into interleaved CMYK bytes; rows are converted in parallel.
+	 */
+	byte[] convert(int[] pixels, int offset, int stride, int w, int h) {
+		byte[] cmyk = new byte[4 * w * h];
+		IntStream rows = IntStream.range(0, h);
+		if((long) w * h > 1 << 16)
+			rows = rows.parallel();
+		rows.forEach(y -> {
+			int src = offset + y * stride;
+			int dst = 4 * y * w;
+			for(int x = 0; x < w; x++, src++, dst += 4)
+				convert(pixels[src], cmyk, dst);
+		});
+		return cmyk;
+	}
+
+	/**
+	 * Returns the content stream <code>content</code> with all RGB fill and stroke colors
+	 * (<code>rg</code> / <code>RG</code> operators) replaced by their CMYK equivalents
+	 * (<code>k</code> / <code>K</code>). Images are not touched.
+	 */
+	byte[] convertVectorColors(byte[] content) {
+		try {
+			return convertContent(content);
+		} catch(IOException e) {
+			throw new RuntimeException("Cannot convert PDF colors to CMYK", e);
+		}
+	}
+
+	private byte[] convertContent(byte[] content) throws IOException {
+		PdfContentParser parser = new PdfContentParser(new PRTokeniser(new RandomAccessFileOrArray(
+				new RandomAccessSourceFactory().createSource(content))));
+		ByteArrayOutputStream out = new ByteArrayOutputStream(content.length);
+		ArrayList<PdfObject> operands = new ArrayList<>();
+		byte[] cmyk = new byte[4];
+		while(!parser.parse(operands).isEmpty()) {
+			String operator = operands.get(operands.size() - 1).toString();
+			if(("rg".equals(operator) || "RG".equals(operator)) && operands.size() == 4) {
+				int rgb = 0;
+				for(int c = 0; c < 3; c++) {
+					float v = ((PdfNumber) operands.get(c)).floatValue();
+					rgb = (rgb << 8) | Math.max(0, Math.min(255, Math.round(v * 255)));
+				}
+				convert(rgb, cmyk, 0);
+				operands.clear();
+				for(int c = 0; c < 4; c++)
+					operands.add(new PdfNumber((cmyk[c] & 0xff) / 255f));
+				operands.add(new PdfLiteral("rg".equals(operator) ? "k" : "K"));
+			}
+			for(int i = 0; i < operands.size(); i++) {
+				if(i > 0)
+					out.write(' ');
+				operands.get(i).toPdf(null, out);
+			}
+			out.write('\n');
+		}
+		return out.toByteArray();
+	}
+}
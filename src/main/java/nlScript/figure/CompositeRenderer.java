@@ -0,0 +1,238 @@
+package nlScript.figure;
+
+import ij.CompositeImage;
+import ij.IJ;
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.process.LUT;
+
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.awt.image.DirectColorModel;
+import java.awt.image.Raster;
+import java.awt.image.WritableRaster;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.stream.IntStream;
+
+/**
+ * Merges the channels of a CompositeImage (in composite mode) into packed RGB, working
+ * directly on the channel pixel arrays, instead of going through
+ * <code>ImagePlus.getImage()</code>, which creates an AWT image for every call.
+ *
+ * For 8-bit and 16-bit channels, the display range and LUT of each channel are precomputed
+ * into a table which maps each pixel value to its RGB contribution (with 65536 entries for
+ * 16-bit data). The tables of recently rendered channels are cached, keyed by LUT colors and
+ * display range. Channels are merged additively, as ImageJ does, row-parallel, into a
+ * caller-supplied output array, so that repeated rendering does not allocate.
+ */
+public final class CompositeRenderer {
+
+	private static final DirectColorModel RGB = new DirectColorModel(24, 0xff0000, 0x00ff00, 0x0000ff);
+
+	private static final int MAX_TABLES = 32;
+
+	private static final Map<TableKey, int[]> TABLES = new LinkedHashMap<TableKey, int[]>(16, 0.75f, true) {
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<TableKey, int[]> eldest) {
+			return size() > MAX_TABLES;
+		}
+	};
+
+	private CompositeRenderer() {
+	}
+
+	/**
+	 * Whether <code>imp</code> is displayed as a multi-channel composite.
+	 */
+	public static boolean canRender(ImagePlus imp) {
+		return imp instanceof CompositeImage
+				&& ((CompositeImage) imp).getMode() == IJ.COMPOSITE
+				&& imp.getBitDepth() != 24;
+	}
+
+	/**
+	 * Renders the region <code>r</code> of the current plane and timepoint of <code>imp</code>
+	 * into an RGB image.
+	 */
+	public static BufferedImage render(ImagePlus imp, Rectangle r) {
+		int[] rgb = renderRGB(imp, r);
+		DataBufferInt db = new DataBufferInt(rgb, r.width * r.height);
+		WritableRaster raster = Raster.createPackedRaster(db, r.width, r.height, r.width, RGB.getMasks(), null);
+		return new BufferedImage(RGB, raster, false, null);
+	}
+
+	/**
+	 * Renders the region <code>r</code> of the current plane and timepoint of <code>imp</code>
+	 * into packed RGB, row by row. The returned array has <code>r.width * r.height</code>
+	 * elements.
+	 */
+	public static int[] renderRGB(ImagePlus imp, Rectangle r) {
+		return renderRGB(imp, r, null);
+	}
+
+	/**
+	 * Like {@link #renderRGB(ImagePlus, Rectangle)}, but renders into <code>out</code>, if it
+	 * is not <code>null</code> and has at least <code>r.width * r.height</code> elements.
+	 * Returns the array rendered into.
+	 */
+	public static int[] renderRGB(ImagePlus imp, Rectangle r, int[] out) {
+		if(out == null || out.length < r.width * r.height)
+			out = new int[r.width * r.height];
+		return doRender((CompositeImage) imp, r, out);
+	}
+
+	private static int[] doRender(CompositeImage imp, Rectangle r, int[] out) {
+		int nChannels = imp.getNChannels();
+		boolean[] active = imp.getActiveChannels();
+		ImageStack stack = imp.getStack();
+		int z = imp.getZ(), t = imp.getT();
+
+		final int[][] tables = new int[nChannels][];
+
+		Object[] pixels = new Object[nChannels];
+		LUT[] luts = new LUT[nChannels];
+		int nActive = 0;
+		for(int c = 0; c < nChannels; c++) {
+			if(!active[c])
+				continue;
+			pixels[nActive] = stack.getPixels(imp.getStackIndex(c + 1, z, t));
+			luts[nActive] = imp.getChannelLut(c + 1);
+			if(!(pixels[nActive] instanceof float[]))
+				tables[nActive] = getTable(luts[nActive], pixels[nActive] instanceof short[] ? 65536 : 256);
+			nActive++;
+		}
+
+		final int nA = nActive;
+		final int width = imp.getWidth();
+		IntStream.range(0, r.height).parallel().forEach(y -> {
+			int src = (r.y + y) * width + r.x;
+			int dst = y * r.width;
+			if(nA == 0)
+				Arrays.fill(out, dst, dst + r.width, 0);
+			for(int c = 0; c < nA; c++)
+				addRow(c == 0, pixels[c], src, tables[c], luts[c], out, dst, r.width);
+		});
+		return out;
+	}
+
+	/**
+	 * Adds the <code>n</code> pixels of a channel starting at <code>src</code>, mapped through
+	 * <code>table</code> (or, for float pixels, through <code>lut</code> and its display range),
+	 * to the packed RGB colors in <code>out</code>, starting at <code>dst</code>; if
+	 * <code>first</code>, replaces them instead.
+	 */
+	static void addRow(boolean first, Object pixels, int src, int[] table, LUT lut, int[] out, int dst, int n) {
+		if(pixels instanceof byte[]) {
+			byte[] px = (byte[]) pixels;
+			for(int x = 0; x < n; x++)
+				out[dst + x] = add(first, out[dst + x], table[px[src + x] & 0xff]);
+		}
+		else if(pixels instanceof short[]) {
+			short[] px = (short[]) pixels;
+			for(int x = 0; x < n; x++)
+				out[dst + x] = add(first, out[dst + x], table[px[src + x] & 0xffff]);
+		}
+		else {
+			float[] px = (float[]) pixels;
+			int maxIndex = lut.getMapSize() - 1;
+			double min = lut.min;
+			double scale = 255.0 / (lut.max - lut.min);
+			for(int x = 0; x < n; x++) {
+				int index = (int) ((px[src + x] - min) * scale + 0.5);
+				index = Math.max(0, Math.min(maxIndex, index));
+				out[dst + x] = add(first, out[dst + x], lut.getRGB(index) & 0xffffff);
+			}
+		}
+	}
+
+	/**
+	 * Adds two packed RGB colors, saturating each component.
+	 */
+	private static int add(boolean first, int a, int b) {
+		if(first)
+			return b;
+		int red   = Math.min(((a >> 16) & 0xff) + ((b >> 16) & 0xff), 255);
+		int green = Math.min(((a >>  8) & 0xff) + ((b >>  8) & 0xff), 255);
+		int blue  = Math.min(( a        & 0xff) + ( b        & 0xff), 255);
+		return red << 16 | green << 8 | blue;
+	}
+
+	/**
+	 * Returns the (cached) table which maps each of the <code>size</code> possible pixel
+	 * values to the RGB color of the LUT, see {@link #makeTable(LUT, int)}. The returned
+	 * table must not be modified.
+	 */
+	static int[] getTable(LUT lut, int size) {
+		TableKey key = new TableKey(lut, size);
+		synchronized(TABLES) {
+			int[] table = TABLES.get(key);
+			if(table != null)
+				return table;
+		}
+		int[] table = makeTable(lut, size);
+		synchronized(TABLES) {
+			TABLES.put(key, table);
+		}
+		return table;
+	}
+
+	/**
+	 * Creates a table which maps each of the <code>size</code> possible pixel values to the
+	 * RGB color of the LUT, after applying the LUT's display range.
+	 */
+	static int[] makeTable(LUT lut, int size) {
+		int[] table = new int[size];
+		int mapSize = lut.getMapSize();
+		double min = lut.min, max = lut.max;
+		double scale = 256.0 / (max - min + 1);
+		for(int v = 0; v < size; v++) {
+			int index = (int) ((v - min) * scale + 0.5);
+			index = Math.max(0, Math.min(mapSize - 1, index));
+			table[v] = lut.getRGB(index) & 0xffffff;
+		}
+		return table;
+	}
+
+	/** Identifies a table by the colors and display range of its LUT */
+	private static final class TableKey {
+		private final byte[] colors;
+		private final double min, max;
+		private final int size;
+		private final int hash;
+
+		TableKey(LUT lut, int size) {
+			int n = lut.getMapSize();
+			this.colors = new byte[3 * n];
+			byte[] channel = new byte[n];
+			lut.getReds(channel);
+			System.arraycopy(channel, 0, colors, 0, n);
+			lut.getGreens(channel);
+			System.arraycopy(channel, 0, colors, n, n);
+			lut.getBlues(channel);
+			System.arraycopy(channel, 0, colors, 2 * n, n);
+			this.min = lut.min;
+			this.max = lut.max;
+			this.size = size;
+			this.hash = 31 * (31 * (31 * Arrays.hashCode(colors) + Double.hashCode(min)) + Double.hashCode(max)) + size;
+		}
+
+		@Override
+		public int hashCode() {
+			return hash;
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			if(!(o instanceof TableKey))
+				return false;
+			TableKey k = (TableKey) o;
+			return size == k.size
+					&& Double.compare(min, k.min) == 0
+					&& Double.compare(max, k.max) == 0
+					&& Arrays.equals(colors, k.colors);
+		}
+	}
+}
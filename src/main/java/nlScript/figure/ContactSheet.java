@@ -0,0 +1,211 @@
+package nlScript.figure;
+
+import ij.IJ;
+import ij.ImagePlus;
+import ij.io.FileInfo;
+import ij.io.Opener;
+import ij.io.TiffDecoder;
+
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
+import java.awt.Dimension;
+import java.awt.Rectangle;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Creates the thumbnails of a contact sheet, i.e. one panel per image file of a directory or
+ * per plane or timepoint of a stack.
+ *
+ * Thumbnails are created on a fixed number of threads, each of which reads one image (or
+ * plane) at a time and only keeps the downscaled result, so that at most that many full
+ * resolution images are in memory at once.
+ */
+final class ContactSheet {
+
+	private static final Set<String> EXTENSIONS = new HashSet<>(Arrays.asList(
+			"tif", "tiff", "png", "jpg", "jpeg", "gif", "bmp", "pgm", "dcm", "fits", "lsm"));
+
+	/** The file types (see {@link Opener#getFileType(String)}) which are single images */
+	private static final Set<Integer> IMAGE_TYPES = new HashSet<>(Arrays.asList(
+			Opener.TIFF, Opener.TIFF_AND_DICOM, Opener.DICOM, Opener.FITS, Opener.PGM,
+			Opener.JPEG, Opener.GIF, Opener.BMP, Opener.PNG));
+
+	private ContactSheet() {
+	}
+
+	/** A single image of the contact sheet */
+	interface Entry {
+
+		/** The full resolution size, used to determine the grid layout */
+		Dimension getSize();
+
+		/** Reads the image, downscaled to at most <code>width</code> pixels */
+		ImagePlus thumbnail(int width);
+	}
+
+	/**
+	 * One entry per image file in <code>dir</code>; files which are no images (judged by
+	 * their header) or whose size cannot be read are skipped.
+	 */
+	static List<Entry> ofDirectory(File dir) {
+		File[] files = dir.listFiles(f -> f.isFile() && !f.isHidden() && EXTENSIONS.contains(getExtension(f)));
+		if(files == null)
+			throw new RuntimeException("Cannot list images in " + dir);
+		Arrays.sort(files);
+		Opener opener = new Opener();
+		List<Entry> entries = new ArrayList<>();
+		for(File f : files) {
+			if(!IMAGE_TYPES.contains(opener.getFileType(f.getAbsolutePath()))) {
+				IJ.log("Skipping " + f + ", which is not an image");
+				continue;
+			}
+			Dimension size = readSize(f);
+			if(size == null) {
+				IJ.log("Skipping " + f + ", whose size cannot be read");
+				continue;
+			}
+			entries.add(new FileEntry(f, size));
+		}
+		return entries;
+	}
+
+	/**
+	 * Reads the size of the image in <code>file</code> from its header, for TIFF files and
+	 * formats supported by ImageIO, and otherwise by opening it. Returns <code>null</code>
+	 * if it cannot be read.
+	 */
+	private static Dimension readSize(File file) {
+		try {
+			String ext = getExtension(file);
+			if(ext.equals("tif") || ext.equals("tiff") || ext.equals("lsm")) {
+				TiffDecoder decoder = new TiffDecoder(file.getParent() + File.separator, file.getName());
+				FileInfo[] info = decoder.getTiffInfo();
+				if(info != null && info.length > 0)
+					return new Dimension(info[0].width, info[0].height);
+			}
+			try(ImageInputStream in = ImageIO.createImageInputStream(file)) {
+				Iterator<ImageReader> readers = in == null ? null : ImageIO.getImageReaders(in);
+				if(readers != null && readers.hasNext()) {
+					ImageReader reader = readers.next();
+					try {
+						reader.setInput(in);
+						return new Dimension(reader.getWidth(0), reader.getHeight(0));
+					} finally {
+						reader.dispose();
+					}
+				}
+			}
+		} catch(IOException e) {
+			return null;
+		}
+		ImagePlus imp = IJ.openImage(file.getAbsolutePath());
+		return imp == null ? null : new Dimension(imp.getWidth(), imp.getHeight());
+	}
+
+	/**
+	 * One entry per plane (at the current timepoint) or per timepoint (at the current plane).
+	 */
+	static List<Entry> ofStack(ImagePlus imp, FigureInterface.StackAxis axis) {
+		boolean timepoints = axis == FigureInterface.StackAxis.TIMEPOINTS;
+		int n = timepoints ? imp.getNFrames() : imp.getNSlices();
+		List<Entry> entries = new ArrayList<>();
+		for(int i = 1; i <= n; i++) {
+			int z = timepoints ? imp.getZ() : i;
+			int t = timepoints ? i : imp.getT();
+			PlaneSource plane = new PlaneSource(imp, z, t, imp.getTitle() + (timepoints ? " t=" : " z=") + i);
+			entries.add(new Entry() {
+				@Override
+				public Dimension getSize() {
+					return new Dimension(plane.getWidth(), plane.getHeight());
+				}
+
+				@Override
+				public ImagePlus thumbnail(int width) {
+					return plane.read(new Rectangle(0, 0, plane.getWidth(), plane.getHeight()), width);
+				}
+			});
+		}
+		return entries;
+	}
+
+	/**
+	 * Chooses the number of columns such that panels of the given aspect ratio fill the
+	 * available area as evenly as possible.
+	 */
+	static int calculateColumns(int n, double imageAspect, double availableWidth, double availableHeight) {
+		double pageAspect = availableWidth / availableHeight;
+		int nColumns = (int) Math.ceil(Math.sqrt(n * pageAspect / imageAspect));
+		return Math.max(1, Math.min(n, nColumns));
+	}
+
+	/**
+	 * Creates the thumbnails of all entries, in order, on <code>nThreads</code> threads.
+	 */
+	static List<ImagePlus> createThumbnails(List<Entry> entries, int width, int nThreads) {
+		ExecutorService executor = Executors.newFixedThreadPool(nThreads);
+		try {
+			List<Future<ImagePlus>> futures = new ArrayList<>();
+			for(Entry entry : entries)
+				futures.add(executor.submit(() -> entry.thumbnail(width)));
+			List<ImagePlus> thumbnails = new ArrayList<>();
+			for(Future<ImagePlus> f : futures)
+				thumbnails.add(f.get());
+			return thumbnails;
+		} catch(InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new RuntimeException("Interrupted while creating thumbnails", e);
+		} catch(ExecutionException e) {
+			throw new RuntimeException("Cannot create thumbnail", e.getCause());
+		} finally {
+			executor.shutdownNow();
+		}
+	}
+
+	private static String getExtension(File f) {
+		String name = f.getName();
+		int dot = name.lastIndexOf('.');
+		return dot < 0 ? "" : name.substring(dot + 1).toLowerCase(Locale.ROOT);
+	}
+
+	private static final class FileEntry implements Entry {
+		private final File file;
+		private final Dimension size;
+
+		FileEntry(File file, Dimension size) {
+			this.file = file;
+			this.size = size;
+		}
+
+		private ImagePlus open() {
+			ImagePlus imp = IJ.openImage(file.getAbsolutePath());
+			if(imp == null)
+				throw new RuntimeException("Cannot open image " + file);
+			return imp;
+		}
+
+		@Override
+		public Dimension getSize() {
+			return new Dimension(size);
+		}
+
+		@Override
+		public ImagePlus thumbnail(int width) {
+			ImagePlus imp = open();
+			PlaneSource plane = new PlaneSource(imp, imp.getZ(), imp.getT(), file.getName());
+			return plane.read(new Rectangle(0, 0, imp.getWidth(), imp.getHeight()), width);
+		}
+	}
+}
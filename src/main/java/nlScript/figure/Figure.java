@@ -11,11 +11,36 @@ import static nlScript.figure.VectorDocument.Alignment;
 
 import java.awt.Color;
 import java.awt.Desktop;
+import java.awt.Dimension;
 import java.awt.Font;
 import java.awt.Rectangle;
 import java.awt.geom.Rectangle2D;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
 import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.IntStream;
 
 
 /**
@@ -30,119 +55,207 @@ import java.io.IOException;
  */
 public class Figure implements FigureInterface {
 
-	private double borderTop    = 20;
-	private double borderBottom = 20;
-	private double borderLeft   = 20;
-	private double borderRight  = 20;
+	double borderTop    = 20;
+	double borderBottom = 20;
+	double borderLeft   = 20;
+	double borderRight  = 20;
 	private final double gap    = 2;
 
-	private PageFit pageFit = PageFit.FIT_TO_HEIGHT;
+	PageFit pageFit = PageFit.FIT_TO_HEIGHT;
 
 
 	// Title setup
-	private String title = null;
-	private Font figureTitleFont = new Font("Helvetica", Font.PLAIN, 24);
-	private Color figureTitleColor = Color.black;
+	String title = null;
+	Font figureTitleFont = new Font("Helvetica", Font.PLAIN, 24);
+	Color figureTitleColor = Color.black;
 
 
 	// Headings setup
-	private Header[] columnHeaders = new Header[0];
-	private Header[] rowHeaders = new Header[0];
-	private Font headerFont = new Font("Helvetica", Font.PLAIN, 10);
-	private double headerFrameThickness = 0.1;
-	private Color headerTextColor = Color.black;
-	private Color headerFrameColor = Color.BLACK;
-	private Color headerBackgroundColor = null;
-	private boolean headerFrameVisible = true;
+	final Map<Integer, Header> columnHeaders = new HashMap<>();
+	final Map<Integer, Header> rowHeaders = new HashMap<>();
+	Font headerFont = new Font("Helvetica", Font.PLAIN, 10);
+	double headerFrameThickness = 0.1;
+	Color headerTextColor = Color.black;
+	Color headerFrameColor = Color.BLACK;
+	Color headerBackgroundColor = null;
+	boolean headerFrameVisible = true;
 
 
 	// Image setup
-	private Font imageTitleFont = new Font("Helvetica", Font.PLAIN, 10);
-	private Color imageTitleColor = Color.WHITE;
-	private Alignment imageTitlePosition = Alignment.BOTTOM_CENTER;
-	private double imageTitleGap = 2;
-	private boolean imageTitleVisible = true;
-	private boolean imageFrameVisible = true;
-	private double imageFrameThickness = 0.1;
-	private Color imageFrameColor = Color.BLACK;
-	private ScalebarPosition scalebarPosition = ScalebarPosition.LOWER_LEFT;
-	private double scalebarLength = 0;
-	private Color scalebarColor = Color.WHITE;
-	private boolean scalebarVisible = false;
+	Font imageTitleFont = new Font("Helvetica", Font.PLAIN, 10);
+	Color imageTitleColor = Color.WHITE;
+	Alignment imageTitlePosition = Alignment.BOTTOM_CENTER;
+	double imageTitleGap = 2;
+	boolean imageTitleVisible = true;
+	boolean imageFrameVisible = true;
+	double imageFrameThickness = 0.1;
+	Color imageFrameColor = Color.BLACK;
+	ScalebarPosition scalebarPosition = ScalebarPosition.LOWER_LEFT;
+	double scalebarLength = 0;
+	Color scalebarColor = Color.WHITE;
+	boolean scalebarVisible = false;
+	double targetDPI = 300;
+	private SnapshotStorage snapshotStorage = SnapshotStorage.HEAP;
+	private long snapshotMemoryBudget = 0;
+	private boolean asyncCapture = false;
+	private boolean displayReadySnapshots = false;
+
+	/** Snapshots held in memory, from least to most recently needed */
+	private final LinkedHashMap<OffHeapImage, Boolean> residentSnapshots = new LinkedHashMap<>(16, 0.75f, true);
+	boolean parallelPages = false;
+	private boolean incrementalUpdate = false;
+
+	/** The first and last timepoint of a time-lapse figure, or 0 for a regular figure */
+	private int timeLapseFrom = 0;
+	private int timeLapseTo = 0;
+	File cmykProfile = null;
 
 
 	// Panel setup
-	private PanelLabelScheme panelLabelScheme = PanelLabelScheme.LOWERCASE_LETTERS;
-	private Font panelLabelFont = new Font("Helvetica", Font.PLAIN, 10);
-	private Color panelLabelColor = Color.BLACK;
-	private Alignment panelLabelPosition = Alignment.TOP_LEFT;
-	private double panelLabelGap = 2;
-	private boolean panelFrameVisible = false;
-	private double panelFrameThickness = 0.1;
-	private Color panelFrameColor = Color.BLACK;
+	PanelLabelScheme panelLabelScheme = PanelLabelScheme.LOWERCASE_LETTERS;
+	Font panelLabelFont = new Font("Helvetica", Font.PLAIN, 10);
+	Color panelLabelColor = Color.BLACK;
+	Alignment panelLabelPosition = Alignment.TOP_LEFT;
+	double panelLabelGap = 2;
+	boolean panelFrameVisible = false;
+	double panelFrameThickness = 0.1;
+	Color panelFrameColor = Color.BLACK;
 
 
 
 
-	private boolean allRowsSameHeight = false;
+	boolean allRowsSameHeight = false;
 
-	private boolean allColumnsSameWidth = false;
+	boolean allColumnsSameWidth = false;
 
-	private Img[][] images = new Img[0][0];
+	/** Whether space for row headers is reserved even on pages without any, see {@link RowStream} */
+	private boolean reserveRowHeaders = false;
 
-	private Panel[][] panels = new Panel[0][0];
+	final SparseGrid<Img> images = new SparseGrid<>();
+
+	final SparseGrid<Panel> panels = new SparseGrid<>();
 
 
 
 	/** The number of rows of panels */
-	private int nRows = 0;
+	int nRows = 0;
 
 	/** The number of columns of panels */
-	private int nColumns = 0;
+	int nColumns = 0;
 
-	/** The width of each column in real world (image) dimensions */
-	private double[] columnWidthsRW;
+	/** Fixed column widths, by column index; all other columns are sized automatically */
+	final Map<Integer, GridLayout.Size> columnSizes = new HashMap<>();
 
-	/** The height of each row in real world (image) dimensions */
-	private double[] rowHeightsRW;
+	/** Fixed row heights, by row index; all other rows are sized automatically */
+	final Map<Integer, GridLayout.Size> rowSizes = new HashMap<>();
 
-	/** The sum of all column widths, in real world (image) dimensions */
-	private double totalWidthRW;
+	/** The width of each column, in mm */
+	private double[] columnWidths;
 
-	/** The sum of all row heights, in real world (image) dimensions */
-	private double totalHeightRW;
+	/** The height of each row, in mm */
+	private double[] rowHeights;
 
 	/** From real-world (image) dimensions to pdf pixel dimensions */
 	private double scale;
 
 	private VectorDocument backend;
 
+	/** Document information entries for incremental updates */
+	private static final String LAYOUT_INFO = "nlFigureLayout";
+	private static final String PANELS_INFO = "nlFigurePanels";
+
+	/** The object numbers of the image XObjects of each panel ("row,column"), while rendering */
+	private Map<String, Integer> imageObjects = null;
+
+	/** The column headers, drawn once for all pages of a multi-page or streamed document, while rendering */
+	private PDFVectorDocument.Form columnHeaderForm = null;
+
+	/** The panel images in the order they are drawn into a time-lapse form, while rendering */
+	private List<Img> formImages = null;
+
+	/**
+	 * The progress and cancellation state of a single call to
+	 * {@link #createFigureAsync(File, ProgressListener)}, passed down to the drawing code.
+	 */
+	/** Runs {@link #createFigureAsync(File, ProgressListener)} */
+	private static final ExecutorService RENDER_EXECUTOR = Executors.newCachedThreadPool(r -> {
+		Thread t = new Thread(r, "nlFigure-render");
+		t.setDaemon(true);
+		return t;
+	});
+
+	private final Object renderLock = new Object();
+
+	/**
+	 * Set while the figure is rendered. Renders share the layout state (column widths, pages,
+	 * backend, ...), so a render which overlaps another one is rejected.
+	 */
+	private boolean rendering = false;
+
+	/** Whether {@link #release()} was called during a render, which releases the images when done */
+	private boolean releasePending = false;
+
+	private void beginRender() {
+		synchronized(renderLock) {
+			if(rendering)
+				throw new RuntimeException("Cannot render the figure while it is being rendered");
+			rendering = true;
+		}
+	}
+
+	private void endRender() {
+		boolean release;
+		synchronized(renderLock) {
+			rendering = false;
+			release = releasePending;
+			releasePending = false;
+		}
+		if(release)
+			releaseImages();
+	}
 
-	private double figureWidth = Size.A4.width;
+	private static final class RenderTask {
 
-	private double figureHeight = Size.A4.height;
+		/** For synchronous rendering, which can neither be cancelled nor report progress */
+		static final RenderTask NONE = new RenderTask(null, null);
 
+		private final CompletableFuture<File> future;
+		private final ProgressListener listener;
+		private final AtomicInteger panelsDone = new AtomicInteger();
+		private final AtomicInteger pagesDone = new AtomicInteger();
 
-	private void redefineGrid(int nRows, int nColumns) {
-		this.nRows = nRows;
-		this.nColumns = nColumns;
+		RenderTask(CompletableFuture<File> future, ProgressListener listener) {
+			this.future = future;
+			this.listener = listener;
+		}
 
-		Img[][] tmpImages = new Img[nRows][nColumns];
-		Panel[][] tmpPanels = new Panel[nRows][nColumns];
-		for(int r = 0; r < images.length; r++) {
-			System.arraycopy(images[r], 0, tmpImages[r], 0, images[r].length);
-			System.arraycopy(panels[r], 0, tmpPanels[r], 0, panels[r].length);
+		void checkCancelled() {
+			if(future != null && future.isCancelled())
+				throw new CancellationException("Figure creation cancelled");
 		}
-		this.images = tmpImages;
-		this.panels = tmpPanels;
 
-		Header[] rowHeadersTmp = new Header[nRows];
-		System.arraycopy(rowHeaders, 0, rowHeadersTmp, 0, rowHeaders.length);
-		this.rowHeaders = rowHeadersTmp;
+		void panelDone(int nPanels) {
+			if(listener != null)
+				listener.panelDone(panelsDone.incrementAndGet(), nPanels);
+			checkCancelled();
+		}
 
-		Header[] columnHeadersTmp = new Header[nColumns];
-		System.arraycopy(columnHeaders, 0, columnHeadersTmp, 0, columnHeaders.length);
-		this.columnHeaders = columnHeadersTmp;
+		void pageDone(int nPages) {
+			if(listener != null)
+				listener.pageDone(pagesDone.incrementAndGet(), nPages);
+			checkCancelled();
+		}
+	}
+
+
+	double figureWidth = Size.A4.width;
+
+	double figureHeight = Size.A4.height;
+
+
+	private void growGrid(int row, int column) {
+		nRows = Math.max(nRows, row + 1);
+		nColumns = Math.max(nColumns, column + 1);
 	}
 
 	/*****************
@@ -217,28 +330,28 @@ public class Figure implements FigureInterface {
 	// --------------
 	@Override
 	public void setColumnHeader(int column, String header) {
-		if(column >= nColumns)
-			redefineGrid(nRows, column + 1);
-		columnHeaders[column] = new Header(
-				header, headerFont, headerFrameThickness, headerTextColor, headerFrameColor, headerBackgroundColor, headerFrameVisible);
+		growGrid(0, column);
+		columnHeaders.put(column, new Header(
+				header, headerFont, headerFrameThickness, headerTextColor, headerFrameColor, headerBackgroundColor, headerFrameVisible));
 	}
 
 	@Override
 	public String getColumnHeader(int column) {
-		return columnHeaders[column].header;
+		Header h = columnHeaders.get(column);
+		return h == null ? null : h.header;
 	}
 
 	@Override
 	public void setRowHeader(int row, String header) {
-		if (row >= nRows)
-			redefineGrid(row + 1, nColumns);
-		rowHeaders[row] = new Header(
-				header, headerFont, headerFrameThickness, headerTextColor, headerFrameColor, headerBackgroundColor, headerFrameVisible);
+		growGrid(row, 0);
+		rowHeaders.put(row, new Header(
+				header, headerFont, headerFrameThickness, headerTextColor, headerFrameColor, headerBackgroundColor, headerFrameVisible));
 	}
 
 	@Override
 	public String getRowHeader(int row) {
-		return rowHeaders[row].header;
+		Header h = rowHeaders.get(row);
+		return h == null ? null : h.header;
 	}
 
 	@Override
@@ -348,6 +461,126 @@ public class Figure implements FigureInterface {
 		this.scalebarVisible = visible;
 	}
 
+	@Override
+	public void setTargetDPI(double dpi) {
+		this.targetDPI = dpi;
+	}
+
+	@Override
+	public double getTargetDPI() {
+		return targetDPI;
+	}
+
+	@Override
+	public void setSnapshotStorage(SnapshotStorage storage) {
+		this.snapshotStorage = storage;
+	}
+
+	@Override
+	public SnapshotStorage getSnapshotStorage() {
+		return snapshotStorage;
+	}
+
+	@Override
+	public void setDisplayReadySnapshots(boolean b) {
+		this.displayReadySnapshots = b;
+	}
+
+	@Override
+	public boolean isDisplayReadySnapshots() {
+		return displayReadySnapshots;
+	}
+
+	@Override
+	public void setAsyncCapture(boolean b) {
+		this.asyncCapture = b;
+	}
+
+	@Override
+	public boolean isAsyncCapture() {
+		return asyncCapture;
+	}
+
+	/** Waits for all pending snapshot captures, and fails if one of them failed */
+	private void awaitCaptures() {
+		for(SparseGrid.Cell<Img> cell : images)
+			if(cell.value.offHeap != null)
+				cell.value.offHeap.awaitCapture();
+	}
+
+	@Override
+	public void setSnapshotMemoryBudget(long bytes) {
+		this.snapshotMemoryBudget = bytes;
+		enforceSnapshotMemoryBudget();
+	}
+
+	@Override
+	public long getSnapshotMemoryBudget() {
+		return snapshotMemoryBudget;
+	}
+
+	/**
+	 * Spills the least recently needed snapshots into memory-mapped files, until the remaining
+	 * ones fit into the memory budget. Does not wait for pending captures, whose sizes are
+	 * known in advance.
+	 */
+	private void enforceSnapshotMemoryBudget() {
+		if(snapshotMemoryBudget <= 0)
+			return;
+		synchronized(residentSnapshots) {
+			long total = 0;
+			for(OffHeapImage snapshot : residentSnapshots.keySet())
+				total += snapshot.getResidentSize();
+			Iterator<OffHeapImage> it = residentSnapshots.keySet().iterator();
+			while(total > snapshotMemoryBudget && it.hasNext()) {
+				OffHeapImage snapshot = it.next();
+				total -= snapshot.getResidentSize();
+				snapshot.spill();
+				it.remove();
+			}
+		}
+	}
+
+	/** Marks the snapshot of <code>image</code> as just needed, if it is held in memory */
+	private void touchSnapshot(Img image) {
+		if(image.offHeap == null)
+			return;
+		synchronized(residentSnapshots) {
+			residentSnapshots.get(image.offHeap);
+		}
+	}
+
+	/**
+	 * Releases the snapshots of all panels, once a render in progress (e.g. a cancelled
+	 * {@link #createFigureAsync(File, ProgressListener)}) has stopped.
+	 */
+	@Override
+	public void release() {
+		synchronized(renderLock) {
+			if(rendering) {
+				releasePending = true;
+				return;
+			}
+		}
+		releaseImages();
+	}
+
+	private void releaseImages() {
+		for(SparseGrid.Cell<Img> cell : images)
+			releaseImage(cell.value);
+		images.clear();
+		panels.clear();
+	}
+
+	private void releaseImage(Img image) {
+		if(image.offHeap != null) {
+			synchronized(residentSnapshots) {
+				residentSnapshots.remove(image.offHeap);
+			}
+		}
+		image.release();
+	}
+
 	// Panel setup
 	// -----------
 	@Override
@@ -437,32 +670,29 @@ public class Figure implements FigureInterface {
 
 	@Override
 	public void setColumnWidthMM(int column, double mm) {
-		// TODO (don't forget redefineGrid())
+		columnSizes.put(column, GridLayout.Size.mm(mm));
 	}
 
 	@Override
 	public void setColumnWidthPercent(int column, double percent) {
-		// TODO (don't forget redefineGrid())
+		columnSizes.put(column, GridLayout.Size.percent(percent));
 	}
 
 	@Override
 	public void setRowHeightMM(int row, double mm) {
-		// TODO (don't forget redefineGrid())
+		rowSizes.put(row, GridLayout.Size.mm(mm));
 	}
 
 	@Override
 	public void setRowHeightPercent(int row, double percent) {
-		// TODO (don't forget redefineGrid())
+		rowSizes.put(row, GridLayout.Size.percent(percent));
 	}
 
 	@Override
 	public void addImage(ImagePlus image, int row, int column, ImageResize imageResize) {
-		if(row >= nRows || column >= nColumns) {
-			int nr = Math.max(row + 1, nRows);
-			int nc = Math.max(column + 1, nColumns);
-			redefineGrid(nr, nc);
-		}
-		images[row][column] = new Img(image, imageResize,
+		growGrid(row, column);
+		Img img = new Img(image, imageResize, snapshotStorage,
+				snapshotMemoryBudget > 0 || asyncCapture || displayReadySnapshots, asyncCapture, displayReadySnapshots, timeLapseFrom > 0,
 				imageTitleFont,
 				imageTitleColor,
 				imageTitlePosition,
@@ -476,7 +706,16 @@ public class Figure implements FigureInterface {
 				scalebarColor,
 				scalebarVisible
 		);
-		panels[row][column] = new Panel(
+		Img previous = images.set(row, column, img);
+		if(previous != null)
+			releaseImage(previous);
+		if(img.offHeap != null) {
+			synchronized(residentSnapshots) {
+				residentSnapshots.put(img.offHeap, Boolean.TRUE);
+			}
+			enforceSnapshotMemoryBudget();
+		}
+		panels.set(row, column, new Panel(
 				new Rectangle2D.Double(),
 				panelLabelFont,
 				panelLabelColor,
@@ -484,64 +723,219 @@ public class Figure implements FigureInterface {
 				panelLabelGap,
 				panelFrameVisible,
 				panelFrameThickness,
-				panelFrameColor);
+				panelFrameColor));
 	}
 
 	@Override
-	public void createFigure(File file) {
-		createPDF(file);
+	public void addImage(PanelSource source, Rectangle fov, int row, int column, ImageResize imageResize) {
+		growGrid(row, column);
+		if(fov == null)
+			fov = new Rectangle(0, 0, source.getWidth(), source.getHeight());
+		Img previous = images.set(row, column, new Img(source, fov, imageResize,
+				imageTitleFont,
+				imageTitleColor,
+				imageTitlePosition,
+				imageTitleGap,
+				imageTitleVisible,
+				imageFrameVisible,
+				imageFrameThickness,
+				imageFrameColor,
+				scalebarPosition,
+				scalebarLength,
+				scalebarColor,
+				scalebarVisible
+		));
+		if(previous != null)
+			releaseImage(previous);
+		panels.set(row, column, new Panel(
+				new Rectangle2D.Double(),
+				panelLabelFont,
+				panelLabelColor,
+				panelLabelPosition,
+				panelLabelGap,
+				panelFrameVisible,
+				panelFrameThickness,
+				panelFrameColor));
 	}
 
-	/************************
-	 * End of FigureInterface
-	 ************************/
-
-	public void addImage(ImagePlus image, int row, int column) {
-		addImage(image, row, column, ImageResize.RESIZE_TO_MATCH_MAGNIFICATION);
+	/**
+	 * Each panel reads only its own plane, cropped to the current field of view, when the
+	 * figure is drawn; display settings are those at the time of this call.
+	 */
+	@Override
+	public void addImages(ImagePlus image, StackAxis axis, int from, int to, int row, int firstColumn, ImageResize imageResize) {
+		boolean timepoints = axis == StackAxis.TIMEPOINTS;
+		Rectangle fov = getFieldOfView(image);
+		for(int i = from; i <= to; i++) {
+			int z = timepoints ? image.getZ() : i;
+			int t = timepoints ? i : image.getT();
+			PlaneSource plane = new PlaneSource(image, z, t, image.getTitle() + (timepoints ? " t=" : " z=") + i);
+			addImage(plane, fov, row, firstColumn + i - from, imageResize);
+		}
 	}
 
-	private void calculateColumnWidthsAndHeights() {
-		columnWidthsRW = new double[nColumns];
-		rowHeightsRW = new double[nRows];
-		totalWidthRW = 0;
-		totalHeightRW = 0;
+	@Override
+	public void addContactSheet(File directory) {
+		addContactSheet(ContactSheet.ofDirectory(directory));
+	}
 
-		for(int i = 0; i < nColumns; i++) {
-			columnWidthsRW[i] = getColumnWidth(i);
-			totalWidthRW += columnWidthsRW[i];
-		}
-		for(int i = 0; i < nRows; i++) {
-			rowHeightsRW[i] = getRowHeight(i);
-			totalHeightRW += rowHeightsRW[i];
+	@Override
+	public void addContactSheet(ImagePlus image, StackAxis axis) {
+		addContactSheet(ContactSheet.ofStack(image, axis));
+	}
+
+	/**
+	 * Lays out the entries in a grid which fills the page width, and adds their thumbnails,
+	 * created in parallel at the target DPI, as panels below the existing ones. The columns of
+	 * the sheet (unless sized explicitly) and its rows are given equal, fixed sizes; other rows
+	 * and columns are not affected.
+	 */
+	private void addContactSheet(List<ContactSheet.Entry> entries) {
+		if(entries.isEmpty())
+			return;
+		Dimension size = entries.get(0).getSize();
+		double availableWidth  = figureWidth  - borderLeft - borderRight;
+		double availableHeight = figureHeight - borderTop  - borderBottom;
+		int nCols = ContactSheet.calculateColumns(entries.size(), (double) size.width / size.height, availableWidth, availableHeight);
+		double columnWidth = (availableWidth - (nCols - 1) * gap) / nCols;
+		int thumbnailWidth = (int) Math.ceil(columnWidth / 25.4 * targetDPI);
+
+		List<ImagePlus> thumbnails = ContactSheet.createThumbnails(entries, thumbnailWidth, Runtime.getRuntime().availableProcessors());
+
+		int firstRow = images.size() == 0 ? 0 : nRows;
+		for(int i = 0; i < thumbnails.size(); i++) {
+			ImagePlus thumbnail = thumbnails.get(i);
+			addImage(new PlaneSource(thumbnail, 1, 1), null, firstRow + i / nCols, i % nCols, ImageResize.RESIZE_TO_MATCH_SIZE);
 		}
+		for(int c = 0; c < nCols; c++)
+			columnSizes.putIfAbsent(c, GridLayout.Size.percent(100.0 / nCols));
+		double rowHeight = columnWidth * size.height / size.width;
+		int nSheetRows = (thumbnails.size() + nCols - 1) / nCols;
+		for(int r = firstRow; r < firstRow + nSheetRows; r++)
+			rowSizes.put(r, GridLayout.Size.mm(rowHeight));
+	}
+
+	@Override
+	public void setParallelPages(boolean b) {
+		this.parallelPages = b;
+	}
+
+	@Override
+	public boolean isParallelPages() {
+		return parallelPages;
+	}
+
+	@Override
+	public void setIncrementalUpdate(boolean b) {
+		this.incrementalUpdate = b;
+	}
+
+	@Override
+	public boolean isIncrementalUpdate() {
+		return incrementalUpdate;
 	}
 
-	private double getColumnWidth(int col) {
-		double widest = 0;
-		int cMin = allColumnsSameWidth ? 0 : col;
-		int cMax = allColumnsSameWidth ? nColumns - 1 : col;
-		for(int column = cMin; column <= cMax; column++) {
-			for(int row = 0; row < nRows; row++) {
-				Img img = images[row][col];
-				if(img == null)
-					continue;
-				widest = Math.max(widest, images[row][column].getRealWidth());
+	@Override
+	public void setTimeLapse(int firstTimepoint, int lastTimepoint) {
+		if(firstTimepoint > 0) {
+			for(SparseGrid.Cell<Img> cell : images) {
+				if(cell.value.hasTimepoints && cell.value.frames == null)
+					throw new RuntimeException("Cannot render a time-lapse of image " + cell.value.title + ", which was added before the time-lapse was set");
 			}
 		}
-		return widest;
+		this.timeLapseFrom = firstTimepoint;
+		this.timeLapseTo = lastTimepoint;
+	}
+
+	@Override
+	public int[] getTimeLapse() {
+		return timeLapseFrom > 0 ? new int[] { timeLapseFrom, timeLapseTo } : null;
+	}
+
+	@Override
+	public void setCmykProfile(File iccProfile) {
+		this.cmykProfile = iccProfile;
+	}
+
+	@Override
+	public File getCmykProfile() {
+		return cmykProfile;
 	}
 
-	private double getRowHeight(int row) {
-		double highest = 0;
-		int rMin = allRowsSameHeight ? 0 : row;
-		int rMax = allRowsSameHeight ? nRows - 1 : row;
-		for(int iRow = rMin; iRow <= rMax; iRow++) {
-			for(int col = 0; col < nColumns; col++) {
-				if(images[iRow][col] != null)
-					highest = Math.max(highest, images[iRow][col].getRealHeight());
+	@Override
+	public void createFigure(File file) {
+		createPDF(file);
+	}
+
+	@Override
+	public void createFigure(OutputStream out) {
+		createPDF(out);
+	}
+
+	@Override
+	public CompletableFuture<File> createFigureAsync(File file, ProgressListener listener) {
+		beginRender();
+		CompletableFuture<File> future = new CompletableFuture<>();
+		RenderTask task = new RenderTask(future, listener);
+		try {
+			RENDER_EXECUTOR.execute(() -> {
+				Throwable error = null;
+				boolean cancelled = false;
+				try {
+					task.checkCancelled();
+					renderAndReplace(file, task);
+				} catch(CancellationException e) {
+					cancelled = true;
+				} catch(Throwable t) {
+					error = t;
+				} finally {
+					endRender();
+				}
+				// only now, so that the figure can be rendered again when the future completes
+				if(error != null)
+					future.completeExceptionally(error);
+				else if(!cancelled)
+					future.complete(file);
+			});
+		} catch(RejectedExecutionException e) {
+			endRender();
+			throw e;
+		}
+		return future;
+	}
+
+	/**
+	 * Renders into a temporary file next to <code>file</code>, which replaces
+	 * <code>file</code> once it is complete; <code>file</code> is left untouched if rendering
+	 * fails or is cancelled.
+	 */
+	private void renderAndReplace(File file, RenderTask task) throws IOException {
+		File dir = file.getAbsoluteFile().getParentFile();
+		File tmp = File.createTempFile(file.getName(), ".tmp", dir);
+		try {
+			// incremental updates are appended to the previous document
+			if(incrementalUpdate && file.isFile())
+				Files.copy(file.toPath(), tmp.toPath(), StandardCopyOption.REPLACE_EXISTING);
+			else
+				Files.delete(tmp.toPath());
+			createPDF(tmp, task);
+			task.checkCancelled();
+			try {
+				Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+			} catch(AtomicMoveNotSupportedException e) {
+				Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
 			}
+		} finally {
+			Files.deleteIfExists(tmp.toPath());
 		}
-		return highest;
+	}
+
+	/************************
+	 * End of FigureInterface
+	 ************************/
+
+	public void addImage(ImagePlus image, int row, int column) {
+		addImage(image, row, column, ImageResize.RESIZE_TO_MATCH_MAGNIFICATION);
 	}
 
 	private double calculateHeaderHeight() {
@@ -553,19 +947,11 @@ public class Figure implements FigureInterface {
 	}
 
 	private boolean hasRowHeaders() {
-		for (Header rowHeader : rowHeaders) {
-			if (rowHeader != null)
-				return true;
-		}
-		return false;
+		return !rowHeaders.isEmpty();
 	}
 
 	private boolean hasColumnHeaders() {
-		for (Header columnHeader : columnHeaders) {
-			if (columnHeader != null)
-				return true;
-		}
-		return false;
+		return !columnHeaders.isEmpty();
 	}
 
 	private double calculateFirstPanelTop(int page) {
@@ -579,24 +965,36 @@ public class Figure implements FigureInterface {
 
 	private double calculateFirstPanelLeft() {
 		double left = borderLeft;
-		if(hasRowHeaders())
+		if(hasRowHeaders() || reserveRowHeaders)
 			left += (calculateHeaderHeight() + gap);
 		return left;
 	}
 
-	/** From real-world (image) dimensions to pdf pixel dimensions */
-	private void calculateScale(double w, double h) {
-		// calculate available size (without gaps)
+	/**
+	 * Calculates column widths, row heights and the scale from real-world (image) dimensions
+	 * to pdf pixel dimensions, in a single pass over all panels.
+	 */
+	private void calculateGrid(double w, double h) {
+		double[] columnWidthsRW = new double[nColumns];
+		double[] rowHeightsRW = new double[nRows];
+		for(SparseGrid.Cell<Img> cell : images) {
+			columnWidthsRW[cell.column] = Math.max(columnWidthsRW[cell.column], cell.value.getRealWidth());
+			rowHeightsRW[cell.row] = Math.max(rowHeightsRW[cell.row], cell.value.getRealHeight());
+		}
 
+		// calculate available size (without gaps)
 		double top = calculateFirstPanelTop(0);
 		double left = calculateFirstPanelLeft();
 
 		double availableWidth  = w - left - borderRight  - (nColumns - 1) * gap;
 		double availableHeight = h - top  - borderBottom - (nRows    - 1) * gap;
 
-		double scaleX = availableWidth  / totalWidthRW;
-		double scaleY = availableHeight / totalHeightRW;
-		scale = pageFit == PageFit.FIT_TO_WIDTH ? scaleX : Math.min(scaleX, scaleY);
+		GridLayout grid = new GridLayout(columnWidthsRW, rowHeightsRW, columnSizes, rowSizes,
+				availableWidth, availableHeight, allColumnsSameWidth, allRowsSameHeight,
+				pageFit == PageFit.FIT_TO_WIDTH);
+		columnWidths = grid.columnWidths;
+		rowHeights = grid.rowHeights;
+		scale = grid.scale;
 	}
 
 
@@ -609,7 +1007,7 @@ public class Figure implements FigureInterface {
 		double rowTop = calculateFirstPanelTop(currentPage);
 
 		for(int r = 0; r < nRows; r++) {
-			double rowHeight = rowHeightsRW[r] * scale;
+			double rowHeight = rowHeights[r];
 			double rowBottom = rowTop + rowHeight;
 			if(rowBottom > h - borderBottom + 10e-3) {
 				currentPage++;
@@ -623,6 +1021,7 @@ public class Figure implements FigureInterface {
 
 
 	private void calculateTileDimensions() {
+		double[] rowTops = new double[nRows];
 		int page = 0;
 		double posy = calculateFirstPanelTop(page);
 		for(int cy = 0; cy < nRows; cy++) {
@@ -630,17 +1029,22 @@ public class Figure implements FigureInterface {
 				page = rowToPage[cy];
 				posy = calculateFirstPanelTop(page);
 			}
-			double posx = calculateFirstPanelLeft();
-			for(int cx = 0; cx < nColumns; cx++) {
-				Rectangle2D rect = new Rectangle2D.Double(posx, posy, columnWidthsRW[cx] * scale, rowHeightsRW[cy] * scale);
-				panels[cy][cx].rect.setRect(rect);
-				posx += (columnWidthsRW[cx] * scale + gap);
-			}
-			posy += (rowHeightsRW[cy] * scale + gap);
+			rowTops[cy] = posy;
+			posy += (rowHeights[cy] + gap);
+		}
+
+		double[] columnLefts = new double[nColumns];
+		double posx = calculateFirstPanelLeft();
+		for(int cx = 0; cx < nColumns; cx++) {
+			columnLefts[cx] = posx;
+			posx += (columnWidths[cx] + gap);
 		}
+
+		for(SparseGrid.Cell<Panel> cell : panels)
+			cell.value.rect.setRect(columnLefts[cell.column], rowTops[cell.row], columnWidths[cell.column], rowHeights[cell.row]);
 	}
 
-	private void drawImages(int page) {
+	private void drawImages(VectorDocument doc, int page, RenderTask task) {
 		int labelStart = 'a';
 		switch (panelLabelScheme) {
 			case NUMBERS: labelStart = '1'; break;
@@ -649,97 +1053,98 @@ public class Figure implements FigureInterface {
 		}
 		labelStart -= 1;
 
-		for(int r = 0; r < nRows; r++) {
-			for(int c = 0; c < nColumns; c++) {
-				if(rowToPage[r] == page) {
-					Panel panel = panels[r][c];
-					// TODO draw the panel background
-
-
-					// draw the image
-					Img image = images[r][c];
-					if(image != null) {
-						image.drawImage(backend, panel.rect);
-						labelStart++;
-					}
+		for(SparseGrid.Cell<Panel> cell : panels) {
+			if(rowToPage[cell.row] != page)
+				continue;
+			int r = cell.row;
+			int c = cell.column;
+			Panel panel = cell.value;
+			// TODO draw the panel background
+
+
+			// draw the image
+			Img image = images.get(r, c);
+			if(image != null) {
+				touchSnapshot(image);
+				image.drawImage(doc, panel.rect, targetDPI);
+				if(imageObjects != null)
+					imageObjects.put(r + "," + c, ((PDFVectorDocument) doc).getLastImageNumber());
+				if(formImages != null)
+					formImages.add(image);
+				labelStart++;
+			}
 
-					// draw the panel label
-					Rectangle2D.Double tile = (Rectangle2D.Double) panel.rect;
-					double labelX = tile.x + tile.width / 2;
-					double labelY = tile.y + tile.height;
-					switch(panel.panelLabelPosition.hAlignment) {
-						case LEFT:   labelX = tile.x + panel.panelLabelGap;              break;
-						case RIGHT:  labelX = tile.x + tile.width - panel.panelLabelGap; break;
-						case CENTER: labelX = tile.x + tile.width / 2;                   break;
-					}
-					switch(panelLabelPosition.vAlignment) {
-						case TOP:    labelY = tile.y + panel.panelLabelGap;               break;
-						case BOTTOM: labelY = tile.y + tile.height - panel.panelLabelGap; break;
-						case CENTER: labelY = tile.y + tile.height / 2;                   break;
-					}
-					backend.setFillColor(panel.panelLabelColor);
-					backend.setFont(panel.panelLabelFont);
-					backend.makeText(Character.toString((char)labelStart), labelX, labelY, panel.panelLabelPosition);
-
-					// draw the panel frame
-					if(panel.panelFrameVisible) {
-						backend.setStrokeWidth(panel.panelFrameThickness);
-						backend.setStrokeColor(panel.panelFrameColor);
-						backend.makeRectangle(tile.x, tile.y, tile.width, tile.height, Alignment.TOP_LEFT, true, false);
-					}
-				}
+			// draw the panel label
+			Rectangle2D.Double tile = (Rectangle2D.Double) panel.rect;
+			double labelX = tile.x + tile.width / 2;
+			double labelY = tile.y + tile.height;
+			switch(panel.panelLabelPosition.hAlignment) {
+				case LEFT:   labelX = tile.x + panel.panelLabelGap;              break;
+				case RIGHT:  labelX = tile.x + tile.width - panel.panelLabelGap; break;
+				case CENTER: labelX = tile.x + tile.width / 2;                   break;
+			}
+			switch(panelLabelPosition.vAlignment) {
+				case TOP:    labelY = tile.y + panel.panelLabelGap;               break;
+				case BOTTOM: labelY = tile.y + tile.height - panel.panelLabelGap; break;
+				case CENTER: labelY = tile.y + tile.height / 2;                   break;
 			}
+			doc.setFillColor(panel.panelLabelColor);
+			doc.setFont(panel.panelLabelFont);
+			doc.makeText(Character.toString((char)labelStart), labelX, labelY, panel.panelLabelPosition);
+
+			// draw the panel frame
+			if(panel.panelFrameVisible) {
+				doc.setStrokeWidth(panel.panelFrameThickness);
+				doc.setStrokeColor(panel.panelFrameColor);
+				doc.makeRectangle(tile.x, tile.y, tile.width, tile.height, Alignment.TOP_LEFT, true, false);
+			}
+			task.panelDone(panels.size());
 		}
 	}
 
 	private void adjustDrawingRectangles() {
-		for(int r = 0; r < nRows; r++) {
-			for(int c = 0; c < nColumns; c++) {
-				Img image = images[r][c];
-				if(image != null)
-					image.adjustDrawingRectangle(columnWidthsRW[c], rowHeightsRW[r], scale);
-			}
-		}
+		for(SparseGrid.Cell<Img> cell : images)
+			cell.value.adjustDrawingRectangle(columnWidths[cell.column], rowHeights[cell.row], scale);
 	}
 
-	private void drawColumnHeaders(int page) {
+	private void drawColumnHeaders(VectorDocument doc, int page) {
 		double posx = calculateFirstPanelLeft();
 		double top  = calculateFirstPanelTop(page);
 		for(int i = 0; i < nColumns; i++) {
-			Header colh = columnHeaders[i];
-			double fw = columnWidthsRW[i] * scale;
+			Header colh = columnHeaders.get(i);
+			double fw = columnWidths[i];
 			if(colh != null) {
 				if (colh.headerFrameVisible) {
-					backend.setStrokeWidth(colh.frameThickness);
-					backend.setStrokeColor(colh.frameColor);
+					doc.setStrokeWidth(colh.frameThickness);
+					doc.setStrokeColor(colh.frameColor);
 					boolean headerBg = colh.backgroundColor != null;
 					if(headerBg)
-						backend.setFillColor(colh.backgroundColor);
-					Rectangle2D bounds = backend.getStringBounds(colh.header, colh.font);
-					backend.makeRectangle(
+						doc.setFillColor(colh.backgroundColor);
+					Rectangle2D bounds = doc.getStringBounds(colh.header, colh.font);
+					doc.makeRectangle(
 							posx + fw / 2,
 							top - gap,
 							fw,
 							bounds.getHeight(),
 							Alignment.BOTTOM_CENTER, true, headerBg);
 				}
-				backend.setFont(colh.font);
-				backend.setFillColor(colh.textColor);
-				backend.makeText(colh.header, posx + fw / 2, top - gap, Alignment.BOTTOM_CENTER);
+				doc.setFont(colh.font);
+				doc.setFillColor(colh.textColor);
+				doc.makeText(colh.header, posx + fw / 2, top - gap, Alignment.BOTTOM_CENTER);
 
 			}
 			posx += (fw + gap);
 		}
 	}
 
-	private static class Header {
-		private final String header;
-		private final Font font;
-		private final double frameThickness;
-		private final Color textColor;
-		private final Color frameColor;
-		private final Color backgroundColor;
-		private final boolean headerFrameVisible;
+	static class Header {
+		final String header;
+		final Font font;
+		final double frameThickness;
+		final Color textColor;
+		final Color frameColor;
+		final Color backgroundColor;
+		final boolean headerFrameVisible;
 
 		public Header(String header, Font font, double frameThickness, Color textColor, Color frameColor, Color backgroundColor, boolean headerFrameVisible) {
 			this.header = header;
@@ -750,18 +1155,25 @@ public class Figure implements FigureInterface {
 			this.backgroundColor = backgroundColor;
 			this.headerFrameVisible = headerFrameVisible;
 		}
+
+		static void digest(MessageDigest md, Header h) {
+			if(h == null)
+				RenderCache.update(md, "no header");
+			else
+				RenderCache.update(md, h.header, h.font, h.frameThickness, h.textColor, h.frameColor, h.backgroundColor, h.headerFrameVisible);
+		}
 	}
 
-	private static class Panel {
+	static class Panel {
 
-		private final Rectangle2D rect;
-		private final Font panelLabelFont;
-		private final Color panelLabelColor;
-		private final Alignment panelLabelPosition;
-		private final double panelLabelGap;
-		private final boolean panelFrameVisible;
-		private final double panelFrameThickness;
-		private final Color panelFrameColor;
+		final Rectangle2D rect;
+		final Font panelLabelFont;
+		final Color panelLabelColor;
+		final Alignment panelLabelPosition;
+		final double panelLabelGap;
+		final boolean panelFrameVisible;
+		final double panelFrameThickness;
+		final Color panelFrameColor;
 
 		public Panel(
 				Rectangle2D rect,
@@ -784,74 +1196,553 @@ public class Figure implements FigureInterface {
 		}
 	}
 
-	private void drawRowHeaders(int page) {
+	private void drawRowHeaders(VectorDocument doc, int page) {
 		double posx = calculateFirstPanelLeft();
 		double posy = calculateFirstPanelTop(page);
-		backend.rotateBy(-90);
+		doc.rotateBy(-90);
 		for(int i = 0; i < nRows; i++) {
 			if(rowToPage[i] != page)
 				continue;
-			Header rowh = rowHeaders[i];
-			double fh = rowHeightsRW[i] * scale;
+			Header rowh = rowHeaders.get(i);
+			double fh = rowHeights[i];
 			if(rowh != null) {
 				if (rowh.headerFrameVisible) {
-					backend.setStrokeColor(rowh.frameColor);
-					backend.setStrokeWidth(rowh.frameThickness);
+					doc.setStrokeColor(rowh.frameColor);
+					doc.setStrokeWidth(rowh.frameThickness);
 					boolean headerBg = rowh.backgroundColor != null;
 					if(headerBg)
-						backend.setFillColor(rowh.backgroundColor);
-					Rectangle2D bounds = backend.getStringBounds(rowh.header, rowh.font);
-					backend.makeRectangle(posx - gap, posy + fh / 2, fh, bounds.getHeight(), Alignment.CENTER_RIGHT, true, headerBg);
+						doc.setFillColor(rowh.backgroundColor);
+					Rectangle2D bounds = doc.getStringBounds(rowh.header, rowh.font);
+					doc.makeRectangle(posx - gap, posy + fh / 2, fh, bounds.getHeight(), Alignment.CENTER_RIGHT, true, headerBg);
 				}
-				backend.setFont(rowh.font);
-				backend.setFillColor(rowh.textColor);
-				backend.makeText(rowh.header, posx - gap, posy + fh / 2, Alignment.CENTER_RIGHT);
+				doc.setFont(rowh.font);
+				doc.setFillColor(rowh.textColor);
+				doc.makeText(rowh.header, posx - gap, posy + fh / 2, Alignment.CENTER_RIGHT);
 			}
 			posy += (fh + gap);
 		}
-		backend.rotateBy(0);
+		doc.rotateBy(0);
 	}
 
-	private void drawTitle(double pageWidth, int page) {
+	private void drawTitle(VectorDocument doc, double pageWidth, int page) {
 		if(page == 0 && title != null && !title.trim().isEmpty()) {
-			backend.setStrokeColor(figureTitleColor);
-			backend.setFillColor(figureTitleColor);
-			backend.setFont(figureTitleFont);
-			backend.makeText(title, pageWidth / 2, borderTop, Alignment.TOP_CENTER);
+			doc.setStrokeColor(figureTitleColor);
+			doc.setFillColor(figureTitleColor);
+			doc.setFont(figureTitleFont);
+			doc.makeText(title, pageWidth / 2, borderTop, Alignment.TOP_CENTER);
 		}
 	}
 
 	public void createPDF(File file) {
+		beginRender();
+		try {
+			createPDF(file, RenderTask.NONE);
+		} finally {
+			endRender();
+		}
+	}
 
-		backend = new PDFVectorDocument();
-		backend.startDocument(file, figureWidth, figureHeight);
+	private void createPDF(File file, RenderTask task) {
+		layout();
+		if(incrementalUpdate && !parallelPages && timeLapseFrom == 0 && cmykProfile == null && file.isFile()) {
+			if(updatePDF(file))
+				return;
+		}
+		FileOutputStream out;
+		try {
+			out = new FileOutputStream(file);
+		} catch (FileNotFoundException e) {
+			throw new RuntimeException("Cannot create PDF document " + file, e);
+		}
+		try {
+			writePDF(out, task);
+		} catch(RuntimeException e) {
+			// the document was not completed and closed
+			try {
+				out.close();
+			} catch(IOException ignored) {
+			}
+			throw e;
+		}
+	}
+
+	public void createPDF(OutputStream out) {
+		beginRender();
+		try {
+			createPDF(out, RenderTask.NONE);
+		} finally {
+			endRender();
+		}
+	}
+
+	private void createPDF(OutputStream out, RenderTask task) {
+		layout();
+		writePDF(out, task);
+	}
+
+	/**
+	 * Writes the figure into <code>out</code>, after {@link #layout()}.
+	 */
+	private void writePDF(OutputStream out, RenderTask task) {
+		if(timeLapseFrom > 0) {
+			createTimeLapse(out, task);
+			return;
+		}
+
+		if(parallelPages && nPages > 1) {
+			createPagesInParallel(out, task);
+			return;
+		}
 
-		calculateColumnWidthsAndHeights();
-		calculateScale(figureWidth, figureHeight);
+		imageObjects = incrementalUpdate ? new HashMap<>() : null;
+		backend.startDocument(out, figureWidth, figureHeight);
+		if(nPages > 1 && hasColumnHeaders())
+			columnHeaderForm = createColumnHeaderForm((PDFVectorDocument) backend);
+		for(int page = 0; page < nPages; page++) {
+			if(page > 0)
+				backend.newPage();
+			drawPage(backend, page, task);
+			task.pageDone(nPages);
+		}
+		columnHeaderForm = null;
+
+		if(imageObjects != null) {
+			// remember which panel is drawn by which image XObject, for incremental updates
+			PDFVectorDocument pdf = (PDFVectorDocument) backend;
+			pdf.setInfo(LAYOUT_INFO, getLayoutKey());
+			pdf.setInfo(PANELS_INFO, getPanelsInfo());
+			imageObjects = null;
+		}
+		backend.endDocument();
+	}
+
+	private PDFVectorDocument newDocument() {
+		PDFVectorDocument doc = new PDFVectorDocument();
+		doc.setCmykProfile(cmykProfile);
+		return doc;
+	}
+
+	private void layout() {
+		awaitCaptures();
+		backend = newDocument();
+
+		calculateGrid(figureWidth, figureHeight);
 		calculatePages(figureHeight);
 		calculateTileDimensions();
 		adjustDrawingRectangles();
+	}
+
+	/**
+	 * Once the layout is known, pages are independent: render each of them into its own
+	 * in-memory PDF, on all cores, and merge them afterwards.
+	 */
+	private void createPagesInParallel(OutputStream out, RenderTask task) {
+		byte[][] pages = new byte[nPages][];
+		IntStream.range(0, nPages).parallel().forEach(page -> {
+			ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+			PDFVectorDocument doc = newDocument();
+			doc.startDocument(buffer, figureWidth, figureHeight);
+			drawPage(doc, page, task);
+			doc.endDocument();
+			pages[page] = buffer.toByteArray();
+			task.pageDone(nPages);
+		});
+		PDFVectorDocument.merge(Arrays.asList(pages), out, cmykProfile);
+	}
+
+	/**
+	 * Starts streaming rows of panels into <code>out</code>, for figures too large to keep all
+	 * panels in memory. Since later rows are unknown, columns have fixed widths and images are
+	 * drawn at a fixed scale; each page is drawn and its panels released as soon as the next
+	 * row does not fit onto it anymore. Settings (headers, labels, frames, ...) are taken from
+	 * this figure; panels added to it before are discarded.
+	 *
+	 * @param rowHeaders     whether rows have headers; if so, their space is reserved on every
+	 *                       page, so that columns are at the same position on all pages
+	 * @param scale          from real-world (image) dimensions to mm
+	 * @param columnWidthsMM the width of each column, in mm
+	 */
+	public RowStream stream(OutputStream out, boolean rowHeaders, double scale, double... columnWidthsMM) {
+		return new RowStream(out, rowHeaders, scale, columnWidthsMM);
+	}
+
+	/**
+	 * Appends rows of panels to a figure which is written page by page.
+	 * @see #stream(OutputStream, boolean, double, double...)
+	 */
+	public final class RowStream implements Closeable {
+
+		private int page = 0;
+
+		/** The number of completed rows on the current page, also the index of the current row */
+		private int rowsOnPage = 0;
+
+		private double[] pageRowHeights = new double[16];
+
+		private double nextRowTop;
+
+		private RowStream(OutputStream out, boolean withRowHeaders, double scale, double[] columnWidthsMM) {
+			beginRender();
+			try {
+				for(SparseGrid.Cell<Img> cell : images)
+					releaseImage(cell.value);
+				images.clear();
+				panels.clear();
+				rowHeaders.clear();
+				reserveRowHeaders = withRowHeaders;
+				Figure.this.scale = scale;
+				columnWidths = columnWidthsMM.clone();
+				nColumns = columnWidthsMM.length;
+				nRows = 0;
+				backend = newDocument();
+				backend.startDocument(out, figureWidth, figureHeight);
+			} catch(RuntimeException e) {
+				endRender();
+				throw e;
+			}
+		}
+
+		public void addImage(ImagePlus image, int column, ImageResize imageResize) {
+			checkColumn(column);
+			Figure.this.addImage(image, rowsOnPage, column, imageResize);
+		}
+
+		public void addImage(PanelSource source, Rectangle fov, int column, ImageResize imageResize) {
+			checkColumn(column);
+			Figure.this.addImage(source, fov, rowsOnPage, column, imageResize);
+		}
+
+		public void setRowHeader(String header) {
+			if(!reserveRowHeaders)
+				throw new RuntimeException("Cannot set a row header, the stream was started without row headers");
+			Figure.this.setRowHeader(rowsOnPage, header);
+		}
+
+		private void checkColumn(int column) {
+			if(column < 0 || column >= columnWidths.length)
+				throw new RuntimeException("Column " + column + " is outside of the " + columnWidths.length + " streamed columns");
+		}
+
+		/**
+		 * Completes the current row. If it does not fit onto the current page, that page is
+		 * written first, and the row starts the next page.
+		 */
+		public void endRow() {
+			double height = 0;
+			for(int c = 0; c < nColumns; c++) {
+				Img img = images.get(rowsOnPage, c);
+				if(img != null)
+					height = Math.max(height, img.getRealHeight() * scale);
+			}
+
+			double top = rowsOnPage == 0 ? calculateFirstPanelTop(page) : nextRowTop;
+			if(rowsOnPage > 0 && top + height > figureHeight - borderBottom + 10e-3) {
+				// take the current row out, write the page, and put the row back as first row
+				Img[] rowImages = new Img[nColumns];
+				Panel[] rowPanels = new Panel[nColumns];
+				for(int c = 0; c < nColumns; c++) {
+					rowImages[c] = images.set(rowsOnPage, c, null);
+					rowPanels[c] = panels.set(rowsOnPage, c, null);
+				}
+				Header rowHeader = rowHeaders.remove(rowsOnPage);
+
+				flushPage();
+
+				for(int c = 0; c < nColumns; c++) {
+					images.set(0, c, rowImages[c]);
+					panels.set(0, c, rowPanels[c]);
+				}
+				if(rowHeader != null)
+					rowHeaders.put(0, rowHeader);
+				top = calculateFirstPanelTop(page);
+			}
+
+			if(rowsOnPage == pageRowHeights.length)
+				pageRowHeights = Arrays.copyOf(pageRowHeights, 2 * rowsOnPage);
+			pageRowHeights[rowsOnPage++] = height;
+			nextRowTop = top + height + gap;
+		}
+
+		/**
+		 * Draws the completed rows of the current page and releases their panels.
+		 */
+		private void flushPage() {
+			nRows = rowsOnPage;
+			rowHeights = Arrays.copyOf(pageRowHeights, nRows);
+			rowToPage = new int[nRows];
+			Arrays.fill(rowToPage, page);
+			nPages = page + 1;
+			calculateTileDimensions();
+			adjustDrawingRectangles();
 
-		for(int page = 0; page < nPages; page++) {
 			if(page > 0)
 				backend.newPage();
+			if(page == 1 && hasColumnHeaders())
+				columnHeaderForm = createColumnHeaderForm((PDFVectorDocument) backend);
+			drawPage(backend, page, RenderTask.NONE);
+
+			for(SparseGrid.Cell<Img> cell : images)
+				releaseImage(cell.value);
+			images.clear();
+			panels.clear();
+			rowHeaders.clear();
+			rowsOnPage = 0;
+			page++;
+		}
 
+		/**
+		 * Ends the current row, if it has panels, writes the last page and closes the document.
+		 */
+		@Override
+		public void close() {
+			boolean pending = false;
+			for(int c = 0; c < nColumns && !pending; c++)
+				pending = images.get(rowsOnPage, c) != null || panels.get(rowsOnPage, c) != null;
+			if(pending)
+				endRow();
+			if(rowsOnPage > 0 || page == 0)
+				flushPage();
+			try {
+				backend.endDocument();
+			} finally {
+				columnHeaderForm = null;
+				reserveRowHeaders = false;
+				endRender();
+			}
+		}
+	}
 
-			backend.setStrokeWidth(0.5);
-			backend.setFillColor(Color.BLACK);
+	/**
+	 * Draws one page per timepoint. Everything but the pixels of the panels (headers, title,
+	 * labels, frames, overlays, scale bars) is drawn only once, into a form XObject which is
+	 * shown on every page; per page, only the image XObjects of panels which change over time
+	 * are added. Static panels share a single image XObject across all pages.
+	 */
+	private void createTimeLapse(OutputStream out, RenderTask task) {
+		if(nPages > 1)
+			throw new RuntimeException("A time-lapse figure must fit onto a single page");
+		PDFVectorDocument pdf = (PDFVectorDocument) backend;
+		pdf.startDocument(out, figureWidth, figureHeight);
+
+		formImages = new ArrayList<>();
+		pdf.beginForm();
+		drawPage(pdf, 0, task);
+		PDFVectorDocument.Form form = pdf.endForm();
+		List<Img> placed = formImages;
+		formImages = null;
+
+		ImagePlus[] staticImages = new ImagePlus[placed.size()];
+		for(int t = timeLapseFrom; t <= timeLapseTo; t++) {
+			if(t > timeLapseFrom)
+				pdf.newPage();
+			for(int i = 0; i < placed.size(); i++) {
+				Img img = placed.get(i);
+				ImagePlus frame = img.getFrame(t, targetDPI);
+				if(frame == null) {
+					if(staticImages[i] == null)
+						staticImages[i] = img.getDisplayImage(targetDPI);
+					frame = staticImages[i];
+				}
+				pdf.drawFormImage(form, i, frame);
+			}
+			pdf.drawForm(form);
+			task.pageDone(timeLapseTo - timeLapseFrom + 1);
+		}
+		pdf.endDocument();
+	}
+
+	/**
+	 * Column headers are the same on every page, apart from their vertical position on the
+	 * first page, which also has the title: draw them once, as they appear on the following
+	 * pages, and reference them from each page. They are the only page-invariant decoration:
+	 * row headers, panel frames and labels depend on the rows of each page, and the title is
+	 * only drawn on the first page.
+	 */
+	private PDFVectorDocument.Form createColumnHeaderForm(PDFVectorDocument pdf) {
+		pdf.beginForm();
+		drawColumnHeaders(pdf, 1);
+		return pdf.endForm();
+	}
+
+	private void drawPage(VectorDocument doc, int page, RenderTask task) {
+		doc.setStrokeWidth(0.5);
+		doc.setFillColor(Color.BLACK);
+
+		drawImages(doc, page, task);
+		if(columnHeaderForm != null)
+			((PDFVectorDocument) doc).drawForm(columnHeaderForm, 0, calculateFirstPanelTop(page) - calculateFirstPanelTop(1));
+		else
+			drawColumnHeaders(doc, page);
+		drawRowHeaders(doc, page);
+
+		drawTitle(doc, figureWidth, page);
+	}
+
+	/**
+	 * Saves <code>script</code>, all settings and the display-ready pixels of each panel into
+	 * a self-contained bundle, see {@link FigureBundle}. Captured images are saved at full
+	 * resolution, multi-resolution sources at the level needed for the target DPI.
+	 * Time-lapse figures are saved with their current timepoint only.
+	 */
+	public void saveBundle(File file, String script) {
+		beginRender();
+		try {
+			writeBundle(file, script);
+		} finally {
+			endRender();
+		}
+	}
 
-			drawImages(page);
-			drawColumnHeaders(page);
-			drawRowHeaders(page);
+	private void writeBundle(File file, String script) {
+		layout();
+		FigureBundle.write(this, file, script);
+	}
 
-			drawTitle(figureWidth, page);
+	/**
+	 * Restores a figure saved with {@link #saveBundle(File, String)}. Panel pixels are
+	 * memory-mapped from the bundle and only read when drawn.
+	 */
+	public static Figure loadBundle(File file) {
+		return FigureBundle.read(file);
+	}
+
+	/** The script saved with a bundle */
+	public static String readBundleScript(File file) {
+		return FigureBundle.readScript(file);
+	}
+
+	/**
+	 * Feeds everything the rendered figure depends on into <code>md</code>: settings, headers
+	 * and panels. Returns false if the content of a panel cannot be identified.
+	 */
+	boolean digest(MessageDigest md) {
+		// only the current timepoint of each panel would be hashed
+		if(timeLapseFrom > 0)
+			return false;
+		digestSettings(md);
+		for(SparseGrid.Cell<Img> cell : images) {
+			if(!cell.value.digest(md))
+				return false;
 		}
+		return true;
+	}
+
+	private void digestSettings(MessageDigest md) {
+		RenderCache.update(md, figureWidth, figureHeight, borderTop, borderLeft, borderBottom, borderRight,
+				pageFit, title, figureTitleFont, figureTitleColor, panelLabelScheme, targetDPI,
+				allRowsSameHeight, allColumnsSameWidth, nRows, nColumns,
+				new TreeMap<>(columnSizes), new TreeMap<>(rowSizes), cmykProfile);
+		// the profile may be replaced in place
+		if(cmykProfile != null)
+			RenderCache.update(md, cmykProfile.lastModified(), cmykProfile.length());
+		for(int c = 0; c < nColumns; c++)
+			Header.digest(md, columnHeaders.get(c));
+		for(int r = 0; r < nRows; r++)
+			Header.digest(md, rowHeaders.get(r));
+		for(SparseGrid.Cell<Panel> cell : panels) {
+			Panel panel = cell.value;
+			RenderCache.update(md, cell.row, cell.column, panel.panelLabelFont, panel.panelLabelColor, panel.panelLabelPosition,
+					panel.panelLabelGap, panel.panelFrameVisible, panel.panelFrameThickness, panel.panelFrameColor);
+		}
+	}
 
-		backend.endDocument();
+	/**
+	 * Hashes everything which is drawn as vector graphics, i.e. all but the image XObjects.
+	 */
+	private String getLayoutKey() {
+		MessageDigest md = RenderCache.newDigest();
+		digestSettings(md);
+		for(SparseGrid.Cell<Img> cell : images) {
+			RenderCache.update(md, cell.row, cell.column);
+			cell.value.digestLayout(md);
+		}
+		return RenderCache.toHex(md.digest());
+	}
+
+	/**
+	 * Hashes what ends up in the image XObject of a panel, or returns "?" if it cannot be
+	 * identified.
+	 */
+	private static String getPixelKey(Img image) {
+		MessageDigest md = RenderCache.newDigest();
+		return image.digestPixels(md) ? RenderCache.toHex(md.digest()) : "?";
+	}
+
+	/**
+	 * Updates <code>file</code>, which was previously created from this figure with
+	 * incremental updates enabled, by appending an incremental update which replaces only the
+	 * image XObjects of panels whose pixels changed. Returns false, without touching the
+	 * file, if the layout or anything else drawn as vector graphics changed.
+	 */
+	private boolean updatePDF(File file) {
+		Map<String, String> info = PDFVectorDocument.readInfo(file);
+		String panelsInfo = info.get(PANELS_INFO);
+		if(panelsInfo == null || !getLayoutKey().equals(info.get(LAYOUT_INFO)))
+			return false;
+
+		// "row,column,object number,pixel key;..."
+		Map<String, String[]> previous = new HashMap<>();
+		for(String panel : panelsInfo.split(";")) {
+			String[] fields = panel.split(",");
+			if(fields.length == 4)
+				previous.put(fields[0] + "," + fields[1], new String[] { fields[2], fields[3] });
+		}
+
+		Map<Integer, ImagePlus> changed = new HashMap<>();
+		StringBuilder newPanelsInfo = new StringBuilder();
+		for(SparseGrid.Cell<Img> cell : images) {
+			Img image = cell.value;
+			String[] prev = previous.get(cell.row + "," + cell.column);
+			if(prev == null)
+				return false;
+			String pixelKey = getPixelKey(image);
+			if("?".equals(pixelKey) || !pixelKey.equals(prev[1]))
+				changed.put(Integer.parseInt(prev[0]), image.getDisplayImage(targetDPI));
+			newPanelsInfo.append(cell.row).append(',').append(cell.column).append(',').append(prev[0]).append(',').append(pixelKey).append(';');
+		}
+		if(changed.isEmpty())
+			return true;
+
+		Map<String, String> newInfo = new HashMap<>();
+		newInfo.put(PANELS_INFO, newPanelsInfo.toString());
+		PDFVectorDocument.updateImages(file, changed, newInfo);
+		return true;
 	}
 
-	private static class Img {
+	private String getPanelsInfo() {
+		StringBuilder sb = new StringBuilder();
+		for(SparseGrid.Cell<Img> cell : images) {
+			Integer object = imageObjects.get(cell.row + "," + cell.column);
+			if(object != null)
+				sb.append(cell.row).append(',').append(cell.column).append(',').append(object).append(',').append(getPixelKey(cell.value)).append(';');
+		}
+		return sb.toString();
+	}
+
+	/**
+	 * Images without a window (e.g. opened by a server) have no canvas to store their field of
+	 * view; it is stored in this property instead.
+	 */
+	public static final String FIELD_OF_VIEW_PROPERTY = "nlFigure.fov";
+
+	/**
+	 * The displayed field of view of <code>image</code>: the source rectangle of its canvas,
+	 * the {@link #FIELD_OF_VIEW_PROPERTY} if it is not displayed, or the whole image.
+	 */
+	static Rectangle getFieldOfView(ImagePlus image) {
+		ImageCanvas ic = image.getCanvas();
+		if(ic != null)
+			return ic.getSrcRect().getBounds();
+		Object fov = image.getProperty(FIELD_OF_VIEW_PROPERTY);
+		if(fov instanceof Rectangle)
+			return ((Rectangle) fov).intersection(new Rectangle(0, 0, image.getWidth(), image.getHeight()));
+		return new Rectangle(0, 0, image.getWidth(), image.getHeight());
+	}
+
+	static class Img {
 		final ImagePlus image;
+		final PanelSource source;
+		final OffHeapImage offHeap;
 		final double pixelWidth;
 		final double pixelHeight;
 		final String title;
@@ -873,9 +1764,16 @@ public class Figure implements FigureInterface {
 
 		final Rectangle fov;
 
+		/** Whether the image has several timepoints */
+		final boolean hasTimepoints;
+
+		/** The planes of the panel over time, for time-lapse figures, or <code>null</code> */
+		final PlaneSource frames;
+		final Rectangle framesFov;
+
 
 		public Img(
-				ImagePlus image, ImageResize imageResize,
+				ImagePlus image, ImageResize imageResize, SnapshotStorage storage, boolean windowless, boolean async, boolean displayReady, boolean timeLapse,
 				Font imageTitleFont,
 				Color imageTitleColor,
 				Alignment imageTitlePosition,
@@ -889,20 +1787,46 @@ public class Figure implements FigureInterface {
 				Color scalebarColor,
 				boolean scalebarVisible
 		) {
-			Roi roi = image.getRoi();
-			image.killRoi();
-			// this.image = image.flatten();
-			this.image = new Duplicator().run(image, 1, image.getNChannels(), image.getZ(), image.getZ(), image.getT(), image.getT());
-			this.image.show();
-			ImageCanvas cic = this.image.getCanvas();
-			cic.setMagnification(image.getCanvas().getMagnification());
-			cic.setSourceRect(image.getCanvas().getSrcRect());
-			// cic.setOverlay(image.getOverlay());
-			cic.setShowAllList(image.getCanvas().getShowAllList());
-			this.image.getWindow().setVisible(false);
-
-			image.setRoi(roi);
-			this.image.setRoi(roi);
+			if(storage != SnapshotStorage.HEAP || image.getCanvas() == null || windowless) {
+				// capture only the field of view, into a buffer; no window is needed
+				Rectangle srcRect = getFieldOfView(image);
+				this.image = null;
+				this.offHeap = async
+						? OffHeapImage.captureAsync(image, srcRect, storage, displayReady)
+						: OffHeapImage.capture(image, srcRect, storage, displayReady);
+				this.fov = new Rectangle(0, 0, srcRect.width, srcRect.height);
+			}
+			else {
+				Roi roi = image.getRoi();
+				image.killRoi();
+				// this.image = image.flatten();
+				this.image = new Duplicator().run(image, 1, image.getNChannels(), image.getZ(), image.getZ(), image.getT(), image.getT());
+				this.image.show();
+				ImageCanvas cic = this.image.getCanvas();
+				cic.setMagnification(image.getCanvas().getMagnification());
+				cic.setSourceRect(image.getCanvas().getSrcRect());
+				// cic.setOverlay(image.getOverlay());
+				cic.setShowAllList(image.getCanvas().getShowAllList());
+				this.image.getWindow().setVisible(false);
+
+				image.setRoi(roi);
+				this.image.setRoi(roi);
+				this.offHeap = null;
+				this.fov = image.getCanvas().getSrcRect().getBounds();
+				// drawing reads the field of view from here, without touching the canvas
+				this.image.setProperty(FIELD_OF_VIEW_PROPERTY, new Rectangle(fov));
+			}
+
+			// keeps the whole stack, so only for time-lapse figures
+			this.hasTimepoints = image.getNFrames() > 1;
+			if(timeLapse && hasTimepoints) {
+				this.frames = new PlaneSource(image, image.getZ(), image.getT());
+				this.framesFov = getFieldOfView(image);
+			}
+			else {
+				this.frames = null;
+				this.framesFov = null;
+			}
 
 			this.pixelWidth = image.getCalibration().pixelWidth;
 			this.pixelHeight = image.getCalibration().pixelHeight;
@@ -923,7 +1847,107 @@ public class Figure implements FigureInterface {
 			this.scalebarColor = scalebarColor;
 			this.scalebarVisible = scalebarVisible;
 
-			fov = image.getCanvas().getSrcRect().getBounds();
+			this.source = null;
+		}
+
+		/**
+		 * Creates an Img which reads its pixels from <code>source</code> only when drawn,
+		 * at the resolution required by the drawing size and the target DPI.
+		 */
+		public Img(
+				PanelSource source, Rectangle fov, ImageResize imageResize,
+				Font imageTitleFont,
+				Color imageTitleColor,
+				Alignment imageTitlePosition,
+				double imageTitleGap,
+				boolean imageTitleVisible,
+				boolean imageFrameVisible,
+				double imageFrameThickness,
+				Color imageFrameColor,
+				ScalebarPosition scalebarPosition,
+				double scalebarLength,
+				Color scalebarColor,
+				boolean scalebarVisible
+		) {
+			this.image = null;
+			this.offHeap = null;
+			this.source = source;
+			this.fov = new Rectangle(fov);
+			this.hasTimepoints = false;
+			this.frames = null;
+			this.framesFov = null;
+			this.pixelWidth = source.getCalibration().pixelWidth;
+			this.pixelHeight = source.getCalibration().pixelHeight;
+			this.title = source.getTitle();
+			this.imageResize = imageResize;
+
+			this.imageTitleFont = imageTitleFont;
+			this.imageTitleColor = imageTitleColor;
+			this.imageTitlePosition = imageTitlePosition;
+			this.imageTitleGap = imageTitleGap;
+			this.imageTitleVisible = imageTitleVisible;
+			this.imageFrameVisible = imageFrameVisible;
+			this.imageFrameThickness = imageFrameThickness;
+			this.imageFrameColor = imageFrameColor;
+
+			this.scalebarPosition = scalebarPosition;
+			this.scalebarLength = scalebarLength;
+			this.scalebarColor = scalebarColor;
+			this.scalebarVisible = scalebarVisible;
+		}
+
+		void release() {
+			if(offHeap != null)
+				offHeap.release();
+			// the hidden copy is owned by this panel
+			if(image != null) {
+				image.changes = false;
+				image.close();
+			}
+		}
+
+		/**
+		 * Feeds style and content of this image into <code>md</code>; returns false if the
+		 * content cannot be identified.
+		 */
+		boolean digest(MessageDigest md) {
+			digestLayout(md);
+			return digestPixels(md);
+		}
+
+		/**
+		 * Feeds everything drawn as vector graphics (style, field of view, overlay) into
+		 * <code>md</code>.
+		 */
+		void digestLayout(MessageDigest md) {
+			RenderCache.update(md, title, pixelWidth, pixelHeight, fov, imageResize,
+					imageTitleFont, imageTitleColor, imageTitlePosition, imageTitleGap, imageTitleVisible,
+					imageFrameVisible, imageFrameThickness, imageFrameColor,
+					scalebarPosition, scalebarLength, scalebarColor, scalebarVisible);
+			if(offHeap != null)
+				offHeap.digestOverlay(md);
+			else if(image != null)
+				RenderCache.updateOverlay(md, image);
+		}
+
+		/**
+		 * Feeds what ends up in the image XObject (pixels and display settings) into
+		 * <code>md</code>; returns false if it cannot be identified.
+		 */
+		boolean digestPixels(MessageDigest md) {
+			if(source != null) {
+				String fingerprint = source.getFingerprint();
+				if(fingerprint == null)
+					return false;
+				RenderCache.update(md, fingerprint);
+			}
+			else if(offHeap != null) {
+				offHeap.digestPixels(md);
+			}
+			else {
+				RenderCache.updatePixels(md, image);
+			}
+			return true;
 		}
 
 		double getRealWidth() {
@@ -934,9 +1958,14 @@ public class Figure implements FigureInterface {
 			return fov.getHeight() * pixelHeight;
 		}
 
+		/**
+		 * @param colWidth  the width of the column, in mm
+		 * @param rowHeight the height of the row, in mm
+		 * @param scale     from real-world (image) dimensions to mm
+		 */
 		void adjustDrawingRectangle(double colWidth, double rowHeight, double scale) {
-			double rw = getRealWidth();
-			double rh = getRealHeight();
+			double rw = getRealWidth() * scale;
+			double rh = getRealHeight() * scale;
 			switch(imageResize) {
 			case RESIZE_TO_MATCH_MAGNIFICATION:
 				drawingRectWithinTile.width  = rw;
@@ -962,17 +1991,35 @@ public class Figure implements FigureInterface {
 
 				break;
 			}
-			scaleDrawingRectangle(scale);
 		}
 
-		void scaleDrawingRectangle(double scale) {
-			drawingRectWithinTile.width  *= scale;
-			drawingRectWithinTile.height *= scale;
-			drawingRectWithinTile.x      *= scale;
-			drawingRectWithinTile.y      *= scale;
+		/**
+		 * The image to draw, displaying the field of view, with pixels read at the resolution
+		 * needed for <code>dpi</code> if it comes from a PanelSource.
+		 */
+		ImagePlus getDisplayImage(double dpi) {
+			if(source != null) {
+				// pixels needed across the drawing width, which is given in mm
+				int targetWidth = (int) Math.ceil(drawingRectWithinTile.width / 25.4 * dpi);
+				return source.read(fov, targetWidth);
+			}
+			if(offHeap != null)
+				return offHeap.toImagePlus();
+			return image;
+		}
+
+		/**
+		 * The image to draw for timepoint <code>t</code> of a time-lapse figure, or
+		 * <code>null</code> if this panel does not change over time.
+		 */
+		ImagePlus getFrame(int t, double dpi) {
+			if(frames == null || t > frames.getNFrames())
+				return null;
+			int targetWidth = (int) Math.ceil(drawingRectWithinTile.width / 25.4 * dpi);
+			return frames.atTimepoint(t).read(framesFov, targetWidth);
 		}
 
-		void drawImage(VectorDocument g, Rectangle2D panel) {
+		void drawImage(VectorDocument g, Rectangle2D panel, double dpi) {
 			Rectangle2D.Double tile = (Rectangle2D.Double) panel;
 			double ix = tile.x + drawingRectWithinTile.x;
 			double iy = tile.y + drawingRectWithinTile.y;
@@ -983,17 +2030,15 @@ public class Figure implements FigureInterface {
 				g.setStrokeColor(imageFrameColor);
 				g.setStrokeWidth(imageFrameThickness);
 			}
-//			image.setActiveChannels(channels);
-			image.getCanvas().setSourceRect(fov);
-			System.out.println(fov);
+			ImagePlus imp = getDisplayImage(dpi);
 
 			double scale = fov.getWidth() / drawingRectWithinTile.width;
 
-			g.makeImage(image, ix, iy, iw, ih, Alignment.TOP_LEFT, imageFrameVisible, fill);
+			g.makeImage(imp, ix, iy, iw, ih, Alignment.TOP_LEFT, imageFrameVisible, fill);
 
 
 			// adjust scalebar position to the field of view
-			Overlay overlay = this.image.getOverlay();
+			Overlay overlay = imp.getOverlay();
 			if(overlay != null) {
 				for (Roi oRoi : overlay) {
 					if ("|SB|".equals(oRoi.getName())) {
@@ -1022,7 +2067,7 @@ public class Figure implements FigureInterface {
 						oRoi.setLocation(x, y);
 						g.setFillColor(Color.WHITE);
 						double thickness = 0.4;
-						double length = 20 / image.getCalibration().pixelWidth;
+						double length = 20 / pixelWidth;
 						g.makeRectangle(ix + 3, iy + tile.height - 3 - thickness, length / scale, thickness, Alignment.TOP_LEFT, false, true);
 						System.out.println("new location = " + x + ", " + y);
 					}
@@ -1032,7 +2077,7 @@ public class Figure implements FigureInterface {
 				double thickness = 0.4;
 				double offset = 3;
 				double x = 0, y = 0;
-				double length = scalebarLength / image.getCalibration().pixelWidth / scale;
+				double length = scalebarLength / pixelWidth / scale;
 				switch(scalebarPosition) {
 					case LOWER_LEFT:
 						x = ix + offset;
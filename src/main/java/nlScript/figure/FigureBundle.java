@@ -0,0 +1,762 @@
+package nlScript.figure;
+
+import ij.ImagePlus;
+import ij.gui.ImageCanvas;
+import ij.gui.Overlay;
+import ij.gui.Roi;
+import ij.io.RoiDecoder;
+import ij.io.RoiEncoder;
+import ij.measure.Calibration;
+import ij.plugin.RoiScaler;
+import ij.process.ByteProcessor;
+import ij.process.ColorProcessor;
+import ij.process.ImageProcessor;
+import ij.process.LUT;
+
+import static nlScript.figure.FigureInterface.ImageResize;
+import static nlScript.figure.FigureInterface.PageFit;
+import static nlScript.figure.FigureInterface.PanelLabelScheme;
+import static nlScript.figure.FigureInterface.ScalebarPosition;
+import static nlScript.figure.VectorDocument.Alignment;
+
+import java.awt.Color;
+import java.awt.Font;
+import java.awt.Rectangle;
+import java.awt.geom.Rectangle2D;
+import java.awt.image.IndexColorModel;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Map;
+
+/**
+ * A self-contained figure bundle (<code>.nlfig</code>): the script, all settings (including
+ * the ICC profile of CMYK figures) and, for each panel, the display-ready pixels and its
+ * overlay. Pixels of captured images are stored at full resolution, cropped to the field of
+ * view; those of multi-resolution sources at the level read for the target DPI. A figure
+ * restored from a bundle needs neither the original images nor ImageJ windows.
+ *
+ * File layout:
+ * <pre>
+ *   int   magic ('NLFG')
+ *   int   version
+ *   long  offset of the index
+ *   ...   pixel sections, 8-byte aligned, 3 bytes (red, green, blue) or 1 byte (8-bit index) per pixel
+ *   ...   index: script, settings and panels, written with DataOutputStream
+ * </pre>
+ * All numbers are big-endian and pixels are stored byte-wise, so that bundles can be moved
+ * between platforms. Pixel sections are not read when the bundle is opened, but memory-mapped
+ * and only read when the respective panel is drawn.
+ */
+final class FigureBundle {
+
+	static final String EXTENSION = ".nlfig";
+
+	private static final int MAGIC = 0x4e4c4647;
+	private static final int VERSION = 3;
+
+	private static final byte GRAY = 0;
+	private static final byte INDEXED = 1;
+	private static final byte RGB = 2;
+
+	private FigureBundle() {
+	}
+
+	/**
+	 * Writes <code>script</code>, the settings of <code>figure</code>, which must be laid out,
+	 * and the display-ready pixels of each panel into <code>file</code>.
+	 */
+	static void write(Figure figure, File file, String script) {
+		try(Writer writer = new Writer(file, script)) {
+			DataOutputStream out = writer.index;
+			writeSettings(out, figure);
+			out.writeInt(figure.images.size());
+			for(SparseGrid.Cell<Figure.Img> cell : figure.images) {
+				Figure.Img img = cell.value;
+				out.writeInt(cell.row);
+				out.writeInt(cell.column);
+				writer.writePanel(img.getDisplayImage(figure.targetDPI));
+				writeImageStyle(out, img);
+				writePanelStyle(out, figure.panels.get(cell.row, cell.column));
+			}
+			writeDefaults(out, figure);
+		} catch(IOException e) {
+			throw new RuntimeException("Cannot write figure bundle " + file, e);
+		}
+	}
+
+	/** Restores a figure written by {@link #write(Figure, File, String)} */
+	static Figure read(File file) {
+		Figure figure = new Figure();
+		try(Reader reader = new Reader(file)) {
+			DataInputStream in = reader.index;
+			readSettings(in, figure);
+			int n = in.readInt();
+			for(int i = 0; i < n; i++) {
+				int row = in.readInt();
+				int column = in.readInt();
+				PanelSource source = reader.readPanel();
+				ImageResize imageResize = readImageStyle(in, figure);
+				Figure.Panel panel = readPanelStyle(in);
+				figure.addImage(source, null, row, column, imageResize);
+				figure.panels.set(row, column, panel);
+			}
+			readDefaults(in, figure);
+		} catch(IOException e) {
+			throw new RuntimeException("Cannot read figure bundle " + file, e);
+		}
+		return figure;
+	}
+
+	private static void writeSettings(DataOutputStream out, Figure f) throws IOException {
+		out.writeDouble(f.figureWidth);
+		out.writeDouble(f.figureHeight);
+		out.writeDouble(f.borderTop);
+		out.writeDouble(f.borderBottom);
+		out.writeDouble(f.borderLeft);
+		out.writeDouble(f.borderRight);
+		writeEnum(out, f.pageFit);
+
+		writeString(out, f.title);
+		writeFont(out, f.figureTitleFont);
+		writeColor(out, f.figureTitleColor);
+
+		out.writeInt(f.nRows);
+		out.writeInt(f.nColumns);
+		writeHeaders(out, f.columnHeaders);
+		writeHeaders(out, f.rowHeaders);
+		writeSizes(out, f.columnSizes);
+		writeSizes(out, f.rowSizes);
+		out.writeBoolean(f.allRowsSameHeight);
+		out.writeBoolean(f.allColumnsSameWidth);
+
+		writeEnum(out, f.panelLabelScheme);
+		out.writeDouble(f.targetDPI);
+		out.writeBoolean(f.parallelPages);
+		writeProfile(out, f.cmykProfile);
+	}
+
+	private static void readSettings(DataInputStream in, Figure f) throws IOException {
+		f.figureWidth = in.readDouble();
+		f.figureHeight = in.readDouble();
+		f.borderTop = in.readDouble();
+		f.borderBottom = in.readDouble();
+		f.borderLeft = in.readDouble();
+		f.borderRight = in.readDouble();
+		f.pageFit = readEnum(in, PageFit.class);
+
+		f.title = readString(in);
+		f.figureTitleFont = readFont(in);
+		f.figureTitleColor = readColor(in);
+
+		f.nRows = in.readInt();
+		f.nColumns = in.readInt();
+		readHeaders(in, f.columnHeaders);
+		readHeaders(in, f.rowHeaders);
+		readSizes(in, f.columnSizes);
+		readSizes(in, f.rowSizes);
+		f.allRowsSameHeight = in.readBoolean();
+		f.allColumnsSameWidth = in.readBoolean();
+
+		f.panelLabelScheme = readEnum(in, PanelLabelScheme.class);
+		f.targetDPI = in.readDouble();
+		f.parallelPages = in.readBoolean();
+		f.cmykProfile = readProfile(in);
+	}
+
+	private static void writeHeaders(DataOutputStream out, Map<Integer, Figure.Header> headers) throws IOException {
+		out.writeInt(headers.size());
+		for(Map.Entry<Integer, Figure.Header> e : headers.entrySet()) {
+			Figure.Header h = e.getValue();
+			out.writeInt(e.getKey());
+			writeString(out, h.header);
+			writeFont(out, h.font);
+			out.writeDouble(h.frameThickness);
+			writeColor(out, h.textColor);
+			writeColor(out, h.frameColor);
+			writeColor(out, h.backgroundColor);
+			out.writeBoolean(h.headerFrameVisible);
+		}
+	}
+
+	private static void readHeaders(DataInputStream in, Map<Integer, Figure.Header> headers) throws IOException {
+		int n = in.readInt();
+		for(int i = 0; i < n; i++) {
+			int index = in.readInt();
+			headers.put(index, new Figure.Header(
+					readString(in),
+					readFont(in),
+					in.readDouble(),
+					readColor(in),
+					readColor(in),
+					readColor(in),
+					in.readBoolean()));
+		}
+	}
+
+	private static void writeSizes(DataOutputStream out, Map<Integer, GridLayout.Size> sizes) throws IOException {
+		out.writeInt(sizes.size());
+		for(Map.Entry<Integer, GridLayout.Size> e : sizes.entrySet()) {
+			out.writeInt(e.getKey());
+			out.writeBoolean(e.getValue().percent);
+			out.writeDouble(e.getValue().value);
+		}
+	}
+
+	private static void readSizes(DataInputStream in, Map<Integer, GridLayout.Size> sizes) throws IOException {
+		int n = in.readInt();
+		for(int i = 0; i < n; i++) {
+			int index = in.readInt();
+			boolean percent = in.readBoolean();
+			double value = in.readDouble();
+			sizes.put(index, percent ? GridLayout.Size.percent(value) : GridLayout.Size.mm(value));
+		}
+	}
+
+	private static void writeImageStyle(DataOutputStream out, Figure.Img img) throws IOException {
+		writeEnum(out, img.imageResize);
+		writeFont(out, img.imageTitleFont);
+		writeColor(out, img.imageTitleColor);
+		writeEnum(out, img.imageTitlePosition);
+		out.writeDouble(img.imageTitleGap);
+		out.writeBoolean(img.imageTitleVisible);
+		out.writeBoolean(img.imageFrameVisible);
+		out.writeDouble(img.imageFrameThickness);
+		writeColor(out, img.imageFrameColor);
+		writeEnum(out, img.scalebarPosition);
+		out.writeDouble(img.scalebarLength);
+		writeColor(out, img.scalebarColor);
+		out.writeBoolean(img.scalebarVisible);
+	}
+
+	/**
+	 * Reads the style of the next panel image into the current image settings of
+	 * <code>f</code>, and returns how it is resized.
+	 */
+	private static ImageResize readImageStyle(DataInputStream in, Figure f) throws IOException {
+		ImageResize imageResize = readEnum(in, ImageResize.class);
+		f.imageTitleFont = readFont(in);
+		f.imageTitleColor = readColor(in);
+		f.imageTitlePosition = readEnum(in, Alignment.class);
+		f.imageTitleGap = in.readDouble();
+		f.imageTitleVisible = in.readBoolean();
+		f.imageFrameVisible = in.readBoolean();
+		f.imageFrameThickness = in.readDouble();
+		f.imageFrameColor = readColor(in);
+		f.scalebarPosition = readEnum(in, ScalebarPosition.class);
+		f.scalebarLength = in.readDouble();
+		f.scalebarColor = readColor(in);
+		f.scalebarVisible = in.readBoolean();
+		return imageResize;
+	}
+
+	/** The settings for headers, images and panels added after loading a bundle */
+	private static void writeDefaults(DataOutputStream out, Figure f) throws IOException {
+		writeFont(out, f.headerFont);
+		out.writeDouble(f.headerFrameThickness);
+		writeColor(out, f.headerTextColor);
+		writeColor(out, f.headerFrameColor);
+		writeColor(out, f.headerBackgroundColor);
+		out.writeBoolean(f.headerFrameVisible);
+
+		writeEnum(out, ImageResize.RESIZE_TO_MATCH_MAGNIFICATION);
+		writeFont(out, f.imageTitleFont);
+		writeColor(out, f.imageTitleColor);
+		writeEnum(out, f.imageTitlePosition);
+		out.writeDouble(f.imageTitleGap);
+		out.writeBoolean(f.imageTitleVisible);
+		out.writeBoolean(f.imageFrameVisible);
+		out.writeDouble(f.imageFrameThickness);
+		writeColor(out, f.imageFrameColor);
+		writeEnum(out, f.scalebarPosition);
+		out.writeDouble(f.scalebarLength);
+		writeColor(out, f.scalebarColor);
+		out.writeBoolean(f.scalebarVisible);
+
+		writePanelStyle(out, new Figure.Panel(null, f.panelLabelFont, f.panelLabelColor, f.panelLabelPosition, f.panelLabelGap,
+				f.panelFrameVisible, f.panelFrameThickness, f.panelFrameColor));
+	}
+
+	private static void readDefaults(DataInputStream in, Figure f) throws IOException {
+		f.headerFont = readFont(in);
+		f.headerFrameThickness = in.readDouble();
+		f.headerTextColor = readColor(in);
+		f.headerFrameColor = readColor(in);
+		f.headerBackgroundColor = readColor(in);
+		f.headerFrameVisible = in.readBoolean();
+
+		readImageStyle(in, f);
+
+		Figure.Panel panel = readPanelStyle(in);
+		f.panelLabelFont = panel.panelLabelFont;
+		f.panelLabelColor = panel.panelLabelColor;
+		f.panelLabelPosition = panel.panelLabelPosition;
+		f.panelLabelGap = panel.panelLabelGap;
+		f.panelFrameVisible = panel.panelFrameVisible;
+		f.panelFrameThickness = panel.panelFrameThickness;
+		f.panelFrameColor = panel.panelFrameColor;
+	}
+
+	private static void writePanelStyle(DataOutputStream out, Figure.Panel panel) throws IOException {
+		writeFont(out, panel.panelLabelFont);
+		writeColor(out, panel.panelLabelColor);
+		writeEnum(out, panel.panelLabelPosition);
+		out.writeDouble(panel.panelLabelGap);
+		out.writeBoolean(panel.panelFrameVisible);
+		out.writeDouble(panel.panelFrameThickness);
+		writeColor(out, panel.panelFrameColor);
+	}
+
+	private static Figure.Panel readPanelStyle(DataInputStream in) throws IOException {
+		return new Figure.Panel(
+				new Rectangle2D.Double(),
+				readFont(in),
+				readColor(in),
+				readEnum(in, Alignment.class),
+				in.readDouble(),
+				in.readBoolean(),
+				in.readDouble(),
+				readColor(in));
+	}
+
+	/**
+	 * Writes pixel sections as they are added, and the index (filled in by the caller through
+	 * {@link #index}) when closed.
+	 */
+	static final class Writer implements Closeable {
+
+		private final RandomAccessFile raf;
+		private final FileChannel channel;
+		private final ByteArrayOutputStream indexBuffer = new ByteArrayOutputStream();
+		final DataOutputStream index = new DataOutputStream(indexBuffer);
+
+		Writer(File file, String script) {
+			try {
+				raf = new RandomAccessFile(file, "rw");
+				raf.setLength(0);
+				raf.writeInt(MAGIC);
+				raf.writeInt(VERSION);
+				raf.writeLong(0);
+				channel = raf.getChannel();
+				writeString(index, script);
+			} catch(IOException e) {
+				throw new RuntimeException("Cannot create figure bundle " + file, e);
+			}
+		}
+
+		/**
+		 * Writes the displayed part of <code>image</code>, with its display settings applied, as
+		 * a new pixel section, and its size, calibration and overlay into the index.
+		 */
+		void writePanel(ImagePlus image) throws IOException {
+			Rectangle r = PDFVectorDocument.getSourceRect(image);
+			ByteBuffer data;
+			byte type;
+			IndexColorModel palette = null;
+			int n = r.width * r.height;
+			int[] rgb = PdfImageEncoder.toRGB(image, r);
+			if(rgb != null) {
+				type = RGB;
+				byte[] bytes = new byte[3 * n];
+				for(int i = 0, j = 0; i < n; i++) {
+					int c = rgb[i];
+					bytes[j++] = (byte) (c >> 16);
+					bytes[j++] = (byte) (c >> 8);
+					bytes[j++] = (byte) c;
+				}
+				data = ByteBuffer.wrap(bytes);
+			}
+			else {
+				PdfImageEncoder.Indexed indexed = PdfImageEncoder.toIndexed(image, r);
+				palette = indexed.palette;
+				type = palette == null ? GRAY : INDEXED;
+				data = ByteBuffer.wrap(indexed.indices, 0, n);
+			}
+
+			long offset = (channel.size() + 7) & ~7L;
+			channel.position(offset);
+			while(data.hasRemaining())
+				channel.write(data);
+
+			Calibration cal = image.getCalibration();
+			writeString(index, image.getTitle());
+			index.writeInt(r.width);
+			index.writeInt(r.height);
+			index.writeDouble(cal.pixelWidth);
+			index.writeDouble(cal.pixelHeight);
+			writeString(index, cal.getUnit());
+			index.writeByte(type);
+			index.writeLong(offset);
+			if(type == INDEXED) {
+				byte[] rgbTable = new byte[3 * 256];
+				palette.getReds(rgbTable);
+				byte[] g = new byte[256], b = new byte[256];
+				palette.getGreens(g);
+				palette.getBlues(b);
+				System.arraycopy(g, 0, rgbTable, 256, 256);
+				System.arraycopy(b, 0, rgbTable, 512, 256);
+				index.write(rgbTable);
+			}
+
+			Overlay overlay = new Overlay();
+			if(image.getOverlay() != null)
+				for(Roi roi : image.getOverlay().crop(r))
+					overlay.add(roi);
+			ImageCanvas ic = image.getCanvas();
+			if(ic != null && ic.getShowAllList() != null)
+				for(Roi roi : ic.getShowAllList().crop(r))
+					overlay.add(roi);
+			writeOverlay(index, overlay);
+
+			Roi roi = image.getRoi();
+			if(roi != null) {
+				roi = (Roi) roi.clone();
+				Rectangle b2 = roi.getBounds();
+				roi.setLocation(b2.x - r.x, b2.y - r.y);
+			}
+			writeRoi(index, roi);
+		}
+
+		@Override
+		public void close() throws IOException {
+			try {
+				index.flush();
+				long indexOffset = channel.size();
+				channel.position(indexOffset);
+				ByteBuffer buffer = ByteBuffer.wrap(indexBuffer.toByteArray());
+				while(buffer.hasRemaining())
+					channel.write(buffer);
+				raf.seek(8);
+				raf.writeLong(indexOffset);
+			} finally {
+				raf.close();
+			}
+		}
+	}
+
+	/**
+	 * Reads the index of a bundle through {@link #index}; pixel sections are mapped as panels
+	 * are read.
+	 */
+	static final class Reader implements Closeable {
+
+		private final File file;
+		private final RandomAccessFile raf;
+		private final FileChannel channel;
+		final DataInputStream index;
+		final String script;
+
+		Reader(File file) {
+			this.file = file;
+			try {
+				raf = new RandomAccessFile(file, "r");
+				if(raf.readInt() != MAGIC)
+					throw new IOException("Not a figure bundle");
+				int version = raf.readInt();
+				if(version != VERSION)
+					throw new IOException("Unsupported bundle version " + version);
+				long indexOffset = raf.readLong();
+				channel = raf.getChannel();
+				byte[] bytes = new byte[(int) (channel.size() - indexOffset)];
+				raf.seek(indexOffset);
+				raf.readFully(bytes);
+				index = new DataInputStream(new ByteArrayInputStream(bytes));
+				script = readString(index);
+			} catch(IOException e) {
+				throw new RuntimeException("Cannot read figure bundle " + file, e);
+			}
+		}
+
+		PanelSource readPanel() throws IOException {
+			String title = readString(index);
+			int width = index.readInt();
+			int height = index.readInt();
+			Calibration cal = new Calibration();
+			cal.pixelWidth = index.readDouble();
+			cal.pixelHeight = index.readDouble();
+			cal.setUnit(readString(index));
+			byte type = index.readByte();
+			long offset = index.readLong();
+			LUT palette = null;
+			if(type == INDEXED) {
+				byte[] rgbTable = new byte[3 * 256];
+				index.readFully(rgbTable);
+				byte[] r = new byte[256], g = new byte[256], b = new byte[256];
+				System.arraycopy(rgbTable, 0, r, 0, 256);
+				System.arraycopy(rgbTable, 256, g, 0, 256);
+				System.arraycopy(rgbTable, 512, b, 0, 256);
+				palette = new LUT(r, g, b);
+			}
+			Overlay overlay = readOverlay(index);
+			Roi roi = readRoi(index);
+
+			long size = (long) width * height * (type == RGB ? 3 : 1);
+			// the mapping stays valid after the channel is closed
+			MappedByteBuffer pixels = channel.map(FileChannel.MapMode.READ_ONLY, offset, size);
+			String fingerprint = file.getAbsolutePath() + '/' + file.lastModified() + '/' + offset;
+			return new BundleSource(title, width, height, cal, type, pixels, palette, overlay, roi, fingerprint);
+		}
+
+		@Override
+		public void close() throws IOException {
+			raf.close();
+		}
+	}
+
+	/**
+	 * A panel restored from a bundle, whose display-ready pixels are read from the mapped
+	 * pixel section.
+	 */
+	private static final class BundleSource implements PanelSource {
+
+		private final String title;
+		private final int width;
+		private final int height;
+		private final Calibration calibration;
+		private final byte type;
+		private final ByteBuffer pixels;
+		private final LUT palette;
+		private final Overlay overlay;
+		private final Roi roi;
+		private final String fingerprint;
+
+		BundleSource(String title, int width, int height, Calibration calibration, byte type, ByteBuffer pixels,
+				LUT palette, Overlay overlay, Roi roi, String fingerprint) {
+			this.title = title;
+			this.width = width;
+			this.height = height;
+			this.calibration = calibration;
+			this.type = type;
+			this.pixels = pixels;
+			this.palette = palette;
+			this.overlay = overlay;
+			this.roi = roi;
+			this.fingerprint = fingerprint;
+		}
+
+		@Override
+		public String getTitle() {
+			return title;
+		}
+
+		@Override
+		public int getWidth() {
+			return width;
+		}
+
+		@Override
+		public int getHeight() {
+			return height;
+		}
+
+		@Override
+		public Calibration getCalibration() {
+			return calibration;
+		}
+
+		@Override
+		public String getFingerprint() {
+			return fingerprint;
+		}
+
+		@Override
+		public ImagePlus read(Rectangle fov, int targetWidth) {
+			ByteBuffer buffer = pixels.duplicate();
+			ImageProcessor ip;
+			if(type == RGB) {
+				int n = width * height;
+				byte[] bytes = new byte[3 * n];
+				buffer.get(bytes);
+				int[] rgb = new int[n];
+				for(int i = 0, j = 0; i < n; i++, j += 3)
+					rgb[i] = 0xff000000 | (bytes[j] & 0xff) << 16 | (bytes[j + 1] & 0xff) << 8 | bytes[j + 2] & 0xff;
+				ip = new ColorProcessor(width, height, rgb);
+			}
+			else {
+				byte[] indices = new byte[width * height];
+				buffer.get(indices);
+				ip = new ByteProcessor(width, height, indices);
+			}
+
+			ip.setRoi(fov);
+			int w = Math.max(1, Math.min(fov.width, targetWidth));
+			int h = w == fov.width ? fov.height : Math.max(1, (int) Math.round((double) fov.height * w / fov.width));
+			if(w == width && h == height) {
+				ip.resetRoi();
+			}
+			else if(w == fov.width) {
+				ip = ip.crop();
+			}
+			else {
+				ip.setInterpolationMethod(ImageProcessor.BILINEAR);
+				ip = ip.resize(w, h, true);
+			}
+			if(palette != null)
+				ip.setLut(palette);
+
+			ImagePlus imp = new ImagePlus(title, ip);
+			double sx = (double) w / fov.width;
+			double sy = (double) h / fov.height;
+			Calibration cal = calibration.copy();
+			cal.pixelWidth /= sx;
+			cal.pixelHeight /= sy;
+			imp.setCalibration(cal);
+
+			if(overlay.size() > 0) {
+				Overlay ov = new Overlay();
+				for(Roi r : overlay.crop(fov))
+					ov.add(transform(r, fov, sx, sy));
+				imp.setOverlay(ov);
+			}
+			if(roi != null)
+				imp.setRoi(transform(roi, fov, sx, sy));
+			return imp;
+		}
+
+		private static Roi transform(Roi roi, Rectangle fov, double sx, double sy) {
+			Roi r = (Roi) roi.clone();
+			if(fov.x != 0 || fov.y != 0) {
+				Rectangle b = r.getBounds();
+				r.setLocation(b.x - fov.x, b.y - fov.y);
+			}
+			return sx == 1 && sy == 1 ? r : RoiScaler.scale(r, sx, sy, false);
+		}
+	}
+
+	static String readScript(File file) {
+		try(Reader reader = new Reader(file)) {
+			return reader.script;
+		} catch(IOException e) {
+			throw new RuntimeException("Cannot read figure bundle " + file, e);
+		}
+	}
+
+	private static void writeString(DataOutputStream out, String s) throws IOException {
+		if(s == null) {
+			out.writeInt(-1);
+			return;
+		}
+		byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+		out.writeInt(bytes.length);
+		out.write(bytes);
+	}
+
+	private static String readString(DataInputStream in) throws IOException {
+		int length = in.readInt();
+		if(length < 0)
+			return null;
+		byte[] bytes = new byte[length];
+		in.readFully(bytes);
+		return new String(bytes, StandardCharsets.UTF_8);
+	}
+
+	/**
+	 * Writes the name and the contents of the ICC profile <code>profile</code>, which may be
+	 * <code>null</code>.
+	 */
+	private static void writeProfile(DataOutputStream out, File profile) throws IOException {
+		if(profile == null) {
+			writeString(out, null);
+			return;
+		}
+		writeString(out, profile.getName());
+		byte[] bytes = Files.readAllBytes(profile.toPath());
+		out.writeInt(bytes.length);
+		out.write(bytes);
+	}
+
+	/**
+	 * Reads a profile written by {@link #writeProfile(DataOutputStream, File)} into a
+	 * temporary file with the original name, which is deleted on exit.
+	 */
+	private static File readProfile(DataInputStream in) throws IOException {
+		String name = readString(in);
+		if(name == null)
+			return null;
+		byte[] bytes = new byte[in.readInt()];
+		in.readFully(bytes);
+		File dir = Files.createTempDirectory("nlFigure").toFile();
+		dir.deleteOnExit();
+		File profile = new File(dir, name);
+		profile.deleteOnExit();
+		Files.write(profile.toPath(), bytes);
+		return profile;
+	}
+
+	private static void writeFont(DataOutputStream out, Font font) throws IOException {
+		writeString(out, font.getName());
+		out.writeInt(font.getStyle());
+		out.writeFloat(font.getSize2D());
+	}
+
+	private static Font readFont(DataInputStream in) throws IOException {
+		String name = readString(in);
+		int style = in.readInt();
+		return new Font(name, style, 1).deriveFont(in.readFloat());
+	}
+
+	private static void writeColor(DataOutputStream out, Color color) throws IOException {
+		out.writeBoolean(color != null);
+		if(color != null)
+			out.writeInt(color.getRGB());
+	}
+
+	private static Color readColor(DataInputStream in) throws IOException {
+		return in.readBoolean() ? new Color(in.readInt(), true) : null;
+	}
+
+	private static void writeEnum(DataOutputStream out, Enum<?> e) throws IOException {
+		writeString(out, e.name());
+	}
+
+	private static <E extends Enum<E>> E readEnum(DataInputStream in, Class<E> type) throws IOException {
+		return Enum.valueOf(type, readString(in));
+	}
+
+	private static void writeOverlay(DataOutputStream out, Overlay overlay) throws IOException {
+		out.writeInt(overlay.size());
+		for(Roi roi : overlay)
+			writeRoi(out, roi);
+	}
+
+	private static Overlay readOverlay(DataInputStream in) throws IOException {
+		Overlay overlay = new Overlay();
+		int n = in.readInt();
+		for(int i = 0; i < n; i++) {
+			Roi roi = readRoi(in);
+			if(roi != null)
+				overlay.add(roi);
+		}
+		return overlay;
+	}
+
+	/** In the ImageJ roi format, which includes name, colors and stroke width */
+	private static void writeRoi(DataOutputStream out, Roi roi) throws IOException {
+		byte[] bytes = roi == null ? null : RoiEncoder.saveAsByteArray(roi);
+		if(bytes == null) {
+			out.writeInt(-1);
+			return;
+		}
+		out.writeInt(bytes.length);
+		out.write(bytes);
+	}
+
+	private static Roi readRoi(DataInputStream in) throws IOException {
+		int length = in.readInt();
+		if(length < 0)
+			return null;
+		byte[] bytes = new byte[length];
+		in.readFully(bytes);
+		return RoiDecoder.openFromByteArray(bytes);
+	}
+}
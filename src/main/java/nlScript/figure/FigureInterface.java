@@ -4,8 +4,13 @@ import ij.ImagePlus;
 
 import java.awt.Color;
 import java.awt.Font;
+import java.awt.Rectangle;
 import java.io.File;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
 import java.util.Arrays;
+import java.util.concurrent.CompletableFuture;
 
 public interface FigureInterface {
 
@@ -37,6 +42,19 @@ public interface FigureInterface {
 		UPPER_RIGHT
 	}
 
+	/** Where the pixels of captured panel images are stored */
+	enum SnapshotStorage {
+		HEAP,
+		DIRECT,
+		MAPPED
+	}
+
+	/** The stack dimension along which panels are expanded */
+	enum StackAxis {
+		PLANES,
+		TIMEPOINTS
+	}
+
 	class Size {
 		public static Size A0 = new Size(841, 1189);
 		public static Size A1 = new Size(594, 841);
@@ -105,6 +123,36 @@ public interface FigureInterface {
 	void setImageScalebarLength(double length);
 	void setImageScalebarColor(Color color);
 	void setImageScalebarVisible(boolean visible);
+	void setTargetDPI(double dpi);
+	double getTargetDPI();
+	void setSnapshotStorage(SnapshotStorage storage);
+	SnapshotStorage getSnapshotStorage();
+
+	/**
+	 * Whether adding an image only captures its display settings, and copies its pixels in
+	 * the background, overlapped with further panels and script evaluation; creating the
+	 * figure waits for all pending captures. Captured panels need no hidden window then.
+	 * Disabled by default.
+	 */
+	void setAsyncCapture(boolean b);
+	boolean isAsyncCapture();
+
+	/**
+	 * Whether adding an image applies its current display ranges, active channels and LUTs
+	 * right away, and only keeps the displayed colors (RGB or 8-bit), cropped to the field of
+	 * view. Saves memory for high bit depth and multi-channel images, and makes drawing a
+	 * plain encode step; display settings cannot change after capture anyway.
+	 */
+	void setDisplayReadySnapshots(boolean b);
+	boolean isDisplayReadySnapshots();
+
+	/**
+	 * Limits the memory held by the pixels of captured panel images to <code>bytes</code>.
+	 * Beyond, the least recently needed snapshots are moved into memory-mapped temporary
+	 * files, and paged back in when drawn. 0 (the default) for no limit.
+	 */
+	void setSnapshotMemoryBudget(long bytes);
+	long getSnapshotMemoryBudget();
 
 	// Panel setup
 	// -----------
@@ -143,8 +191,96 @@ public interface FigureInterface {
 
 	void addImage(ImagePlus image, int row, int column, ImageResize imageResize);
 
+	void addImage(PanelSource source, Rectangle fov, int row, int column, ImageResize imageResize);
+
+	/**
+	 * Adds one panel per plane (at the current timepoint) or timepoint (at the current plane)
+	 * <code>from</code> to <code>to</code> (1-based, inclusive) of <code>image</code>, into
+	 * consecutive columns of <code>row</code>, starting at <code>firstColumn</code>.
+	 */
+	void addImages(ImagePlus image, StackAxis axis, int from, int to, int row, int firstColumn, ImageResize imageResize);
+
+	/**
+	 * Adds one panel per image file in <code>directory</code>, as contact sheet below the
+	 * existing panels. The number of columns is chosen to fill the page.
+	 */
+	void addContactSheet(File directory);
+
+	/**
+	 * Adds one panel per plane or timepoint of <code>image</code>, as contact sheet below the
+	 * existing panels. The number of columns is chosen to fill the page.
+	 */
+	void addContactSheet(ImagePlus image, StackAxis axis);
+
+	/** Render pages on all cores, each into its own in-memory PDF, and merge them */
+	void setParallelPages(boolean b);
+	boolean isParallelPages();
+
+	/**
+	 * When creating a figure into an existing file, which was created with incremental updates
+	 * enabled, only replace the images of panels whose pixels changed (if nothing else changed),
+	 * by appending an incremental update to the file.
+	 */
+	void setIncrementalUpdate(boolean b);
+	boolean isIncrementalUpdate();
+
+	/**
+	 * Renders one page per timepoint from <code>firstTimepoint</code> to
+	 * <code>lastTimepoint</code> (1-based, inclusive), e.g. for flip-book style movies. Panels
+	 * of images with several timepoints show the respective timepoint, all other content is
+	 * shared by all pages. The figure must fit onto a single page. Pass 0 to disable. Must be
+	 * called before images with several timepoints are added.
+	 */
+	void setTimeLapse(int firstTimepoint, int lastTimepoint);
+	int[] getTimeLapse();
+
+	/**
+	 * Writes print-ready CMYK, converted with the given ICC output profile, which is embedded
+	 * as output intent. Pass <code>null</code> for RGB.
+	 */
+	void setCmykProfile(File iccProfile);
+	File getCmykProfile();
+
 	void createFigure(File file);
 
+	/** Writes the figure to <code>out</code>, which is closed afterwards */
+	void createFigure(OutputStream out);
+
+	default void createFigure(WritableByteChannel channel) {
+		createFigure(Channels.newOutputStream(channel));
+	}
+
+	/**
+	 * Receives the progress of {@link #createFigureAsync(File, ProgressListener)}. With
+	 * parallel pages, methods may be called concurrently from several threads.
+	 */
+	interface ProgressListener {
+
+		/** Called after each drawn panel, <code>panel</code> counts from 1 to <code>nPanels</code> */
+		default void panelDone(int panel, int nPanels) {
+		}
+
+		/** Called after each completed page, <code>page</code> counts from 1 to <code>nPages</code> */
+		default void pageDone(int page, int nPages) {
+		}
+	}
+
+	/**
+	 * Creates the figure on a background thread. The figure is written to a temporary file,
+	 * which replaces <code>file</code> when complete; cancelling the returned future stops
+	 * rendering before the next panel and leaves <code>file</code> untouched. The figure must
+	 * not be modified, nor rendered again, until the future has completed.
+	 *
+	 * @param listener may be <code>null</code>
+	 */
+	CompletableFuture<File> createFigureAsync(File file, ProgressListener listener);
+
+	/**
+	 * Releases the snapshots of all panels (after a render in progress has stopped); the
+	 * figure is empty afterwards.
+	 */
+	void release();
+
 	public static void main(String[] args) {
 		Object[] obs = new Object[] {1, 5, 6};
 
@@ -0,0 +1,291 @@
+package nlScript.figure;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import ij.IJ;
+import ij.ImagePlus;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.lang.reflect.Method;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A small embedded HTTP server which renders nlFigure scripts into PDF.
+ *
+ * <code>POST /render?image=Title=/path/to/image.tif&amp;image=...</code>, with the script as
+ * (UTF-8) request body, evaluates the script and streams the PDF back. Images referenced in the
+ * script by title are opened from the given local files; multi-resolution images are
+ * referenced by path in the script itself.
+ *
+ * The server binds to <code>localhost</code> by default; to share it, bind it to another
+ * address, or to all addresses with <code>null</code>.
+ *
+ * Requests are accepted on virtual threads if the JVM supports them (Java 21+), or on a cached
+ * thread pool otherwise. Rendering itself happens on a bounded pool of
+ * <code>maxConcurrentRenders</code> threads with a queue of <code>maxQueuedRenders</code>;
+ * requests arriving while the queue is full are answered with 429 (Too Many Requests).
+ *
+ * Scripts larger than {@link #setMaxScriptSize(int)} are rejected with 413 (Payload Too
+ * Large), scripts which cannot be evaluated with 400. The PDF is rendered into a temporary
+ * file before the response is sent, so that rendering errors are answered with 500 instead
+ * of a truncated document.
+ */
+public class FigureServer {
+
+	public static final int DEFAULT_PORT = 8091;
+
+	public static final int DEFAULT_MAX_SCRIPT_SIZE = 1024 * 1024;
+
+	private final HttpServer server;
+	private final ExecutorService requestExecutor;
+	private final ThreadPoolExecutor renderExecutor;
+
+	private volatile RenderCache renderCache = null;
+
+	private volatile int maxScriptSize = DEFAULT_MAX_SCRIPT_SIZE;
+
+	/**
+	 * Creates a server listening on <code>host</code>, or on all addresses if <code>null</code>.
+	 */
+	public FigureServer(String host, int port, int maxConcurrentRenders, int maxQueuedRenders) throws IOException {
+		InetSocketAddress address = host == null ? new InetSocketAddress(port) : new InetSocketAddress(host, port);
+		server = HttpServer.create(address, 0);
+		requestExecutor = newRequestExecutor();
+		renderExecutor = new ThreadPoolExecutor(
+				maxConcurrentRenders, maxConcurrentRenders,
+				0, TimeUnit.MILLISECONDS,
+				new ArrayBlockingQueue<>(maxQueuedRenders),
+				new ThreadPoolExecutor.AbortPolicy());
+		server.setExecutor(requestExecutor);
+		server.createContext("/render", this::handleRender);
+	}
+
+	public FigureServer(int port, int maxConcurrentRenders, int maxQueuedRenders) throws IOException {
+		this("localhost", port, maxConcurrentRenders, maxQueuedRenders);
+	}
+
+	public FigureServer(String host, int port) throws IOException {
+		this(host, port, Runtime.getRuntime().availableProcessors(), 16);
+	}
+
+	public FigureServer(int port) throws IOException {
+		this("localhost", port);
+	}
+
+	/**
+	 * Serves unchanged figures from <code>renderCache</code>; <code>null</code> disables caching.
+	 */
+	public void setRenderCache(RenderCache renderCache) {
+		this.renderCache = renderCache;
+	}
+
+	/**
+	 * Sets the maximum size of a script (the request body), in bytes.
+	 */
+	public void setMaxScriptSize(int bytes) {
+		this.maxScriptSize = bytes;
+	}
+
+	public void start() {
+		server.start();
+	}
+
+	public void stop() {
+		server.stop(0);
+		renderExecutor.shutdownNow();
+		requestExecutor.shutdownNow();
+	}
+
+	/**
+	 * Creates an executor with one virtual thread per task, if available, falling back to a
+	 * cached thread pool on JVMs without virtual threads.
+	 */
+	private static ExecutorService newRequestExecutor() {
+		try {
+			Method m = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+			return (ExecutorService) m.invoke(null);
+		} catch (ReflectiveOperationException e) {
+			return Executors.newCachedThreadPool();
+		}
+	}
+
+	private void handleRender(HttpExchange exchange) throws IOException {
+		try {
+			if(!"POST".equals(exchange.getRequestMethod())) {
+				sendError(exchange, 405, "Only POST is supported");
+				return;
+			}
+			// don't read the body of requests which cannot be queued anyway
+			if(renderExecutor.getQueue().remainingCapacity() == 0) {
+				sendTooManyRequests(exchange);
+				return;
+			}
+			int maxSize = maxScriptSize;
+			String contentLength = exchange.getRequestHeaders().getFirst("Content-Length");
+			try {
+				if(contentLength != null && Long.parseLong(contentLength.trim()) > maxSize) {
+					sendError(exchange, 413, "Scripts must not be larger than " + maxSize + " bytes");
+					return;
+				}
+			} catch (NumberFormatException e) {
+				sendError(exchange, 400, "Invalid Content-Length: " + contentLength);
+				return;
+			}
+			byte[] body = readFully(exchange.getRequestBody(), maxSize);
+			if(body == null) {
+				sendError(exchange, 413, "Scripts must not be larger than " + maxSize + " bytes");
+				return;
+			}
+			String script = new String(body, StandardCharsets.UTF_8);
+			Map<String, String> images = parseImageParameters(exchange.getRequestURI().getRawQuery());
+
+			Future<?> result;
+			try {
+				result = renderExecutor.submit(() -> {
+					render(exchange, script, images);
+					return null;
+				});
+			} catch (RejectedExecutionException e) {
+				sendTooManyRequests(exchange);
+				return;
+			}
+			try {
+				result.get();
+			} catch (InterruptedException e) {
+				result.cancel(true);
+				Thread.currentThread().interrupt();
+			} catch (ExecutionException e) {
+				IJ.log("Cannot render figure for " + exchange.getRemoteAddress() + ": " + e.getCause());
+				// response headers are only sent after the PDF was rendered successfully
+				if(exchange.getResponseCode() == -1)
+					sendError(exchange, 500, "Cannot render figure: " + e.getCause().getMessage());
+			}
+		} finally {
+			exchange.close();
+		}
+	}
+
+	private void render(HttpExchange exchange, String script, Map<String, String> imagePaths) throws IOException {
+		Map<String, ImagePlus> opened = new HashMap<>();
+		ScriptedFigure scriptedFigure = new ScriptedFigure();
+		scriptedFigure.setImageResolver(title -> opened.computeIfAbsent(title, t -> {
+			String path = imagePaths.get(t);
+			if(path == null)
+				throw new RuntimeException("No file given for image " + t);
+			ImagePlus imp = IJ.openImage(new File(path).getAbsolutePath());
+			if(imp == null)
+				throw new RuntimeException("Cannot open image " + path);
+			imp.setTitle(t);
+			return imp;
+		}));
+		FigureInterface figure;
+		try {
+			figure = scriptedFigure.evaluate(script);
+		} catch (RuntimeException e) {
+			Throwable cause = e.getCause() != null ? e.getCause() : e;
+			sendError(exchange, 400, String.valueOf(cause.getMessage()));
+			return;
+		}
+
+		File pdf = File.createTempFile("nlFigure", ".pdf");
+		try {
+			try(OutputStream out = new BufferedOutputStream(new FileOutputStream(pdf))) {
+				if(renderCache != null && figure instanceof Figure)
+					renderCache.render(script, (Figure) figure, out);
+				else
+					figure.createFigure(out);
+			}
+			exchange.getResponseHeaders().set("Content-Type", "application/pdf");
+			exchange.sendResponseHeaders(200, pdf.length());
+			try(OutputStream out = exchange.getResponseBody()) {
+				Files.copy(pdf.toPath(), out);
+			}
+		} finally {
+			if(!pdf.delete())
+				pdf.deleteOnExit();
+		}
+	}
+
+	/**
+	 * Parses the repeated <code>image=Title=path</code> query parameters.
+	 */
+	private static Map<String, String> parseImageParameters(String query) throws UnsupportedEncodingException {
+		Map<String, String> images = new HashMap<>();
+		if(query == null)
+			return images;
+		for(String param : query.split("&")) {
+			int eq = param.indexOf('=');
+			if(eq < 0 || !"image".equals(param.substring(0, eq)))
+				continue;
+			String value = URLDecoder.decode(param.substring(eq + 1), "UTF-8");
+			int sep = value.indexOf('=');
+			if(sep > 0)
+				images.put(value.substring(0, sep), value.substring(sep + 1));
+		}
+		return images;
+	}
+
+	/**
+	 * Reads <code>in</code> completely, or returns <code>null</code> as soon as more than
+	 * <code>maxBytes</code> were read.
+	 */
+	private static byte[] readFully(InputStream in, int maxBytes) throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		byte[] buffer = new byte[8192];
+		int n;
+		while((n = in.read(buffer)) != -1) {
+			if(out.size() + n > maxBytes)
+				return null;
+			out.write(buffer, 0, n);
+		}
+		return out.toByteArray();
+	}
+
+	private static void sendTooManyRequests(HttpExchange exchange) throws IOException {
+		exchange.getResponseHeaders().set("Retry-After", "1");
+		sendError(exchange, 429, "Too many render requests, try again later");
+	}
+
+	private static void sendError(HttpExchange exchange, int code, String message) throws IOException {
+		byte[] bytes = message.getBytes(StandardCharsets.UTF_8);
+		exchange.getResponseHeaders().set("Content-Type", "text/plain; charset=utf-8");
+		exchange.sendResponseHeaders(code, bytes.length);
+		try(OutputStream out = exchange.getResponseBody()) {
+			out.write(bytes);
+		}
+	}
+
+	/**
+	 * Starts a server; the optional arguments are the port and the address to bind to
+	 * (<code>*</code> for all addresses).
+	 */
+	public static void main(String[] args) throws IOException {
+		int port = args.length > 0 ? Integer.parseInt(args[0]) : DEFAULT_PORT;
+		String host = args.length > 1 ? args[1] : "localhost";
+		if("*".equals(host))
+			host = null;
+		FigureServer server = new FigureServer(host, port);
+		server.start();
+		IJ.log("nlFigure server listening on http://" + (host == null ? "*" : host) + ":" + port + "/render");
+	}
+}
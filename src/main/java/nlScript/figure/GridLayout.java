@@ -0,0 +1,127 @@
+package nlScript.figure;
+
+import java.util.Map;
+
+/**
+ * Calculates the widths of the columns and heights of the rows of the panel grid, in mm.
+ *
+ * Each column (row) is either sized automatically, from the largest real world width (height)
+ * of its images, multiplied by a common scale factor, or it has a fixed size, given in mm or
+ * in percent of the space available for panels. The scale factor is chosen such that the
+ * automatically sized columns (rows) fill the space which remains after the fixed ones, but
+ * at most as large as that for which every image in a fixed column (row) still fits it, so
+ * that images drawn with the common magnification do not overflow into their neighbours.
+ */
+final class GridLayout {
+
+	/** A fixed size of a column or row */
+	static final class Size {
+		final double value;
+		final boolean percent;
+
+		private Size(double value, boolean percent) {
+			this.value = value;
+			this.percent = percent;
+		}
+
+		static Size mm(double mm) {
+			return new Size(mm, false);
+		}
+
+		static Size percent(double percent) {
+			return new Size(percent, true);
+		}
+
+		double toMM(double available) {
+			return percent ? value * available / 100 : value;
+		}
+
+		@Override
+		public String toString() {
+			return percent ? value + "%" : value + "mm";
+		}
+	}
+
+	/** Column widths in mm */
+	final double[] columnWidths;
+
+	/** Row heights in mm */
+	final double[] rowHeights;
+
+	/** From real world (image) dimensions to mm, for automatically sized columns and rows */
+	final double scale;
+
+	/**
+	 * @param columnWidthsRW   the largest real world width of the images in each column
+	 * @param rowHeightsRW     the largest real world height of the images in each row
+	 * @param columnSizes      fixed column widths, by column index; other columns are automatic
+	 * @param rowSizes         fixed row heights, by row index; other rows are automatic
+	 * @param availableWidth   the width available for all columns, without gaps, in mm
+	 * @param availableHeight  the height available for all rows (on the first page), without gaps, in mm
+	 */
+	GridLayout(
+			double[] columnWidthsRW, double[] rowHeightsRW,
+			Map<Integer, Size> columnSizes, Map<Integer, Size> rowSizes,
+			double availableWidth, double availableHeight,
+			boolean allColumnsSameWidth, boolean allRowsSameHeight,
+			boolean fitToWidth) {
+
+		if(allColumnsSameWidth)
+			equalize(columnWidthsRW, columnSizes);
+		if(allRowsSameHeight)
+			equalize(rowHeightsRW, rowSizes);
+
+		double scaleX = calculateScale(columnWidthsRW, columnSizes, availableWidth);
+		double scaleY = calculateScale(rowHeightsRW, rowSizes, availableHeight);
+		double s = fitToWidth ? scaleX : Math.min(scaleX, scaleY);
+		if(Double.isInfinite(s) || Double.isNaN(s))
+			s = Double.isInfinite(scaleX) ? (Double.isInfinite(scaleY) ? 1 : scaleY) : scaleX;
+		this.scale = s;
+
+		this.columnWidths = resolve(columnWidthsRW, columnSizes, availableWidth, scale);
+		this.rowHeights = resolve(rowHeightsRW, rowSizes, availableHeight, scale);
+	}
+
+	/**
+	 * Sets all automatically sized entries to the largest of them.
+	 */
+	private static void equalize(double[] natural, Map<Integer, Size> fixed) {
+		double max = 0;
+		for(int i = 0; i < natural.length; i++)
+			if(!fixed.containsKey(i))
+				max = Math.max(max, natural[i]);
+		for(int i = 0; i < natural.length; i++)
+			if(!fixed.containsKey(i))
+				natural[i] = max;
+	}
+
+	private static double calculateScale(double[] natural, Map<Integer, Size> fixed, double available) {
+		double fixedSum = 0;
+		double autoSum = 0;
+		double fitFixed = Double.POSITIVE_INFINITY;
+		for(int i = 0; i < natural.length; i++) {
+			Size size = fixed.get(i);
+			if(size == null) {
+				autoSum += natural[i];
+			}
+			else {
+				double mm = size.toMM(available);
+				fixedSum += mm;
+				if(natural[i] > 0)
+					fitFixed = Math.min(fitFixed, mm / natural[i]);
+			}
+		}
+		if(autoSum > 0)
+			return Math.min(fitFixed, Math.max(0, available - fixedSum) / autoSum);
+		return fitFixed;
+	}
+
+	private static double[] resolve(double[] natural, Map<Integer, Size> fixed, double available, double scale) {
+		double[] mm = new double[natural.length];
+		for(int i = 0; i < natural.length; i++) {
+			Size size = fixed.get(i);
+			mm[i] = size == null ? natural[i] * scale : size.toMM(available);
+		}
+		return mm;
+	}
+}
@@ -0,0 +1,193 @@
+package nlScript.figure;
+
+import ij.CompositeImage;
+import ij.IJ;
+import ij.ImagePlus;
+import ij.process.LUT;
+
+import javax.swing.Timer;
+import javax.swing.event.DocumentEvent;
+import javax.swing.event.DocumentListener;
+import javax.swing.text.JTextComponent;
+import java.awt.Desktop;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+
+/**
+ * Re-renders the script of an editor whenever typing pauses.
+ *
+ * Each edit cancels the render in flight, which stops before its next panel, and restarts
+ * the debounce timer. Scripts are evaluated and rendered on a background thread, each into
+ * a new figure, so the editor stays responsive. Scripts which do not parse yet are skipped.
+ * Completed renders replace the same PDF file, which is opened once.
+ *
+ * Scripts are evaluated against windowless views of the referenced images, which share
+ * their pixels, so that "Modify image" sentences neither change the open images nor touch
+ * their windows from the background thread. Panels are captured as display-ready
+ * snapshots, and the snapshots of the previous figure are released before the next one
+ * is evaluated.
+ */
+final class LiveRender implements DocumentListener {
+
+	static final int DEBOUNCE_MILLIS = 500;
+
+	private final Function<String, ImagePlus> imageResolver;
+
+	private final Timer timer;
+
+	private final ExecutorService executor = Executors.newSingleThreadExecutor(r -> {
+		Thread t = new Thread(r, "Live render");
+		t.setDaemon(true);
+		return t;
+	});
+
+	/** Incremented by each edit, renders of older generations are stale */
+	private final AtomicInteger generation = new AtomicInteger();
+
+	private volatile CompletableFuture<File> current = null;
+
+	private JTextComponent textComponent;
+
+	private File output = null;
+
+	/** The most recently evaluated figure, only accessed by the render thread */
+	private FigureInterface previous = null;
+
+	LiveRender(Function<String, ImagePlus> imageResolver) {
+		this.imageResolver = imageResolver;
+		this.timer = new Timer(DEBOUNCE_MILLIS, e -> scheduleRender());
+		this.timer.setRepeats(false);
+	}
+
+	void install(JTextComponent textComponent) {
+		this.textComponent = textComponent;
+		textComponent.getDocument().addDocumentListener(this);
+	}
+
+	@Override
+	public void insertUpdate(DocumentEvent e) {
+		edited();
+	}
+
+	@Override
+	public void removeUpdate(DocumentEvent e) {
+		edited();
+	}
+
+	@Override
+	public void changedUpdate(DocumentEvent e) {
+	}
+
+	private void edited() {
+		generation.incrementAndGet();
+		CompletableFuture<File> f = current;
+		if(f != null)
+			f.cancel(true);
+		timer.restart();
+	}
+
+	/** Called on the event dispatch thread, once typing paused */
+	private void scheduleRender() {
+		String script = textComponent.getText();
+		int gen = generation.incrementAndGet();
+		executor.execute(() -> render(script, gen));
+	}
+
+	private void render(String script, int gen) {
+		if(gen != generation.get())
+			return;
+
+		if(previous != null) {
+			previous.release();
+			previous = null;
+		}
+
+		Map<String, ImagePlus> views = new HashMap<>();
+		ScriptedFigure scriptedFigure = new ScriptedFigure();
+		scriptedFigure.setImageResolver(title -> views.computeIfAbsent(title, t -> createView(imageResolver.apply(t))));
+		scriptedFigure.setDisplayReadySnapshots(true);
+		FigureInterface figure;
+		try {
+			figure = scriptedFigure.evaluate(script);
+		} catch(RuntimeException e) {
+			// most likely incomplete while typing
+			return;
+		}
+		previous = figure;
+
+		File tmp = null;
+		try {
+			tmp = File.createTempFile("figure", ".pdf");
+			current = figure.createFigureAsync(tmp, null);
+			if(gen != generation.get())
+				current.cancel(true);
+			current.get();
+
+			boolean open = output == null;
+			if(open)
+				output = File.createTempFile("figure-live", ".pdf");
+			Files.move(tmp.toPath(), output.toPath(), StandardCopyOption.REPLACE_EXISTING);
+			if(open)
+				Desktop.getDesktop().open(output);
+		} catch(CancellationException e) {
+			// superseded by a later edit
+		} catch(InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} catch(ExecutionException e) {
+			IJ.log("Cannot render figure: " + e.getCause());
+			tmp.delete();
+		} catch(IOException e) {
+			IJ.log("Cannot render figure: " + e);
+			if(tmp != null)
+				tmp.delete();
+		} finally {
+			current = null;
+		}
+	}
+
+	/**
+	 * A windowless view of <code>imp</code>, which shares its pixels, with copies of its
+	 * position, display settings, overlay and field of view.
+	 */
+	private static ImagePlus createView(ImagePlus imp) {
+		if(imp == null)
+			return null;
+		ImagePlus view = new ImagePlus(imp.getTitle(), imp.getStack());
+		view.setDimensions(imp.getNChannels(), imp.getNSlices(), imp.getNFrames());
+		view.setCalibration(imp.getCalibration());
+		if(imp instanceof CompositeImage && imp.getNChannels() > 1) {
+			CompositeImage ci = (CompositeImage) imp;
+			CompositeImage cview = new CompositeImage(view, ci.getMode());
+			LUT[] luts = ci.getLuts();
+			for(int c = 0; c < luts.length; c++)
+				luts[c] = (LUT) luts[c].clone();
+			cview.setLuts(luts);
+			StringBuilder active = new StringBuilder();
+			for(boolean a : ci.getActiveChannels())
+				active.append(a ? '1' : '0');
+			cview.setActiveChannels(active.substring(0, imp.getNChannels()));
+			view = cview;
+		}
+		view.setPosition(imp.getC(), imp.getZ(), imp.getT());
+		if(!view.isComposite()) {
+			view.getProcessor().setLut(imp.getProcessor().getLut());
+			view.setDisplayRange(imp.getDisplayRangeMin(), imp.getDisplayRangeMax());
+		}
+		if(imp.getOverlay() != null)
+			view.setOverlay(imp.getOverlay().duplicate());
+		view.setHideOverlay(imp.getHideOverlay());
+		view.setProperty(Figure.FIELD_OF_VIEW_PROPERTY, Figure.getFieldOfView(imp));
+		return view;
+	}
+}
@@ -0,0 +1,579 @@
+package nlScript.figure;
+
+import ij.CompositeImage;
+import ij.IJ;
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.gui.ImageCanvas;
+import ij.gui.Overlay;
+import ij.gui.Roi;
+import ij.measure.Calibration;
+import ij.process.ByteProcessor;
+import ij.process.ImageProcessor;
+import ij.process.LUT;
+
+import java.awt.Rectangle;
+import java.awt.image.IndexColorModel;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.function.ObjIntConsumer;
+
+import static nlScript.figure.FigureInterface.SnapshotStorage;
+
+/**
+ * A snapshot of the displayed plane of an image, cropped to its field of view, whose pixels
+ * are stored outside of the Java heap: either in a direct ByteBuffer or in a memory-mapped
+ * temporary file. Only the display settings (LUTs, display ranges, overlay) are kept on the
+ * heap. The pixels are never copied back onto the heap as a whole: they are encoded into the
+ * PDF straight from the buffer, row by row (see {@link #toImagePlus()}).
+ *
+ * Display-ready snapshots only keep the displayed colors, i.e. with display ranges, active
+ * channels and LUTs applied at capture time: packed RGB (3 bytes per pixel) or 8-bit indices
+ * into the displayed palette. Drawing them is a plain encode step.
+ *
+ * With {@link #captureAsync(ImagePlus, Rectangle, SnapshotStorage, boolean)}, only the display settings
+ * are captured immediately; the pixels are copied on a worker thread, and all methods which
+ * need them wait for the copy to finish. This assumes the pixels of the image do not change
+ * in the meantime (changing display settings, overlay or selection is fine).
+ */
+final class OffHeapImage implements PdfImageEncoder.Source {
+
+	/**
+	 * Temporary files of memory-mapped snapshots which were not deleted yet, i.e. of snapshots
+	 * in use, and of released snapshots whose file could not be deleted while still mapped.
+	 * Whatever is left is deleted by a single shutdown hook (unlike File.deleteOnExit(),
+	 * whose list only grows).
+	 */
+	private static final Set<File> TEMP_FILES = new HashSet<>();
+	private static final Set<File> UNDELETED_FILES = new HashSet<>();
+
+	static {
+		Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+			synchronized(TEMP_FILES) {
+				TEMP_FILES.addAll(UNDELETED_FILES);
+				for(File f : TEMP_FILES)
+					f.delete();
+			}
+		}, "nlFigure-snapshot-cleanup"));
+	}
+
+	private final String title;
+	private final int width;
+	private final int height;
+	private final int nChannels;
+	private final int bitDepth;
+	private final Calibration calibration;
+	private final boolean composite;
+	private final int compositeMode;
+	private final String activeChannels;
+
+	/** The displayed (1-based) channel */
+	private final int channel;
+	private final LUT[] luts;
+	private final Overlay overlay;
+	private final Roi roi;
+	private final boolean displayReady;
+
+	/** The size of the pixel buffer, in bytes */
+	private final int size;
+	private final SnapshotStorage storage;
+
+	/** Where to copy the pixels from, until they are copied */
+	private ImageStack source;
+
+	/** For display-ready snapshots, the image to take the displayed colors from, until taken */
+	private ImagePlus displayView;
+
+	private final int[] stackIndices;
+	private final Rectangle fov;
+
+	/** The pending pixel copy, or <code>null</code> if captured synchronously */
+	private CompletableFuture<Void> capture = null;
+
+	private volatile ByteBuffer pixels;
+	private File file;
+
+	/**
+	 * Whether the pixels are (or, while the capture is pending, will be) backed by a file, and
+	 * whether they were released; both are known without waiting for the capture.
+	 */
+	private volatile boolean fileBacked;
+	private volatile boolean released = false;
+
+	private OffHeapImage(ImagePlus imp, Rectangle fov, SnapshotStorage storage, boolean displayReady) {
+		this.title = imp.getTitle();
+		this.width = fov.width;
+		this.height = fov.height;
+		this.displayReady = displayReady;
+		boolean rgb = CompositeRenderer.canRender(imp) || imp.getBitDepth() == 24;
+		this.nChannels = displayReady ? 1 : imp.getNChannels();
+		this.bitDepth = displayReady ? (rgb ? 24 : 8) : imp.getBitDepth();
+		this.calibration = imp.getCalibration().copy();
+		this.composite = !displayReady && imp instanceof CompositeImage;
+		this.channel = displayReady ? 1 : imp.getC();
+
+		if(displayReady) {
+			compositeMode = -1;
+			activeChannels = null;
+			// the palette is known once the colors are taken
+			luts = new LUT[1];
+		}
+		else if(composite) {
+			CompositeImage ci = (CompositeImage) imp;
+			compositeMode = ci.getMode();
+			StringBuilder active = new StringBuilder();
+			for(boolean b : ci.getActiveChannels())
+				active.append(b ? '1' : '0');
+			activeChannels = active.toString();
+			luts = ci.getLuts();
+		}
+		else {
+			compositeMode = -1;
+			activeChannels = null;
+			ImageProcessor ip = imp.getProcessor();
+			LUT lut = bitDepth == 24 ? null : ip.getLut();
+			if(lut != null) {
+				lut.min = ip.getMin();
+				lut.max = ip.getMax();
+			}
+			luts = new LUT[] { lut };
+		}
+
+		Overlay ov = imp.getOverlay();
+		ov = ov == null ? null : ov.crop(fov);
+		ImageCanvas ic = imp.getCanvas();
+		if(ic != null && ic.getShowAllList() != null) {
+			// rois shown from the roi manager
+			if(ov == null)
+				ov = new Overlay();
+			for(Roi roi : ic.getShowAllList().crop(fov))
+				ov.add(roi);
+		}
+		this.overlay = ov;
+		Roi r = imp.getRoi();
+		if(r != null) {
+			r = (Roi) r.clone();
+			Rectangle b = r.getBounds();
+			r.setLocation(b.x - fov.x, b.y - fov.y);
+		}
+		this.roi = r;
+
+		long size = (long) bytesPerPixel() * width * height * nChannels;
+		if(size > Integer.MAX_VALUE)
+			throw new RuntimeException("Field of view of " + title + " is too large for an off-heap snapshot");
+		this.size = (int) size;
+		this.storage = storage;
+		this.fileBacked = storage == SnapshotStorage.MAPPED;
+
+		this.fov = new Rectangle(fov);
+		if(displayReady) {
+			this.displayView = createDisplayView(imp);
+			this.stackIndices = new int[0];
+		}
+		else {
+			this.source = imp.getStack();
+			this.stackIndices = new int[nChannels];
+			for(int c = 0; c < nChannels; c++)
+				stackIndices[c] = imp.getStackIndex(c + 1, imp.getZ(), imp.getT());
+		}
+	}
+
+	/**
+	 * The current plane of <code>imp</code>, sharing its pixel arrays, but with a copy of its
+	 * display settings, which are thereby fixed at capture time.
+	 */
+	private static ImagePlus createDisplayView(ImagePlus imp) {
+		int nChannels = imp.getNChannels();
+		ImageStack stack = new ImageStack(imp.getWidth(), imp.getHeight());
+		for(int c = 1; c <= nChannels; c++) {
+			ImageProcessor ip = imp.getStack().getProcessor(imp.getStackIndex(c, imp.getZ(), imp.getT()));
+			ImageProcessor view = ip.createProcessor(ip.getWidth(), ip.getHeight());
+			view.setPixels(ip.getPixels());
+			stack.addSlice(view);
+		}
+		ImagePlus view = new ImagePlus(imp.getTitle(), stack);
+		if(imp instanceof CompositeImage && nChannels > 1) {
+			CompositeImage src = (CompositeImage) imp;
+			view.setDimensions(nChannels, 1, 1);
+			CompositeImage ci = new CompositeImage(view, src.getMode());
+			LUT[] luts = src.getLuts();
+			for(int c = 0; c < luts.length; c++)
+				luts[c] = (LUT) luts[c].clone();
+			ci.setLuts(luts);
+			System.arraycopy(src.getActiveChannels(), 0, ci.getActiveChannels(), 0, nChannels);
+			ci.setPosition(imp.getC(), 1, 1);
+			return ci;
+		}
+		if(imp.getBitDepth() != 24) {
+			ImageProcessor src = imp.getProcessor();
+			ImageProcessor ip = view.getProcessor();
+			ip.setLut(src.getLut());
+			ip.setMinAndMax(src.getMin(), src.getMax());
+		}
+		return view;
+	}
+
+	/**
+	 * Captures the current plane of <code>imp</code> (all channels), cropped to <code>fov</code>.
+	 */
+	static OffHeapImage capture(ImagePlus imp, Rectangle fov, SnapshotStorage storage, boolean displayReady) {
+		OffHeapImage snapshot = new OffHeapImage(imp, fov, storage, displayReady);
+		snapshot.copyPixels();
+		return snapshot;
+	}
+
+	/**
+	 * Captures the display settings of the current plane of <code>imp</code> immediately, and
+	 * copies its pixels (all channels, cropped to <code>fov</code>) on a worker thread.
+	 */
+	static OffHeapImage captureAsync(ImagePlus imp, Rectangle fov, SnapshotStorage storage, boolean displayReady) {
+		OffHeapImage snapshot = new OffHeapImage(imp, fov, storage, displayReady);
+		snapshot.capture = CompletableFuture.runAsync(snapshot::copyPixels);
+		return snapshot;
+	}
+
+	private void copyPixels() {
+		ByteBuffer buffer = allocate(size, storage);
+		if(displayView != null)
+			storeDisplayed(buffer, displayView);
+		for(int index : stackIndices)
+			store(buffer, source.getProcessor(index), fov);
+		source = null;
+		displayView = null;
+		synchronized(this) {
+			pixels = buffer;
+			// spilled while the capture was pending
+			if(fileBacked)
+				moveToFile();
+		}
+	}
+
+	/**
+	 * Stores the displayed colors within the field of view of <code>view</code>, as packed RGB
+	 * or as 8-bit indices, whose palette becomes the LUT of this snapshot.
+	 */
+	private void storeDisplayed(ByteBuffer buffer, ImagePlus view) {
+		int n = fov.width * fov.height;
+		if(bitDepth == 24) {
+			int[] rgb = PdfImageEncoder.toRGB(view, fov);
+			for(int i = 0; i < n; i++)
+				buffer.put((byte) (rgb[i] >> 16)).put((byte) (rgb[i] >> 8)).put((byte) rgb[i]);
+			return;
+		}
+		PdfImageEncoder.Indexed indexed = PdfImageEncoder.toIndexed(view, fov);
+		buffer.put(indexed.indices, 0, n);
+		byte[] r = new byte[256], g = new byte[256], b = new byte[256];
+		if(indexed.palette == null) {
+			for(int i = 0; i < 256; i++)
+				r[i] = g[i] = b[i] = (byte) i;
+		}
+		else {
+			indexed.palette.getReds(r);
+			indexed.palette.getGreens(g);
+			indexed.palette.getBlues(b);
+		}
+		LUT lut = new LUT(r, g, b);
+		lut.min = 0;
+		lut.max = 255;
+		luts[0] = lut;
+	}
+
+	/**
+	 * Waits until the pixels are copied, see {@link #captureAsync(ImagePlus, Rectangle, SnapshotStorage, boolean)}.
+	 */
+	void awaitCapture() {
+		if(capture == null)
+			return;
+		try {
+			capture.join();
+		} catch(CompletionException e) {
+			throw new RuntimeException("Cannot capture snapshot of " + title, e.getCause());
+		}
+	}
+
+	private int bytesPerPixel() {
+		if(displayReady && bitDepth == 24)
+			return 3;
+		switch(bitDepth) {
+			case 8:  return 1;
+			case 16: return 2;
+			default: return 4;
+		}
+	}
+
+	private ByteBuffer allocate(int size, SnapshotStorage storage) {
+		// images without a window are captured like this, too, even if the storage is HEAP
+		if(storage == SnapshotStorage.HEAP)
+			return ByteBuffer.allocate(size).order(ByteOrder.nativeOrder());
+		if(storage != SnapshotStorage.MAPPED)
+			return ByteBuffer.allocateDirect(size).order(ByteOrder.nativeOrder());
+
+		try {
+			file = File.createTempFile("nlFigure", ".pixels");
+			synchronized(TEMP_FILES) {
+				TEMP_FILES.add(file);
+			}
+			try(RandomAccessFile raf = new RandomAccessFile(file, "rw");
+				FileChannel channel = raf.getChannel()) {
+				// the mapping stays valid after the channel is closed
+				return channel.map(FileChannel.MapMode.READ_WRITE, 0, size).order(ByteOrder.nativeOrder());
+			}
+		} catch(IOException e) {
+			throw new RuntimeException("Cannot create memory-mapped snapshot of " + title, e);
+		}
+	}
+
+	/**
+	 * Appends the field of view of <code>ip</code> to the pixel buffer, row by row, without
+	 * an intermediate copy on the heap.
+	 */
+	private void store(ByteBuffer pixels, ImageProcessor ip, Rectangle fov) {
+		int w = ip.getWidth();
+		Object src = ip.getPixels();
+		for(int y = fov.y; y < fov.y + fov.height; y++) {
+			int offset = y * w + fov.x;
+			switch(bitDepth) {
+				case 8:
+					pixels.put((byte[]) src, offset, fov.width);
+					break;
+				case 16:
+					pixels.asShortBuffer().put((short[]) src, offset, fov.width);
+					pixels.position(pixels.position() + 2 * fov.width);
+					break;
+				case 24:
+					pixels.asIntBuffer().put((int[]) src, offset, fov.width);
+					pixels.position(pixels.position() + 4 * fov.width);
+					break;
+				default:
+					pixels.asFloatBuffer().put((float[]) src, offset, fov.width);
+					pixels.position(pixels.position() + 4 * fov.width);
+					break;
+			}
+		}
+	}
+
+	/**
+	 * The number of bytes held outside of the Java heap.
+	 */
+	long getSize() {
+		return released || storage == SnapshotStorage.HEAP && !fileBacked ? 0 : size;
+	}
+
+	/**
+	 * The number of bytes held in memory (on or off the heap), i.e. 0 for memory-mapped
+	 * snapshots, whose pages are backed by a file. Does not wait for a pending capture.
+	 */
+	long getResidentSize() {
+		return released || fileBacked ? 0 : size;
+	}
+
+	/**
+	 * Moves the pixels of this snapshot into a memory-mapped temporary file, which frees the
+	 * heap or direct buffer. Pixels are paged back in by the operating system when read. If
+	 * the capture is still pending, the pixels are moved once they are copied, on the capture
+	 * thread, so this does not wait for it.
+	 */
+	synchronized void spill() {
+		if(fileBacked || released)
+			return;
+		fileBacked = true;
+		if(pixels != null)
+			moveToFile();
+	}
+
+	private void moveToFile() {
+		if(file != null)
+			return;
+		ByteBuffer mapped = allocate(size, SnapshotStorage.MAPPED);
+		ByteBuffer src = pixels.duplicate();
+		src.clear();
+		mapped.put(src);
+		mapped.clear();
+		pixels = mapped;
+	}
+
+	/**
+	 * Creates a (temporary) ImagePlus for drawing this snapshot, without a window, with the
+	 * captured calibration, overlay and selection. The pixels are not copied onto the heap:
+	 * the image only holds an empty 8-bit plane, for its geometry, and refers to this snapshot
+	 * as its {@link PdfImageEncoder#SOURCE_PROPERTY}, from which the displayed pixels are
+	 * encoded row by row.
+	 */
+	ImagePlus toImagePlus() {
+		getPixels();
+		ImagePlus imp = new ImagePlus(title, new ByteProcessor(width, height));
+		imp.setProperty(PdfImageEncoder.SOURCE_PROPERTY, this);
+		imp.setCalibration(calibration.copy());
+		if(overlay != null)
+			imp.setOverlay(overlay.duplicate());
+		if(roi != null)
+			imp.setRoi((Roi) roi.clone());
+		return imp;
+	}
+
+	@Override
+	public boolean isRGB() {
+		return bitDepth == 24 || composite && compositeMode == IJ.COMPOSITE;
+	}
+
+	@Override
+	public IndexColorModel getPalette() {
+		if(isRGB())
+			return null;
+		if(composite)
+			return compositeMode == IJ.GRAYSCALE ? null : luts[channel - 1];
+		return luts[0];
+	}
+
+	@Override
+	public void readRows(Rectangle r, ObjIntConsumer<Object> consumer) {
+		ByteBuffer pixels = getPixels();
+		ByteBuffer buffer = pixels.duplicate().order(pixels.order());
+		int bpp = bytesPerPixel();
+		int plane = width * height;
+
+		if(!isRGB()) {
+			// the displayed channel, mapped to 8-bit with its display range, unless stored like that
+			int c = channel - 1;
+			LUT lut = composite ? luts[c] : luts[0];
+			byte[] row = new byte[r.width];
+			Object values = displayReady ? row : newRow(r.width);
+			for(int y = 0; y < r.height; y++) {
+				buffer.position((c * plane + (r.y + y) * width + r.x) * bpp);
+				readRow(buffer, values);
+				if(!displayReady)
+					PdfImageEncoder.toIndices(values, 0, r.width, lut.min, lut.max, row, 0);
+				consumer.accept(row, y);
+			}
+			return;
+		}
+
+		int[] row = new int[r.width];
+		if(displayReady) {
+			for(int y = 0; y < r.height; y++) {
+				buffer.position(((r.y + y) * width + r.x) * bpp);
+				for(int x = 0; x < r.width; x++)
+					row[x] = (buffer.get() & 0xff) << 16 | (buffer.get() & 0xff) << 8 | (buffer.get() & 0xff);
+				consumer.accept(row, y);
+			}
+			return;
+		}
+		if(bitDepth == 24) {
+			for(int y = 0; y < r.height; y++) {
+				buffer.position(((r.y + y) * width + r.x) * bpp);
+				buffer.asIntBuffer().get(row);
+				consumer.accept(row, y);
+			}
+			return;
+		}
+
+		// composite: merge the active channels, like CompositeRenderer does
+		int[] active = new int[nChannels];
+		int nActive = 0;
+		for(int c = 0; c < nChannels; c++)
+			if(c < activeChannels.length() && activeChannels.charAt(c) == '1')
+				active[nActive++] = c;
+		int[][] tables = new int[nActive][];
+		Object[] values = new Object[nActive];
+		for(int i = 0; i < nActive; i++) {
+			values[i] = newRow(r.width);
+			if(bitDepth != 32)
+				tables[i] = CompositeRenderer.getTable(luts[active[i]], bitDepth == 16 ? 65536 : 256);
+		}
+		for(int y = 0; y < r.height; y++) {
+			if(nActive == 0)
+				Arrays.fill(row, 0);
+			for(int i = 0; i < nActive; i++) {
+				buffer.position((active[i] * plane + (r.y + y) * width + r.x) * bpp);
+				readRow(buffer, values[i]);
+				CompositeRenderer.addRow(i == 0, values[i], 0, tables[i], luts[active[i]], row, 0, r.width);
+			}
+			consumer.accept(row, y);
+		}
+	}
+
+	private Object newRow(int n) {
+		switch(bitDepth) {
+			case 8:  return new byte[n];
+			case 16: return new short[n];
+			default: return new float[n];
+		}
+	}
+
+	/** Fills <code>row</code> from the current position of <code>buffer</code> */
+	private static void readRow(ByteBuffer buffer, Object row) {
+		if(row instanceof byte[])
+			buffer.get((byte[]) row);
+		else if(row instanceof short[])
+			buffer.asShortBuffer().get((short[]) row);
+		else
+			buffer.asFloatBuffer().get((float[]) row);
+	}
+
+	/** The pixel buffer, once captured */
+	private ByteBuffer getPixels() {
+		awaitCapture();
+		ByteBuffer ret = pixels;
+		if(ret == null)
+			throw new IllegalStateException("Snapshot of " + title + " has been released");
+		return ret;
+	}
+
+	/**
+	 * Feeds the pixels and display settings of this snapshot into <code>md</code>.
+	 */
+	void digestPixels(MessageDigest md) {
+		ByteBuffer pixels = getPixels();
+		RenderCache.update(md, width, height, nChannels, channel, bitDepth, composite, compositeMode, activeChannels);
+		ByteBuffer buffer = pixels.duplicate();
+		buffer.clear();
+		md.update(buffer);
+		for(LUT lut : luts)
+			RenderCache.update(md, lut);
+	}
+
+	/**
+	 * Feeds the overlay and selection of this snapshot into <code>md</code>.
+	 */
+	void digestOverlay(MessageDigest md) {
+		RenderCache.update(md, overlay);
+		RenderCache.update(md, roi);
+	}
+
+	/**
+	 * Releases the pixel buffer. Direct buffers are freed by the garbage collector once
+	 * unreferenced, memory-mapped files are deleted. If the platform does not allow deleting a
+	 * file which is still mapped, it is deleted by a later release, or on exit.
+	 */
+	void release() {
+		try {
+			awaitCapture();
+		} catch(RuntimeException ignored) {
+			// nothing to release
+		}
+		File f;
+		synchronized(this) {
+			released = true;
+			pixels = null;
+			f = file;
+			file = null;
+		}
+		if(f == null)
+			return;
+		synchronized(TEMP_FILES) {
+			TEMP_FILES.remove(f);
+			UNDELETED_FILES.add(f);
+			UNDELETED_FILES.removeIf(File::delete);
+		}
+	}
+}
@@ -1,17 +1,29 @@
 package nlScript.figure;
 
 import com.itextpdf.awt.PdfGraphics2D;
+import com.itextpdf.text.BadElementException;
 import com.itextpdf.text.Document;
 import com.itextpdf.text.DocumentException;
+import com.itextpdf.text.Image;
 import com.itextpdf.text.PageSize;
 import com.itextpdf.text.Rectangle;
 import com.itextpdf.text.RectangleReadOnly;
+import com.itextpdf.text.io.RandomAccessSourceFactory;
+import com.itextpdf.text.pdf.ByteBuffer;
 import com.itextpdf.text.pdf.PdfContentByte;
 import com.itextpdf.text.pdf.PdfFormXObject;
+import com.itextpdf.text.pdf.PdfImage;
+import com.itextpdf.text.pdf.PdfName;
+import com.itextpdf.text.pdf.PdfReader;
+import com.itextpdf.text.pdf.PdfSmartCopy;
+import com.itextpdf.text.pdf.PdfStamper;
+import com.itextpdf.text.pdf.PdfTemplate;
 import com.itextpdf.text.pdf.PdfWriter;
+import com.itextpdf.text.pdf.RandomAccessFileOrArray;
 import ij.IJ;
 import ij.ImagePlus;
 import ij.gui.CustomImageCanvas;
+import ij.gui.ImageCanvas;
 
 import java.awt.BasicStroke;
 import java.awt.Color;
@@ -22,10 +34,17 @@ import java.awt.font.FontRenderContext;
 import java.awt.geom.AffineTransform;
 import java.awt.geom.Ellipse2D;
 import java.awt.geom.Rectangle2D;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
+import java.io.FilterOutputStream;
 import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 
 public class PDFVectorDocument implements VectorDocument {
 
@@ -46,19 +65,83 @@ public class PDFVectorDocument implements VectorDocument {
 
 	private double angle = 0;
 
+	private int lastImageNumber = -1;
+
+	/** Converts colors to CMYK if not <code>null</code>, see {@link #setCmykProfile(File)} */
+	private CmykTransform cmyk = null;
+
+	/** The form currently drawn into, see {@link #beginForm()} */
+	private Form form = null;
+
+	/** The page graphics, while drawing into a form */
+	private Graphics2D pageGraphics = null;
+
+	/**
+	 * Static content which is drawn once, as a form XObject, and shown on several pages. Images
+	 * are not part of the form: only their placement is recorded, and their pixels are added
+	 * to each page separately by {@link #drawFormImage(Form, int, ImagePlus)}.
+	 */
+	public static final class Form {
+		private final PdfTemplate template;
+
+		/** For each image, the PDF matrix which maps the unit square onto the image rectangle */
+		private final List<double[]> imageMatrices = new ArrayList<>();
+
+		/** The last image drawn at each placement, to reuse its XObject if unchanged */
+		private final List<ImagePlus> lastImages = new ArrayList<>();
+		private final List<Image> lastEncoded = new ArrayList<>();
+
+		private Form(PdfTemplate template) {
+			this.template = template;
+		}
+
+		public int getImageCount() {
+			return imageMatrices.size();
+		}
+	}
+
 	@Override
 	public void startDocument(File file, double width, double height) {
 		this.file = file;
+		try {
+			startDocument(new FileOutputStream(file), width, height);
+		} catch (FileNotFoundException e) {
+			throw new RuntimeException("Cannot create PDF document " + file, e);
+		}
+	}
+
+	/**
+	 * Writes print-ready CMYK instead of RGB, for the given ICC output profile, which is also
+	 * embedded as output intent; <code>null</code> switches back to RGB. Must be called before
+	 * {@link #startDocument(OutputStream, double, double)}.
+	 *
+	 * Images are converted when they are encoded; vector colors (fill and stroke colors,
+	 * including text) are converted in the content stream of each page and form, once it is
+	 * complete and before it is written. Both use the same cached transform, see
+	 * {@link CmykTransform}.
+	 */
+	public void setCmykProfile(File iccProfile) {
+		this.cmyk = iccProfile == null ? null : CmykTransform.forProfile(iccProfile);
+	}
+
+	@Override
+	public void startDocument(OutputStream out, double width, double height) {
 		RectangleReadOnly pageSize = new RectangleReadOnly((float)(width * PIXEL_PER_MM), (float)(height * PIXEL_PER_MM));
 		document = new Document(pageSize);
 		try {
-			pdfWriter = PdfWriter.getInstance(document, new FileOutputStream(file));
-		} catch (DocumentException | FileNotFoundException e) {
-			throw new RuntimeException("Cannot create PDF document " + file, e);
+			pdfWriter = PdfWriter.getInstance(document, out);
+		} catch (DocumentException e) {
+			throw new RuntimeException("Cannot create PDF document " + (file != null ? file : ""), e);
 		}
+		if(cmyk != null)
+			cmyk.setOutputIntent(pdfWriter);
 		document.open();
-		PdfContentByte cb = pdfWriter.getDirectContent();
-		graphics = new PdfGraphics2D(cb, pageSize.getWidth(), pageSize.getHeight());
+		initGraphics(pdfWriter.getDirectContent());
+	}
+
+	private void initGraphics(PdfContentByte cb) {
+		Rectangle pageSize = pdfWriter.getPageSize();
+		graphics = new PdfGraphics2D(cb, pageSize.getWidth(), pageSize.getHeight(), CachingFontMapper.getInstance());
 		graphics.scale(PIXEL_PER_MM, PIXEL_PER_MM);
 
 		setStrokeWidth(strokeWidth);
@@ -67,24 +150,121 @@ public class PDFVectorDocument implements VectorDocument {
 		setFont(font);
 	}
 
+	/**
+	 * In CMYK mode, replaces the RGB colors in the (complete) content of <code>cb</code>.
+	 */
+	private void convertColors(PdfContentByte cb) {
+		if(cmyk == null)
+			return;
+		ByteBuffer content = cb.getInternalBuffer();
+		byte[] converted = cmyk.convertVectorColors(content.toByteArray());
+		content.reset();
+		content.append(converted);
+	}
+
+	/**
+	 * Concatenates the pages of the given (complete) PDF documents into <code>out</code>, which
+	 * is closed afterwards. Resources which are identical across the documents, like images and
+	 * fonts, are only stored once.
+	 */
+	public static void merge(List<byte[]> documents, OutputStream out) {
+		merge(documents, out, null);
+	}
+
+	/**
+	 * Like {@link #merge(List, OutputStream)}, for documents written in CMYK mode with the
+	 * given ICC output profile, which is declared as output intent of the merged document.
+	 */
+	public static void merge(List<byte[]> documents, OutputStream out, File iccProfile) {
+		Document document = new Document();
+		try {
+			PdfSmartCopy copy = new PdfSmartCopy(document, out);
+			if(iccProfile != null)
+				CmykTransform.forProfile(iccProfile).setOutputIntent(copy);
+			document.open();
+			for(byte[] pdf : documents) {
+				PdfReader reader = new PdfReader(pdf);
+				for(int p = 1; p <= reader.getNumberOfPages(); p++)
+					copy.addPage(copy.getImportedPage(reader, p));
+				copy.freeReader(reader);
+				reader.close();
+			}
+			document.close();
+		} catch (DocumentException | IOException e) {
+			throw new RuntimeException("Cannot merge pages into PDF document", e);
+		}
+	}
+
 	@Override
 	public void newPage() {
 		graphics.dispose();
+		convertColors(pdfWriter.getDirectContent());
 		document.newPage();
-		PdfContentByte cb = pdfWriter.getDirectContent();
+		initGraphics(pdfWriter.getDirectContent());
+	}
+
+	/**
+	 * Redirects all drawing into a new form of the size of a page, until {@link #endForm()}.
+	 */
+	public void beginForm() {
+		if(form != null)
+			throw new IllegalStateException("Already drawing into a form");
 		Rectangle pageSize = pdfWriter.getPageSize();
-		graphics = new PdfGraphics2D(cb, pageSize.getWidth(), pageSize.getHeight());
-		graphics.scale(PIXEL_PER_MM, PIXEL_PER_MM);
+		form = new Form(pdfWriter.getDirectContent().createTemplate(pageSize.getWidth(), pageSize.getHeight()));
+		pageGraphics = graphics;
+		initGraphics(form.template);
+	}
 
+	public Form endForm() {
+		if(form == null)
+			throw new IllegalStateException("Not drawing into a form");
+		graphics.dispose();
+		convertColors(form.template);
+		graphics = pageGraphics;
+		pageGraphics = null;
+		Form ret = form;
+		form = null;
 		setStrokeWidth(strokeWidth);
 		setStrokeColor(strokeColor);
 		setFillColor(fillColor);
 		setFont(font);
+		return ret;
+	}
+
+	/**
+	 * Shows the static content of <code>form</code> on the current page.
+	 */
+	public void drawForm(Form form) {
+		drawForm(form, 0, 0);
+	}
+
+	/**
+	 * Shows the static content of <code>form</code> on the current page, shifted by
+	 * (<code>dx</code>, <code>dy</code>) mm.
+	 */
+	public void drawForm(Form form, double dx, double dy) {
+		pdfWriter.getDirectContent().addTemplate(form.template, (float) (dx * PIXEL_PER_MM), (float) (-dy * PIXEL_PER_MM));
+	}
+
+	/**
+	 * Draws <code>image</code> on the current page, where the <code>index</code>-th image of
+	 * <code>form</code> was placed. Passing the same image as for the previous page reuses its
+	 * image XObject.
+	 */
+	public void drawFormImage(Form form, int index, ImagePlus image) {
+		Image img = form.lastImages.get(index) == image ? form.lastEncoded.get(index) : null;
+		if(img == null) {
+			img = encode(image, getSourceRect(image));
+			form.lastImages.set(index, image);
+			form.lastEncoded.set(index, img);
+		}
+		addImage(img, form.imageMatrices.get(index), image.getTitle());
 	}
 
 	@Override
 	public File endDocument() {
 		graphics.dispose();
+		convertColors(pdfWriter.getDirectContent());
 		document.close();
 		return file;
 	}
@@ -186,23 +366,37 @@ public class PDFVectorDocument implements VectorDocument {
 		AffineTransform tx = graphics.getTransform();
 		rotate(rect.x, rect.y, width, height);
 
+		ImageCanvas ic = image.getCanvas();
+		java.awt.Rectangle srcRect = getSourceRect(image);
+
+		// one unit per source pixel, the field of view fills the whole rectangle
 		AffineTransform t = new AffineTransform();
 		t.translate(rect.x, rect.y);
-		t.scale(width / image.getWidth(), height / image.getHeight()); // scale = 1
+		t.scale(width / srcRect.width, height / srcRect.height);
 
 		graphics.transform(t);
-		graphics.clipRect(0, 0, image.getWidth(), image.getHeight());
+		graphics.clipRect(0, 0, srcRect.width, srcRect.height);
 
-		Graphics2D gCopy = (Graphics2D) graphics.create();
+		if(form != null) {
+			form.imageMatrices.add(getImageMatrix(srcRect));
+			form.lastImages.add(null);
+			form.lastEncoded.add(null);
+			lastImageNumber = -1;
+		}
+		else {
+			drawPixels(image, srcRect);
+		}
 
-		// graphics.drawImage(image.getImage(), new AffineTransform(), null);
+		// overlay and selection on top of the pixels
+		Graphics2D gCopy = (Graphics2D) graphics.create();
 		CustomImageCanvas cic = new CustomImageCanvas(image);
-		cic.setMagnification(image.getCanvas().getMagnification());
-		cic.setSourceRect(image.getCanvas().getSrcRect());
+		cic.setPaintImage(false);
+		cic.setSize(srcRect.width, srcRect.height);
+		cic.setSourceRect(srcRect);
+		if(ic != null)
+			cic.setShowAllList(ic.getShowAllList());
 		cic.setOverlay(image.getOverlay());
-		cic.setShowAllList(image.getCanvas().getShowAllList());
 		cic.paint(gCopy);
-		// if(roi != null) ((Roi)roi.clone()).draw(graphics);
 		gCopy.dispose();
 
 		graphics.setClip(null);
@@ -210,6 +404,162 @@ public class PDFVectorDocument implements VectorDocument {
 		graphics.setTransform(tx);
 	}
 
+	/**
+	 * The object number of the image XObject written by the last call to
+	 * {@link #makeImage(ImagePlus, double, double, double, double, Alignment, boolean, boolean)},
+	 * which can be replaced later by {@link #updateImages(File, Map, Map)}.
+	 */
+	public int getLastImageNumber() {
+		return lastImageNumber;
+	}
+
+	/**
+	 * Writes the pixels within <code>srcRect</code> as an image XObject, straight from the
+	 * pixel arrays (see {@link PdfImageEncoder}), into the unit rectangle
+	 * (0, 0, srcRect.width, srcRect.height) of the current graphics transform.
+	 */
+	private void drawPixels(ImagePlus image, java.awt.Rectangle srcRect) {
+		addImage(encode(image, srcRect), getImageMatrix(srcRect), image.getTitle());
+	}
+
+	private Image encode(ImagePlus image, java.awt.Rectangle srcRect) {
+		try {
+			return PdfImageEncoder.encode(image, srcRect, cmyk);
+		} catch(BadElementException e) {
+			throw new RuntimeException("Cannot encode image " + image.getTitle(), e);
+		}
+	}
+
+	/**
+	 * The PDF matrix which maps image space (the unit square) onto the rectangle
+	 * (0, 0, srcRect.width, srcRect.height) of the current graphics transform.
+	 */
+	private double[] getImageMatrix(java.awt.Rectangle srcRect) {
+		// PdfGraphics2D flips y; image space is the unit square, with y pointing up
+		AffineTransform m = new AffineTransform(1, 0, 0, -1, 0, pdfWriter.getPageSize().getHeight());
+		m.concatenate(graphics.getTransform());
+		m.concatenate(new AffineTransform(srcRect.width, 0, 0, -srcRect.height, 0, srcRect.height));
+		double[] d = new double[6];
+		m.getMatrix(d);
+		return d;
+	}
+
+	private void addImage(Image img, double[] d, String title) {
+		try {
+			PdfName name = pdfWriter.addDirectImageSimple(img);
+			lastImageNumber = pdfWriter.getImageReference(name).getNumber();
+			pdfWriter.getDirectContent().addImage(img,
+					(float) d[0], (float) d[1], (float) d[2], (float) d[3], (float) d[4], (float) d[5]);
+		} catch(DocumentException e) {
+			throw new RuntimeException("Cannot add image " + title + " to PDF document", e);
+		}
+	}
+
+	/**
+	 * The part of <code>image</code> to draw: the {@link Figure#FIELD_OF_VIEW_PROPERTY} if set,
+	 * otherwise the displayed part; images which are not displayed (e.g. read from a
+	 * PanelSource) are drawn as a whole.
+	 */
+	static java.awt.Rectangle getSourceRect(ImagePlus image) {
+		Object fov = image.getProperty(Figure.FIELD_OF_VIEW_PROPERTY);
+		if(fov instanceof java.awt.Rectangle)
+			return ((java.awt.Rectangle) fov).intersection(new java.awt.Rectangle(0, 0, image.getWidth(), image.getHeight()));
+		ImageCanvas ic = image.getCanvas();
+		return ic != null
+				? ic.getSrcRect()
+				: new java.awt.Rectangle(0, 0, image.getWidth(), image.getHeight());
+	}
+
+	/**
+	 * Adds a custom entry to the document information dictionary.
+	 */
+	public void setInfo(String key, String value) {
+		document.addHeader(key, value);
+	}
+
+	/**
+	 * Reads the document information dictionary of <code>file</code>.
+	 */
+	public static Map<String, String> readInfo(File file) {
+		try {
+			PdfReader reader = new PdfReader(openPartially(file), null);
+			try {
+				return new HashMap<>(reader.getInfo());
+			} finally {
+				reader.close();
+			}
+		} catch (IOException e) {
+			throw new RuntimeException("Cannot read PDF document " + file, e);
+		}
+	}
+
+	/**
+	 * Replaces image XObjects of <code>file</code>, given by their object numbers (see
+	 * {@link #getLastImageNumber()}), by the current pixels of the given images, and merges
+	 * <code>info</code> into the document information dictionary.
+	 *
+	 * The new objects are written as an incremental update, which is appended to the file;
+	 * pages, content streams and all other resources are neither read completely nor
+	 * rewritten.
+	 */
+	public static void updateImages(File file, Map<Integer, ImagePlus> images, Map<String, String> info) {
+		ByteArrayOutputStream increment = new ByteArrayOutputStream();
+		try {
+			PdfReader reader = new PdfReader(openPartially(file), null);
+			try {
+				// in append mode, the stamper first copies the original file, which is skipped here
+				PdfStamper stamper = new PdfStamper(reader, new SkippingOutputStream(increment, file.length()), '\0', true);
+				PdfWriter writer = stamper.getWriter();
+				for(Map.Entry<Integer, ImagePlus> entry : images.entrySet()) {
+					ImagePlus imp = entry.getValue();
+					Image img = PdfImageEncoder.encode(imp, getSourceRect(imp));
+					writer.addToBody(new PdfImage(img, "", null), entry.getKey());
+				}
+				stamper.setMoreInfo(new HashMap<>(info));
+				stamper.close();
+			} finally {
+				reader.close();
+			}
+			try(OutputStream out = new FileOutputStream(file, true)) {
+				increment.writeTo(out);
+			}
+		} catch (DocumentException | IOException e) {
+			throw new RuntimeException("Cannot update PDF document " + file, e);
+		}
+	}
+
+	private static RandomAccessFileOrArray openPartially(File file) throws IOException {
+		return new RandomAccessFileOrArray(new RandomAccessSourceFactory().createBestSource(file.getAbsolutePath()));
+	}
+
+	/**
+	 * Discards the first <code>skip</code> bytes written to it.
+	 */
+	private static final class SkippingOutputStream extends FilterOutputStream {
+		private long skip;
+
+		SkippingOutputStream(OutputStream out, long skip) {
+			super(out);
+			this.skip = skip;
+		}
+
+		@Override
+		public void write(int b) throws IOException {
+			if(skip > 0)
+				skip--;
+			else
+				out.write(b);
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			int skipped = (int) Math.min(skip, len);
+			skip -= skipped;
+			if(len > skipped)
+				out.write(b, off + skipped, len - skipped);
+		}
+	}
+
 	@Override
 	public Rectangle2D getStringBounds(String text, Font font) {
 		FontRenderContext frc = new FontRenderContext(null, true, true);
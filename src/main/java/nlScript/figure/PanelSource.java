@@ -0,0 +1,42 @@
+package nlScript.figure;
+
+import ij.ImagePlus;
+import ij.measure.Calibration;
+
+import java.awt.Rectangle;
+
+/**
+ * A source of panel pixels which is not held in memory as a whole, but read
+ * on demand, restricted to the field of view and at the resolution needed for
+ * drawing.
+ */
+public interface PanelSource {
+
+	String getTitle();
+
+	/** The width of the source, in full resolution pixels */
+	int getWidth();
+
+	/** The height of the source, in full resolution pixels */
+	int getHeight();
+
+	/** The calibration of the source, at full resolution */
+	Calibration getCalibration();
+
+	/**
+	 * Reads the given field of view, which is specified in full resolution pixel coordinates.
+	 * The returned image covers exactly the field of view, but may be of lower resolution,
+	 * as long as it is at least <code>targetWidth</code> pixels wide (or the finest available
+	 * resolution otherwise). Its calibration is adjusted accordingly.
+	 */
+	ImagePlus read(Rectangle fov, int targetWidth);
+
+	/**
+	 * Identifies the content of this source, e.g. for caching rendered figures: sources with
+	 * equal fingerprints are expected to provide equal pixels. Returns <code>null</code> if
+	 * the content cannot be identified without reading it.
+	 */
+	default String getFingerprint() {
+		return null;
+	}
+}
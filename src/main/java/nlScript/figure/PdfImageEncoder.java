@@ -0,0 +1,322 @@
+package nlScript.figure;
+
+import com.itextpdf.text.BadElementException;
+import com.itextpdf.text.Image;
+import com.itextpdf.text.pdf.PdfArray;
+import com.itextpdf.text.pdf.PdfDictionary;
+import com.itextpdf.text.pdf.PdfName;
+import com.itextpdf.text.pdf.PdfNumber;
+import com.itextpdf.text.pdf.PdfString;
+import ij.CompositeImage;
+import ij.IJ;
+import ij.ImagePlus;
+import ij.process.ByteProcessor;
+import ij.process.ImageProcessor;
+import ij.process.LUT;
+
+import java.awt.Rectangle;
+import java.awt.image.ColorModel;
+import java.awt.image.IndexColorModel;
+import java.lang.ref.SoftReference;
+import java.util.function.ObjIntConsumer;
+
+/**
+ * Creates PDF image XObjects directly from the pixel arrays of an image, without going
+ * through AWT:
+ * <ul>
+ *   <li>single channels with a grayscale LUT are written as 1-component DeviceGray,</li>
+ *   <li>single channels with any other LUT are written as Indexed color, with the LUT as palette,</li>
+ *   <li>RGB images and multi-channel composites are written as DeviceRGB.</li>
+ * </ul>
+ * If a {@link CmykTransform} is given, DeviceRGB and Indexed RGB are replaced by DeviceCMYK
+ * and Indexed CMYK, respectively; grayscale images remain DeviceGray.
+ *
+ * Images which have a {@link Source} set as {@link #SOURCE_PROPERTY} are read from that
+ * source instead, row by row.
+ */
+final class PdfImageEncoder {
+
+	/**
+	 * Property of an ImagePlus whose processors are only placeholders: its displayed pixels
+	 * are read from the {@link Source} stored under this key.
+	 */
+	static final String SOURCE_PROPERTY = "nlFigure.pixelSource";
+
+	/**
+	 * Provides the displayed pixels of an image row by row, e.g. straight from a buffer
+	 * outside of the Java heap, instead of from pixel arrays.
+	 */
+	interface Source {
+
+		/**
+		 * Whether rows are read as packed RGB (<code>int[]</code>), as opposed to 8-bit
+		 * indices (<code>byte[]</code>) into {@link #getPalette()}.
+		 */
+		boolean isRGB();
+
+		/** The palette of 8-bit rows, <code>null</code> for grayscale */
+		IndexColorModel getPalette();
+
+		/**
+		 * Passes the rows of the rectangle <code>r</code> from top to bottom, together with
+		 * their index within <code>r</code>, to <code>consumer</code>. The row array is reused
+		 * for the next row.
+		 */
+		void readRows(Rectangle r, ObjIntConsumer<Object> consumer);
+	}
+
+	/** Per thread buffer for rendering composites, which {@link #rgb} only reads from */
+	private static final ThreadLocal<SoftReference<int[]>> RGB_BUFFER = new ThreadLocal<>();
+
+	private PdfImageEncoder() {
+	}
+
+	private static Source getSource(ImagePlus imp) {
+		Object source = imp.getProperty(SOURCE_PROPERTY);
+		return source instanceof Source ? (Source) source : null;
+	}
+
+	/**
+	 * Encodes the rectangle <code>r</code> of the current plane of <code>imp</code>, as it is
+	 * currently displayed.
+	 */
+	static Image encode(ImagePlus imp, Rectangle r) throws BadElementException {
+		return encode(imp, r, null);
+	}
+
+	/**
+	 * Like {@link #encode(ImagePlus, Rectangle)}, but converts colors to CMYK using
+	 * <code>cmyk</code>, if not <code>null</code>.
+	 */
+	static Image encode(ImagePlus imp, Rectangle r, CmykTransform cmyk) throws BadElementException {
+		Source source = getSource(imp);
+		if(source != null)
+			return encode(source, r, cmyk);
+
+		if(CompositeRenderer.canRender(imp)) {
+			SoftReference<int[]> ref = RGB_BUFFER.get();
+			int[] buffer = ref == null ? null : ref.get();
+			int[] rgb = CompositeRenderer.renderRGB(imp, r, buffer);
+			if(rgb != buffer)
+				RGB_BUFFER.set(new SoftReference<>(rgb));
+			return rgb(rgb, 0, r.width, r.width, r.height, cmyk);
+		}
+
+		if(imp.getBitDepth() == 24) {
+			int[] pixels = (int[]) imp.getProcessor().getPixels();
+			return rgb(pixels, r.y * imp.getWidth() + r.x, imp.getWidth(), r.width, r.height, cmyk);
+		}
+
+		Indexed indexed = toIndexed(imp, r);
+		return indexed(indexed.indices, r.width, r.height, indexed.palette, cmyk);
+	}
+
+	/**
+	 * Encodes the rectangle <code>r</code> of <code>source</code>, row by row; only the
+	 * encoded pixels are held on the heap.
+	 */
+	private static Image encode(Source source, Rectangle r, CmykTransform cmyk) throws BadElementException {
+		int w = r.width, h = r.height;
+		if(!source.isRGB()) {
+			byte[] indices = new byte[w * h];
+			source.readRows(r, (row, y) -> System.arraycopy(row, 0, indices, y * w, w));
+			return indexed(indices, w, h, source.getPalette(), cmyk);
+		}
+
+		int nComponents = cmyk == null ? 3 : 4;
+		byte[] data = new byte[nComponents * w * h];
+		source.readRows(r, (row, y) -> {
+			int[] rgb = (int[]) row;
+			int i = nComponents * y * w;
+			for(int x = 0; x < w; x++, i += nComponents) {
+				if(cmyk != null) {
+					cmyk.convert(rgb[x], data, i);
+				}
+				else {
+					data[i]     = (byte) (rgb[x] >> 16);
+					data[i + 1] = (byte) (rgb[x] >> 8);
+					data[i + 2] = (byte) rgb[x];
+				}
+			}
+		});
+		return Image.getInstance(w, h, nComponents, 8, data);
+	}
+
+	/** The displayed pixels of a single channel, as 8-bit indices into a palette */
+	static final class Indexed {
+		final byte[] indices;
+
+		/** <code>null</code> for grayscale */
+		final IndexColorModel palette;
+
+		Indexed(byte[] indices, IndexColorModel palette) {
+			this.indices = indices;
+			this.palette = palette;
+		}
+	}
+
+	/**
+	 * The displayed colors of the rectangle <code>r</code>, as packed RGB, or <code>null</code>
+	 * if the image is displayed as a single channel, see {@link #toIndexed(ImagePlus, Rectangle)}.
+	 */
+	static int[] toRGB(ImagePlus imp, Rectangle r) {
+		Source source = getSource(imp);
+		if(source != null) {
+			if(!source.isRGB())
+				return null;
+			int[] ret = new int[r.width * r.height];
+			source.readRows(r, (row, y) -> System.arraycopy(row, 0, ret, y * r.width, r.width));
+			return ret;
+		}
+		if(CompositeRenderer.canRender(imp))
+			return CompositeRenderer.renderRGB(imp, r);
+		if(imp.getBitDepth() != 24)
+			return null;
+		int[] pixels = (int[]) imp.getProcessor().getPixels();
+		int[] ret = new int[r.width * r.height];
+		for(int y = 0; y < r.height; y++)
+			System.arraycopy(pixels, (r.y + y) * imp.getWidth() + r.x, ret, y * r.width, r.width);
+		return ret;
+	}
+
+	/**
+	 * The rectangle <code>r</code> of the current channel of <code>imp</code>, mapped to 8-bit
+	 * with its display range, and the palette it is displayed with.
+	 */
+	static Indexed toIndexed(ImagePlus imp, Rectangle r) {
+		Source source = getSource(imp);
+		if(source != null) {
+			if(source.isRGB())
+				throw new RuntimeException("Cannot index the RGB pixels of " + imp.getTitle());
+			byte[] indices = new byte[r.width * r.height];
+			source.readRows(r, (row, y) -> System.arraycopy(row, 0, indices, y * r.width, r.width));
+			return new Indexed(indices, source.getPalette());
+		}
+		if(imp instanceof CompositeImage) {
+			CompositeImage ci = (CompositeImage) imp;
+			int c = imp.getC();
+			ImageProcessor ip = imp.getStack().getProcessor(imp.getStackIndex(c, imp.getZ(), imp.getT()));
+			LUT lut = ci.getChannelLut(c);
+			return new Indexed(toIndices(ip, r, lut.min, lut.max), ci.getMode() == IJ.GRAYSCALE ? null : lut);
+		}
+		ImageProcessor ip = imp.getProcessor();
+		// for 8-bit images, the display range is part of the current color model
+		byte[] indices = ip instanceof ByteProcessor
+				? crop((byte[]) ip.getPixels(), ip.getWidth(), r)
+				: toIndices(ip, r, ip.getMin(), ip.getMax());
+		ColorModel cm = ip.getCurrentColorModel();
+		return new Indexed(indices, cm instanceof IndexColorModel ? (IndexColorModel) cm : null);
+	}
+
+	private static byte[] crop(byte[] pixels, int width, Rectangle r) {
+		byte[] ret = new byte[r.width * r.height];
+		for(int y = 0; y < r.height; y++)
+			System.arraycopy(pixels, (r.y + y) * width + r.x, ret, y * r.width, r.width);
+		return ret;
+	}
+
+	/**
+	 * Maps the pixel values within <code>r</code> to 8-bit, applying the display range
+	 * like ImageJ does.
+	 */
+	static byte[] toIndices(ImageProcessor ip, Rectangle r, double min, double max) {
+		byte[] ret = new byte[r.width * r.height];
+		int width = ip.getWidth();
+		Object pixels = ip.getPixels();
+		for(int y = 0; y < r.height; y++)
+			toIndices(pixels, (r.y + y) * width + r.x, r.width, min, max, ret, y * r.width);
+		return ret;
+	}
+
+	/**
+	 * Maps <code>n</code> pixel values of <code>pixels</code>, starting at <code>src</code>,
+	 * to 8-bit, into <code>dst</code>, starting at <code>dstOffset</code>.
+	 */
+	static void toIndices(Object pixels, int src, int n, double min, double max, byte[] dst, int dstOffset) {
+		double scale = pixels instanceof float[] ? 255.0 / (max - min) : 256.0 / (max - min + 1);
+		for(int x = 0; x < n; x++, src++) {
+			double v;
+			if(pixels instanceof byte[])
+				v = ((byte[]) pixels)[src] & 0xff;
+			else if(pixels instanceof short[])
+				v = ((short[]) pixels)[src] & 0xffff;
+			else
+				v = ((float[]) pixels)[src];
+			int index = (int) ((v - min) * scale + 0.5);
+			dst[dstOffset + x] = (byte) Math.max(0, Math.min(255, index));
+		}
+	}
+
+	private static Image rgb(int[] pixels, int offset, int stride, int w, int h, CmykTransform cmyk) throws BadElementException {
+		if(cmyk != null)
+			return Image.getInstance(w, h, 4, 8, cmyk.convert(pixels, offset, stride, w, h));
+
+		byte[] data = new byte[3 * w * h];
+		for(int y = 0, i = 0; y < h; y++) {
+			int src = offset + y * stride;
+			for(int x = 0; x < w; x++, src++) {
+				int p = pixels[src];
+				data[i++] = (byte) (p >> 16);
+				data[i++] = (byte) (p >> 8);
+				data[i++] = (byte) p;
+			}
+		}
+		return Image.getInstance(w, h, 3, 8, data);
+	}
+
+	private static Image indexed(byte[] indices, int w, int h, IndexColorModel palette, CmykTransform cmyk) throws BadElementException {
+		if(palette == null || isGray(palette, false))
+			return Image.getInstance(w, h, 1, 8, indices);
+
+		if(isGray(palette, true)) {
+			for(int i = 0; i < indices.length; i++)
+				indices[i] = (byte) (255 - (indices[i] & 0xff));
+			return Image.getInstance(w, h, 1, 8, indices);
+		}
+
+		Image image = Image.getInstance(w, h, 1, 8, indices);
+		PdfArray colorspace = new PdfArray();
+		colorspace.add(PdfName.INDEXED);
+		colorspace.add(cmyk == null ? PdfName.DEVICERGB : PdfName.DEVICECMYK);
+		colorspace.add(new PdfNumber(255));
+		colorspace.add(new PdfString(cmyk == null ? toRGBTable(palette) : toCMYKTable(palette, cmyk)));
+		PdfDictionary additional = new PdfDictionary();
+		additional.put(PdfName.COLORSPACE, colorspace);
+		image.setAdditional(additional);
+		return image;
+	}
+
+	private static byte[] toRGBTable(IndexColorModel palette) {
+		int mapSize = palette.getMapSize();
+		byte[] table = new byte[3 * 256];
+		for(int i = 0; i < 256; i++) {
+			int rgb = palette.getRGB(Math.min(i, mapSize - 1));
+			table[3 * i]     = (byte) (rgb >> 16);
+			table[3 * i + 1] = (byte) (rgb >> 8);
+			table[3 * i + 2] = (byte) rgb;
+		}
+		return table;
+	}
+
+	private static byte[] toCMYKTable(IndexColorModel palette, CmykTransform cmyk) {
+		int mapSize = palette.getMapSize();
+		byte[] table = new byte[4 * 256];
+		for(int i = 0; i < 256; i++)
+			cmyk.convert(palette.getRGB(Math.min(i, mapSize - 1)), table, 4 * i);
+		return table;
+	}
+
+	/**
+	 * Whether the palette maps each index i to gray value i (or 255 - i, if <code>inverted</code>).
+	 */
+	private static boolean isGray(IndexColorModel palette, boolean inverted) {
+		if(palette.getMapSize() != 256)
+			return false;
+		for(int i = 0; i < 256; i++) {
+			int v = inverted ? 255 - i : i;
+			if(palette.getRed(i) != v || palette.getGreen(i) != v || palette.getBlue(i) != v)
+				return false;
+		}
+		return true;
+	}
+}
@@ -0,0 +1,189 @@
+package nlScript.figure;
+
+import ij.CompositeImage;
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.measure.Calibration;
+import ij.process.ImageProcessor;
+import ij.process.LUT;
+
+import java.awt.Rectangle;
+
+/**
+ * A single plane (all channels of one z-slice and timepoint) of an image held in memory.
+ *
+ * Only the channels of that plane are read, only within the field of view, and downscaled
+ * (averaging) to the resolution needed for drawing; no copy of the whole plane or of other
+ * planes is made. Display settings (LUTs, display ranges, composite mode, active and current
+ * channels) are captured when the source is created, so the image may be modified afterwards.
+ *
+ * Reading does not modify the image and may happen on any thread.
+ */
+public class PlaneSource implements PanelSource {
+
+	private final String title;
+	private final int width;
+	private final int height;
+	private final Calibration calibration;
+	private final ImageStack stack;
+
+	private final int z;
+	private final int nSlices;
+	private final int nFrames;
+
+	/** The stack index of each channel of the plane */
+	private final int[] stackIndices;
+
+	private final int compositeMode;
+	private final LUT[] luts;
+	private final boolean[] activeChannels;
+
+	/** The current channel, shown in color and grayscale mode */
+	private final int channel;
+
+	/** The LUT of single-channel images, <code>null</code> for RGB */
+	private final LUT lut;
+	private final double min;
+	private final double max;
+
+	public PlaneSource(ImagePlus imp, int z, int t) {
+		this(imp, z, t, imp.getTitle());
+	}
+
+	public PlaneSource(ImagePlus imp, int z, int t, String title) {
+		if(z < 1 || z > imp.getNSlices() || t < 1 || t > imp.getNFrames())
+			throw new RuntimeException("Cannot read plane z=" + z + ", t=" + t + " of " + imp.getTitle());
+		this.title = title;
+		this.width = imp.getWidth();
+		this.height = imp.getHeight();
+		this.calibration = imp.getCalibration().copy();
+		this.stack = imp.getStack();
+		this.z = z;
+		this.nSlices = imp.getNSlices();
+		this.nFrames = imp.getNFrames();
+
+		int nChannels = imp.getNChannels();
+		stackIndices = getStackIndices(nChannels, nSlices, z, t);
+
+		if(imp instanceof CompositeImage && nChannels > 1) {
+			CompositeImage ci = (CompositeImage) imp;
+			compositeMode = ci.getMode();
+			luts = ci.getLuts();
+			activeChannels = ci.getActiveChannels().clone();
+			channel = ci.getC();
+			lut = null;
+			min = max = 0;
+		}
+		else {
+			compositeMode = -1;
+			luts = null;
+			activeChannels = null;
+			channel = 1;
+			lut = imp.getBitDepth() == 24 ? null : imp.getProcessor().getLut();
+			min = imp.getDisplayRangeMin();
+			max = imp.getDisplayRangeMax();
+		}
+	}
+
+	/**
+	 * The same plane (z-slice) at timepoint <code>t</code>, with the same display settings.
+	 */
+	private PlaneSource(PlaneSource other, int t, String title) {
+		this.title = title;
+		this.width = other.width;
+		this.height = other.height;
+		this.calibration = other.calibration;
+		this.stack = other.stack;
+		this.z = other.z;
+		this.nSlices = other.nSlices;
+		this.nFrames = other.nFrames;
+		this.stackIndices = getStackIndices(other.stackIndices.length, nSlices, z, t);
+		this.compositeMode = other.compositeMode;
+		this.luts = other.luts;
+		this.activeChannels = other.activeChannels;
+		this.channel = other.channel;
+		this.lut = other.lut;
+		this.min = other.min;
+		this.max = other.max;
+	}
+
+	public PlaneSource atTimepoint(int t) {
+		if(t < 1 || t > nFrames)
+			throw new RuntimeException("Cannot read timepoint " + t + " of " + title);
+		return new PlaneSource(this, t, title);
+	}
+
+	public int getNFrames() {
+		return nFrames;
+	}
+
+	/** Same as ImagePlus.getStackIndex(c, z, t), for all channels */
+	private static int[] getStackIndices(int nChannels, int nSlices, int z, int t) {
+		int[] indices = new int[nChannels];
+		for(int c = 0; c < nChannels; c++)
+			indices[c] = (t - 1) * nChannels * nSlices + (z - 1) * nChannels + c + 1;
+		return indices;
+	}
+
+	@Override
+	public String getTitle() {
+		return title;
+	}
+
+	@Override
+	public int getWidth() {
+		return width;
+	}
+
+	@Override
+	public int getHeight() {
+		return height;
+	}
+
+	@Override
+	public Calibration getCalibration() {
+		return calibration;
+	}
+
+	@Override
+	public ImagePlus read(Rectangle fov, int targetWidth) {
+		int w = Math.max(1, Math.min(fov.width, targetWidth));
+		int h = w == fov.width ? fov.height : Math.max(1, (int) Math.round((double) fov.height * w / fov.width));
+
+		ImageStack out = new ImageStack(w, h);
+		for(int index : stackIndices) {
+			ImageProcessor ip = stack.getProcessor(index);
+			ip.setRoi(fov);
+			if(w == fov.width) {
+				out.addSlice(ip.crop());
+			}
+			else {
+				ip.setInterpolationMethod(ImageProcessor.BILINEAR);
+				out.addSlice(ip.resize(w, h, true));
+			}
+		}
+
+		ImagePlus ret = new ImagePlus(title, out);
+		if(luts != null) {
+			ret.setDimensions(stackIndices.length, 1, 1);
+			CompositeImage ci = new CompositeImage(ret, compositeMode);
+			LUT[] copies = new LUT[luts.length];
+			for(int c = 0; c < luts.length; c++)
+				copies[c] = (LUT) luts[c].clone();
+			ci.setLuts(copies);
+			System.arraycopy(activeChannels, 0, ci.getActiveChannels(), 0, activeChannels.length);
+			ci.setPosition(channel, 1, 1);
+			ret = ci;
+		}
+		else if(lut != null) {
+			ret.getProcessor().setLut(lut);
+			ret.setDisplayRange(min, max);
+		}
+
+		Calibration cal = calibration.copy();
+		cal.pixelWidth  *= (double) fov.width  / w;
+		cal.pixelHeight *= (double) fov.height / h;
+		ret.setCalibration(cal);
+		return ret;
+	}
+}
@@ -0,0 +1,867 @@
+package nlScript.figure;
+
+import ij.IJ;
+import ij.ImagePlus;
+import ij.measure.Calibration;
+import ij.process.ByteProcessor;
+import ij.process.ColorProcessor;
+import ij.process.FloatProcessor;
+import ij.process.ImageProcessor;
+import ij.process.ShortProcessor;
+
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
+import java.awt.Dimension;
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.awt.image.Raster;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * A multi-resolution (pyramid) image. The resolution levels are either stored in a single
+ * TIFF or BigTIFF file, as reduced-resolution top-level IFDs or as SubIFDs of the first IFD,
+ * or in a directory containing one image file per resolution level.
+ *
+ * Only the level which is needed for drawing is accessed. Of TIFF levels, which may be
+ * stored in strips or tiles, uncompressed or compressed with LZW, PackBits, Deflate or JPEG,
+ * only the strips or tiles covered by the field of view are read, which makes images usable
+ * that are larger than ImageJ's limit of 2^31 pixels per plane.
+ */
+public class PyramidSource implements PanelSource {
+
+	/** The largest array size which is safe to allocate */
+	private static final int MAX_ARRAY_SIZE = Integer.MAX_VALUE - 8;
+
+	private final String title;
+
+	/** The resolution levels, sorted from finest to coarsest */
+	private final List<Level> levels;
+
+	private Calibration calibration;
+
+	private PyramidSource(String title, List<Level> levels) {
+		if(levels.isEmpty())
+			throw new RuntimeException("No resolution levels found in " + title);
+		levels.sort((a, b) -> Long.compare((long) b.width * b.height, (long) a.width * a.height));
+		this.title = title;
+		this.levels = levels;
+		this.calibration = levels.get(0).getCalibration();
+	}
+
+	/**
+	 * Opens a pyramid from a directory of resolution levels or from a pyramidal TIFF file.
+	 */
+	public static PyramidSource open(File file) {
+		return file.isDirectory() ? fromDirectory(file) : fromTiff(file);
+	}
+
+	public static PyramidSource fromTiff(File file) {
+		try {
+			return new PyramidSource(file.getName(), readTiffLevels(file));
+		} catch(IOException e) {
+			throw new RuntimeException("Cannot open pyramidal TIFF " + file, e);
+		}
+	}
+
+	public static PyramidSource fromDirectory(File dir) {
+		File[] files = dir.listFiles(f -> f.isFile() && !f.isHidden());
+		if(files == null)
+			throw new RuntimeException("Cannot list resolution levels in " + dir);
+
+		List<Level> levels = new ArrayList<>();
+		for(File f : files) {
+			try {
+				if(isTiff(f)) {
+					levels.add(readTiffLevels(f).get(0));
+					continue;
+				}
+				Dimension d = readDimensions(f);
+				if(d != null)
+					levels.add(new FileLevel(f, d.width, d.height));
+			} catch(IOException e) {
+				throw new RuntimeException("Cannot read resolution level " + f, e);
+			}
+		}
+		return new PyramidSource(dir.getName(), levels);
+	}
+
+	public void setCalibration(Calibration calibration) {
+		this.calibration = calibration;
+	}
+
+	public int getNLevels() {
+		return levels.size();
+	}
+
+	@Override
+	public String getTitle() {
+		return title;
+	}
+
+	@Override
+	public int getWidth() {
+		return levels.get(0).width;
+	}
+
+	@Override
+	public int getHeight() {
+		return levels.get(0).height;
+	}
+
+	@Override
+	public Calibration getCalibration() {
+		return calibration;
+	}
+
+	@Override
+	public String getFingerprint() {
+		StringBuilder sb = new StringBuilder(title);
+		for(Level level : levels)
+			sb.append('|').append(level.getFingerprint());
+		return sb.append('|').append(calibration).toString();
+	}
+
+	private static String fingerprint(File file) {
+		return file.getAbsolutePath() + ':' + file.length() + ':' + file.lastModified();
+	}
+
+	/**
+	 * Returns the index of the coarsest level which still provides <code>targetWidth</code>
+	 * pixels across the given field of view, or the finest level if there is none.
+	 */
+	public int selectLevel(Rectangle fov, int targetWidth) {
+		for(int l = levels.size() - 1; l > 0; l--) {
+			double levelFovWidth = fov.width * (double) levels.get(l).width / getWidth();
+			if(levelFovWidth >= targetWidth)
+				return l;
+		}
+		return 0;
+	}
+
+	/**
+	 * Reads <code>fov</code> (clipped to the image) from the coarsest sufficient level. The
+	 * result covers exactly the field of view: if its edges fall between pixels of that level,
+	 * the covering pixels are resampled (bilinearly) onto a grid aligned with the field of view.
+	 */
+	@Override
+	public ImagePlus read(Rectangle fov, int targetWidth) {
+		Rectangle clipped = fov.intersection(new Rectangle(0, 0, getWidth(), getHeight()));
+		if(clipped.isEmpty())
+			throw new IllegalArgumentException("Field of view " + fov + " is outside of " + title);
+		fov = clipped;
+
+		Level level = levels.get(selectLevel(fov, targetWidth));
+		double sx = (double) level.width  / getWidth();
+		double sy = (double) level.height / getHeight();
+		double fx0 = fov.x * sx, fx1 = (fov.x + fov.width)  * sx;
+		double fy0 = fov.y * sy, fy1 = (fov.y + fov.height) * sy;
+		int x0 = (int) Math.floor(fx0);
+		int y0 = (int) Math.floor(fy0);
+		int x1 = (int) Math.ceil(fx1);
+		int y1 = (int) Math.ceil(fy1);
+		Rectangle r = new Rectangle(x0, y0, x1 - x0, y1 - y0).intersection(new Rectangle(0, 0, level.width, level.height));
+
+		ImageProcessor ip;
+		try {
+			ip = level.read(r);
+		} catch(IOException e) {
+			throw new RuntimeException("Cannot read " + r + " from " + title, e);
+		}
+		if(x0 != fx0 || x1 != fx1 || y0 != fy0 || y1 != fy1)
+			ip = resample(ip, fx0 - r.x, fy0 - r.y, fx1 - fx0, fy1 - fy0);
+
+		ImagePlus imp = new ImagePlus(title, ip);
+		Calibration cal = calibration.copy();
+		cal.pixelWidth  = calibration.pixelWidth  * fov.width  / ip.getWidth();
+		cal.pixelHeight = calibration.pixelHeight * fov.height / ip.getHeight();
+		imp.setCalibration(cal);
+		return imp;
+	}
+
+	/**
+	 * Resamples the (sub-pixel) rectangle at <code>(x, y)</code> of size <code>w</code> x
+	 * <code>h</code> of <code>ip</code> onto a grid of about <code>w</code> x <code>h</code>
+	 * pixels, whose edges coincide with those of the rectangle.
+	 */
+	private static ImageProcessor resample(ImageProcessor ip, double x, double y, double w, double h) {
+		int tw = Math.max(1, (int) Math.round(w));
+		int th = Math.max(1, (int) Math.round(h));
+		ImageProcessor out = ip.createProcessor(tw, th);
+		ip.setInterpolationMethod(ImageProcessor.BILINEAR);
+		for(int j = 0; j < th; j++) {
+			double sy = y + (j + 0.5) * h / th - 0.5;
+			for(int i = 0; i < tw; i++)
+				out.putPixel(i, j, ip.getPixelInterpolated(x + (i + 0.5) * w / tw - 0.5, sy));
+		}
+		out.resetMinAndMax();
+		return out;
+	}
+
+	private static boolean isTiff(File f) {
+		String name = f.getName().toLowerCase();
+		return name.endsWith(".tif") || name.endsWith(".tiff");
+	}
+
+	private static Dimension readDimensions(File f) throws IOException {
+		try(ImageInputStream in = ImageIO.createImageInputStream(f)) {
+			if(in == null)
+				return null;
+			Iterator<ImageReader> it = ImageIO.getImageReaders(in);
+			if(!it.hasNext())
+				return null;
+			ImageReader reader = it.next();
+			try {
+				reader.setInput(in);
+				return new Dimension(reader.getWidth(0), reader.getHeight(0));
+			} finally {
+				reader.dispose();
+			}
+		}
+	}
+
+	private static List<Level> readTiffLevels(File file) throws IOException {
+		List<Level> levels = new ArrayList<>();
+		try(RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+			byte[] header = new byte[8];
+			raf.readFully(header);
+			ByteOrder order;
+			if(header[0] == 'I' && header[1] == 'I')
+				order = ByteOrder.LITTLE_ENDIAN;
+			else if(header[0] == 'M' && header[1] == 'M')
+				order = ByteOrder.BIG_ENDIAN;
+			else
+				throw new IOException("Not a TIFF file");
+			ByteBuffer hb = ByteBuffer.wrap(header).order(order);
+			int magic = hb.getShort(2) & 0xffff;
+			boolean big = magic == 43;
+			if(magic != 42 && !big)
+				throw new IOException("Not a TIFF file");
+
+			long offset;
+			if(big) {
+				if(hb.getShort(4) != 8)
+					throw new IOException("Unsupported BigTIFF offset size");
+				byte[] first = new byte[8];
+				raf.readFully(first);
+				offset = ByteBuffer.wrap(first).order(order).getLong();
+			}
+			else {
+				offset = hb.getInt(4) & 0xffffffffL;
+			}
+
+			Set<Long> visited = new HashSet<>();
+			Ifd first = null;
+			while(offset != 0 && visited.add(offset)) {
+				Ifd ifd = Ifd.read(raf, order, big, offset);
+				if(first == null) {
+					first = ifd;
+					levels.add(new TiffLevel(file, order, ifd));
+					for(long sub : ifd.getAll(Ifd.SUB_IFDS))
+						levels.add(new TiffLevel(file, order, Ifd.read(raf, order, big, sub)));
+				}
+				else if(ifd.isReducedResolutionOf(first)) {
+					levels.add(new TiffLevel(file, order, ifd));
+				}
+				offset = ifd.next;
+			}
+		}
+		return levels;
+	}
+
+	private static abstract class Level {
+		final int width;
+		final int height;
+
+		Level(int width, int height) {
+			this.width = width;
+			this.height = height;
+		}
+
+		Calibration getCalibration() {
+			return new Calibration();
+		}
+
+		abstract String getFingerprint();
+
+		abstract ImageProcessor read(Rectangle r) throws IOException;
+	}
+
+	/**
+	 * A resolution level stored in an arbitrary image file, which is opened as a whole.
+	 */
+	private static final class FileLevel extends Level {
+		private final File file;
+
+		FileLevel(File file, int width, int height) {
+			super(width, height);
+			this.file = file;
+		}
+
+		@Override
+		String getFingerprint() {
+			return fingerprint(file) + '@' + width + 'x' + height;
+		}
+
+		@Override
+		ImageProcessor read(Rectangle r) throws IOException {
+			ImagePlus imp = IJ.openImage(file.getAbsolutePath());
+			if(imp == null)
+				throw new IOException("Cannot open " + file);
+			ImageProcessor ip = imp.getProcessor();
+			ip.setRoi(r);
+			return ip.crop();
+		}
+	}
+
+	/**
+	 * A resolution level stored as an IFD of a TIFF file, split into strips or tiles (both
+	 * referred to as blocks here). Only the blocks covered by the requested rectangle are
+	 * read, and of uncompressed blocks only the covered rows.
+	 */
+	private static final class TiffLevel extends Level {
+		private final File file;
+		private final ByteOrder order;
+		private final Ifd ifd;
+		private final int bitsPerSample;
+		private final int samplesPerPixel;
+		private final int sampleFormat;
+		private final int compression;
+		private final int predictor;
+		private final boolean planar;
+		private final int blockWidth;
+		private final int blockHeight;
+		private final long[] blockOffsets;
+		private final long[] blockByteCounts;
+		private final byte[] jpegTables;
+
+		TiffLevel(File file, ByteOrder order, Ifd ifd) {
+			super((int) ifd.get(Ifd.IMAGE_WIDTH, 0), (int) ifd.get(Ifd.IMAGE_LENGTH, 0));
+			this.file = file;
+			this.order = order;
+			this.ifd = ifd;
+			this.bitsPerSample   = (int) ifd.get(Ifd.BITS_PER_SAMPLE, 1);
+			this.samplesPerPixel = (int) ifd.get(Ifd.SAMPLES_PER_PIXEL, 1);
+			this.sampleFormat    = (int) ifd.get(Ifd.SAMPLE_FORMAT, 1);
+			this.compression     = (int) ifd.get(Ifd.COMPRESSION, 1);
+			this.predictor       = (int) ifd.get(Ifd.PREDICTOR, 1);
+			this.planar = samplesPerPixel > 1 && ifd.get(Ifd.PLANAR_CONFIGURATION, 1) == 2;
+			if(ifd.has(Ifd.TILE_WIDTH)) {
+				this.blockWidth      = (int) ifd.get(Ifd.TILE_WIDTH, width);
+				this.blockHeight     = (int) ifd.get(Ifd.TILE_LENGTH, height);
+				this.blockOffsets    = ifd.getAll(Ifd.TILE_OFFSETS);
+				this.blockByteCounts = ifd.getAll(Ifd.TILE_BYTE_COUNTS);
+			}
+			else {
+				this.blockWidth      = width;
+				this.blockHeight     = (int) Math.min(ifd.get(Ifd.ROWS_PER_STRIP, height), height);
+				this.blockOffsets    = ifd.getAll(Ifd.STRIP_OFFSETS);
+				this.blockByteCounts = ifd.getAll(Ifd.STRIP_BYTE_COUNTS);
+			}
+			this.jpegTables = ifd.getBytes(Ifd.JPEG_TABLES);
+		}
+
+		@Override
+		String getFingerprint() {
+			return fingerprint(file) + '@' + width + 'x' + height;
+		}
+
+		@Override
+		Calibration getCalibration() {
+			Calibration cal = new Calibration();
+			double xres = ifd.getRational(Ifd.X_RESOLUTION);
+			double yres = ifd.getRational(Ifd.Y_RESOLUTION);
+			long unit = ifd.get(Ifd.RESOLUTION_UNIT, 2);
+			if(xres <= 0 || unit == 1)
+				return cal;
+			cal.pixelWidth = 1 / xres;
+			cal.pixelHeight = yres > 0 ? 1 / yres : cal.pixelWidth;
+			cal.setUnit(unit == 3 ? "cm" : "inch");
+			// ImageJ stores the actual unit in the image description
+			String description = ifd.getString(Ifd.IMAGE_DESCRIPTION);
+			if(description != null) {
+				for(String line : description.split("\n")) {
+					if(line.startsWith("unit="))
+						cal.setUnit(line.substring(5).trim());
+				}
+			}
+			return cal;
+		}
+
+		@Override
+		ImageProcessor read(Rectangle r) throws IOException {
+			if(bitsPerSample % 8 != 0)
+				throw new IOException("Unsupported bit depth: " + bitsPerSample);
+			if(blockWidth <= 0 || blockHeight <= 0)
+				throw new IOException("Invalid strip or tile size");
+			int bytesPerSample = bitsPerSample / 8;
+			int bpp = bytesPerSample * samplesPerPixel;
+			long size = (long) r.width * r.height * bpp;
+			if(size > MAX_ARRAY_SIZE)
+				throw new IOException("Cannot read " + r.width + " x " + r.height + " pixels at once, " +
+						"use a coarser resolution level or a smaller field of view");
+			byte[] data = new byte[(int) size];
+
+			// strips and tiles of planar data store one sample, one plane after the other
+			int blockBpp = planar ? bytesPerSample : bpp;
+			int planes = planar ? samplesPerPixel : 1;
+			int blocksAcross = (width + blockWidth - 1) / blockWidth;
+			int blocksDown = (height + blockHeight - 1) / blockHeight;
+			if(blockOffsets.length < (long) planes * blocksAcross * blocksDown)
+				throw new IOException("Missing strip or tile offsets");
+
+			try(RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+				for(int p = 0; p < planes; p++) {
+					for(int by = r.y / blockHeight; by <= (r.y + r.height - 1) / blockHeight; by++) {
+						for(int bx = r.x / blockWidth; bx <= (r.x + r.width - 1) / blockWidth; bx++) {
+							int block = (p * blocksDown + by) * blocksAcross + bx;
+							Rectangle b = new Rectangle(bx * blockWidth, by * blockHeight, blockWidth, blockHeight);
+							Rectangle covered = b.intersection(r);
+							int lineBytes = covered.width * blockBpp;
+							if(compression == 1) {
+								byte[] line = new byte[lineBytes];
+								for(int y = covered.y; y < covered.y + covered.height; y++) {
+									long src = ((long) (y - b.y) * blockWidth + covered.x - b.x) * blockBpp;
+									raf.seek(blockOffsets[block] + src);
+									raf.readFully(line);
+									copyLine(line, 0, covered.width, data, r, covered.x, y, p, bytesPerSample, bpp);
+								}
+							}
+							else {
+								int rows = Math.min(blockHeight, height - b.y);
+								byte[] decoded = decode(raf, block, rows, blockBpp);
+								for(int y = covered.y; y < covered.y + covered.height; y++) {
+									int src = ((y - b.y) * blockWidth + covered.x - b.x) * blockBpp;
+									copyLine(decoded, src, covered.width, data, r, covered.x, y, p, bytesPerSample, bpp);
+								}
+							}
+						}
+					}
+				}
+			}
+			return toProcessor(data, r.width, r.height);
+		}
+
+		/**
+		 * Copies <code>n</code> pixels of one line of a block, starting at pixel <code>(x, y)</code>
+		 * of the level, into <code>data</code>, which holds rectangle <code>r</code> with
+		 * interleaved samples; for planar data, <code>plane</code> is the sample index.
+		 */
+		private void copyLine(byte[] src, int srcPos, int n, byte[] data, Rectangle r, int x, int y, int plane, int bytesPerSample, int bpp) {
+			int dst = ((y - r.y) * r.width + x - r.x) * bpp;
+			if(!planar) {
+				System.arraycopy(src, srcPos, data, dst, n * bpp);
+				return;
+			}
+			dst += plane * bytesPerSample;
+			for(int i = 0; i < n; i++, srcPos += bytesPerSample, dst += bpp)
+				System.arraycopy(src, srcPos, data, dst, bytesPerSample);
+		}
+
+		private byte[] decode(RandomAccessFile raf, int block, int rows, int blockBpp) throws IOException {
+			long byteCount = block < blockByteCounts.length ? blockByteCounts[block] : 0;
+			if(byteCount <= 0 || byteCount > MAX_ARRAY_SIZE)
+				throw new IOException("Invalid byte count of strip or tile " + block + ": " + byteCount);
+			byte[] compressed = new byte[(int) byteCount];
+			raf.seek(blockOffsets[block]);
+			raf.readFully(compressed);
+
+			int expected = blockWidth * rows * blockBpp;
+			byte[] decoded;
+			switch(compression) {
+				case 5:     decoded = lzwDecode(compressed, expected); break;
+				case 32773: decoded = packBitsDecode(compressed, expected); break;
+				case 8:
+				case 32946: decoded = inflate(compressed, expected); break;
+				case 7:     decoded = jpegDecode(compressed, expected); break;
+				default:
+					throw new IOException("Unsupported compression: " + compression);
+			}
+			if(predictor == 2)
+				undoDifferencing(decoded, rows);
+			else if(predictor != 1)
+				throw new IOException("Unsupported predictor: " + predictor);
+			return decoded;
+		}
+
+		/** Undoes horizontal differencing (TIFF predictor 2), in place */
+		private void undoDifferencing(byte[] block, int rows) throws IOException {
+			int channels = planar ? 1 : samplesPerPixel;
+			int n = blockWidth * channels;
+			ByteBuffer bb = ByteBuffer.wrap(block).order(order);
+			for(int y = 0; y < rows; y++) {
+				int o = y * n;
+				switch(bitsPerSample) {
+					case 8:
+						for(int i = channels; i < n; i++)
+							block[o + i] += block[o + i - channels];
+						break;
+					case 16:
+						for(int i = channels; i < n; i++)
+							bb.putShort(2 * (o + i), (short) (bb.getShort(2 * (o + i)) + bb.getShort(2 * (o + i - channels))));
+						break;
+					case 32:
+						for(int i = channels; i < n; i++)
+							bb.putInt(4 * (o + i), bb.getInt(4 * (o + i)) + bb.getInt(4 * (o + i - channels)));
+						break;
+					default:
+						throw new IOException("Unsupported bit depth for differencing: " + bitsPerSample);
+				}
+			}
+		}
+
+		private byte[] jpegDecode(byte[] compressed, int expected) throws IOException {
+			if(bitsPerSample != 8)
+				throw new IOException("Unsupported bit depth for JPEG: " + bitsPerSample);
+			byte[] stream = compressed;
+			// abbreviated streams: the shared tables, without their EOI, followed by the block without its SOI
+			if(jpegTables != null && jpegTables.length > 4) {
+				stream = new byte[jpegTables.length - 2 + compressed.length - 2];
+				System.arraycopy(jpegTables, 0, stream, 0, jpegTables.length - 2);
+				System.arraycopy(compressed, 2, stream, jpegTables.length - 2, compressed.length - 2);
+			}
+			BufferedImage image = ImageIO.read(new ByteArrayInputStream(stream));
+			if(image == null)
+				throw new IOException("Cannot decode JPEG strip or tile");
+			Raster raster = image.getRaster();
+			int channels = planar ? 1 : samplesPerPixel;
+			if(raster.getNumBands() != channels)
+				throw new IOException("JPEG strip or tile has " + raster.getNumBands() + " instead of " + channels + " samples");
+			int w = Math.min(raster.getWidth(), blockWidth);
+			int h = Math.min(raster.getHeight(), expected / (blockWidth * channels));
+			int[] samples = raster.getPixels(0, 0, w, h, (int[]) null);
+			byte[] decoded = new byte[expected];
+			for(int y = 0; y < h; y++)
+				for(int i = 0; i < w * channels; i++)
+					decoded[y * blockWidth * channels + i] = (byte) samples[y * w * channels + i];
+			return decoded;
+		}
+
+		private ImageProcessor toProcessor(byte[] data, int w, int h) throws IOException {
+			int n = w * h;
+			ByteBuffer bb = ByteBuffer.wrap(data).order(order);
+			if(samplesPerPixel == 3 && bitsPerSample == 8) {
+				int[] rgb = new int[n];
+				for(int i = 0; i < n; i++)
+					rgb[i] = 0xff000000 | (data[3 * i] & 0xff) << 16 | (data[3 * i + 1] & 0xff) << 8 | (data[3 * i + 2] & 0xff);
+				return new ColorProcessor(w, h, rgb);
+			}
+			if(samplesPerPixel != 1)
+				throw new IOException("Unsupported number of samples per pixel: " + samplesPerPixel);
+
+			ImageProcessor ip;
+			switch(bitsPerSample) {
+				case 8:
+					ip = new ByteProcessor(w, h, data);
+					break;
+				case 16:
+					short[] s = new short[n];
+					bb.asShortBuffer().get(s);
+					if(sampleFormat == 2) {
+						for(int i = 0; i < n; i++)
+							s[i] = (short) (s[i] + 32768);
+					}
+					ip = new ShortProcessor(w, h, s, null);
+					break;
+				case 32:
+					float[] f = new float[n];
+					if(sampleFormat == 3) {
+						bb.asFloatBuffer().get(f);
+					}
+					else {
+						for(int i = 0; i < n; i++)
+							f[i] = sampleFormat == 2 ? bb.getInt() : bb.getInt() & 0xffffffffL;
+					}
+					ip = new FloatProcessor(w, h, f);
+					break;
+				default:
+					throw new IOException("Unsupported bit depth: " + bitsPerSample);
+			}
+			if(ifd.get(Ifd.PHOTOMETRIC, 1) == 0)
+				ip.invertLut();
+			ip.resetMinAndMax();
+			return ip;
+		}
+	}
+
+	/**
+	 * Decodes TIFF LZW data (MSB-first codes of 9 to 12 bits, with early change) into an
+	 * array of <code>expected</code> bytes.
+	 */
+	static byte[] lzwDecode(byte[] in, int expected) throws IOException {
+		byte[] out = new byte[expected];
+		byte[][] table = new byte[4096][];
+		for(int i = 0; i < 256; i++)
+			table[i] = new byte[] { (byte) i };
+		int next = 258;
+		int bits = 9;
+		byte[] prev = null;
+		int pos = 0;
+		long bitPos = 0;
+		long nBits = 8L * in.length;
+		while(bitPos + bits <= nBits && pos < expected) {
+			int code = 0;
+			for(int i = 0; i < bits; i++, bitPos++)
+				code = (code << 1) | ((in[(int) (bitPos >> 3)] >> (7 - (int) (bitPos & 7))) & 1);
+			if(code == 257)
+				break;
+			if(code == 256) {
+				next = 258;
+				bits = 9;
+				prev = null;
+				continue;
+			}
+			byte[] entry;
+			if(code < next && table[code] != null)
+				entry = table[code];
+			else if(code == next && prev != null)
+				entry = append(prev, prev[0]);
+			else
+				throw new IOException("Corrupt LZW data");
+
+			int n = Math.min(entry.length, expected - pos);
+			System.arraycopy(entry, 0, out, pos, n);
+			pos += n;
+
+			if(prev != null && next < table.length)
+				table[next++] = append(prev, entry[0]);
+			prev = entry;
+			if(next >= (1 << bits) - 1 && bits < 12)
+				bits++;
+		}
+		return out;
+	}
+
+	private static byte[] append(byte[] a, byte b) {
+		byte[] ret = Arrays.copyOf(a, a.length + 1);
+		ret[a.length] = b;
+		return ret;
+	}
+
+	static byte[] packBitsDecode(byte[] in, int expected) {
+		byte[] out = new byte[expected];
+		int i = 0, pos = 0;
+		while(i < in.length && pos < expected) {
+			int n = in[i++];
+			if(n >= 0) {
+				int len = Math.min(Math.min(n + 1, in.length - i), expected - pos);
+				System.arraycopy(in, i, out, pos, len);
+				i += n + 1;
+				pos += len;
+			}
+			else if(n != -128 && i < in.length) {
+				int len = Math.min(1 - n, expected - pos);
+				Arrays.fill(out, pos, pos + len, in[i++]);
+				pos += len;
+			}
+		}
+		return out;
+	}
+
+	static byte[] inflate(byte[] in, int expected) throws IOException {
+		byte[] out = new byte[expected];
+		Inflater inflater = new Inflater();
+		try {
+			inflater.setInput(in);
+			int pos = 0;
+			while(pos < expected && !inflater.finished()) {
+				int n = inflater.inflate(out, pos, expected - pos);
+				if(n == 0 && (inflater.needsInput() || inflater.needsDictionary()))
+					break;
+				pos += n;
+			}
+		} catch(DataFormatException e) {
+			throw new IOException("Corrupt Deflate data", e);
+		} finally {
+			inflater.end();
+		}
+		return out;
+	}
+
+	/**
+	 * A minimal reader for TIFF and BigTIFF image file directories.
+	 */
+	private static final class Ifd {
+		static final int IMAGE_WIDTH          = 256;
+		static final int IMAGE_LENGTH         = 257;
+		static final int BITS_PER_SAMPLE      = 258;
+		static final int COMPRESSION          = 259;
+		static final int PHOTOMETRIC          = 262;
+		static final int IMAGE_DESCRIPTION    = 270;
+		static final int STRIP_OFFSETS        = 273;
+		static final int SAMPLES_PER_PIXEL    = 277;
+		static final int ROWS_PER_STRIP       = 278;
+		static final int STRIP_BYTE_COUNTS    = 279;
+		static final int X_RESOLUTION         = 282;
+		static final int Y_RESOLUTION         = 283;
+		static final int PLANAR_CONFIGURATION = 284;
+		static final int RESOLUTION_UNIT      = 296;
+		static final int PREDICTOR            = 317;
+		static final int TILE_WIDTH           = 322;
+		static final int TILE_LENGTH          = 323;
+		static final int TILE_OFFSETS         = 324;
+		static final int TILE_BYTE_COUNTS     = 325;
+		static final int SUB_IFDS             = 330;
+		static final int SAMPLE_FORMAT        = 339;
+		static final int JPEG_TABLES          = 347;
+
+		private final Map<Integer, long[]> values = new HashMap<>();
+		private final Map<Integer, double[]> rationals = new HashMap<>();
+		private final Map<Integer, String> strings = new HashMap<>();
+		private long next;
+
+		/**
+		 * Reads the IFD at <code>offset</code>; <code>big</code> selects the BigTIFF layout, with
+		 * 8-byte entry counts, value counts and offsets.
+		 */
+		static Ifd read(RandomAccessFile raf, ByteOrder order, boolean big, long offset) throws IOException {
+			int countSize = big ? 8 : 2;
+			int entrySize = big ? 20 : 12;
+			int pointerSize = big ? 8 : 4;
+
+			raf.seek(offset);
+			byte[] nEntries = new byte[countSize];
+			raf.readFully(nEntries);
+			ByteBuffer nb = ByteBuffer.wrap(nEntries).order(order);
+			long nl = big ? nb.getLong() : nb.getShort() & 0xffff;
+			if(nl < 0 || nl > 0xffff)
+				throw new IOException("Invalid number of IFD entries: " + nl);
+			int n = (int) nl;
+			byte[] entries = new byte[n * entrySize + pointerSize];
+			raf.readFully(entries);
+			ByteBuffer bb = ByteBuffer.wrap(entries).order(order);
+
+			Ifd ifd = new Ifd();
+			for(int i = 0; i < n; i++) {
+				int e = i * entrySize;
+				int tag  = bb.getShort(e) & 0xffff;
+				int type = bb.getShort(e + 2) & 0xffff;
+				long count = big ? bb.getLong(e + 4) : bb.getInt(e + 4) & 0xffffffffL;
+				int valuePos = e + (big ? 12 : 8);
+				int size = typeSize(type);
+				if(size == 0 || count < 0 || count * size > Integer.MAX_VALUE)
+					continue;
+
+				ByteBuffer v;
+				if(count * size <= pointerSize) {
+					v = ByteBuffer.wrap(entries, valuePos, pointerSize).slice().order(order);
+				}
+				else {
+					byte[] data = new byte[(int) (count * size)];
+					raf.seek(big ? bb.getLong(valuePos) : bb.getInt(valuePos) & 0xffffffffL);
+					raf.readFully(data);
+					v = ByteBuffer.wrap(data).order(order);
+				}
+
+				int cnt = (int) count;
+				switch(type) {
+					case 2: // ASCII
+						byte[] chars = new byte[cnt];
+						v.get(chars);
+						ifd.strings.put(tag, new String(chars, "ISO-8859-1").trim());
+						break;
+					case 5:  // RATIONAL
+					case 10: // SRATIONAL
+						double[] d = new double[cnt];
+						for(int k = 0; k < cnt; k++) {
+							long num = v.getInt() & 0xffffffffL;
+							long den = v.getInt() & 0xffffffffL;
+							d[k] = den == 0 ? 0 : (double) num / den;
+						}
+						ifd.rationals.put(tag, d);
+						break;
+					case 1: case 6: case 7:    // BYTE, SBYTE, UNDEFINED
+					case 3: case 8:            // SHORT, SSHORT
+					case 4: case 9: case 13:   // LONG, SLONG, IFD
+					case 16: case 17: case 18: // LONG8, SLONG8, IFD8
+						long[] l = new long[cnt];
+						for(int k = 0; k < cnt; k++) {
+							switch(size) {
+								case 1: l[k] = v.get() & 0xff; break;
+								case 2: l[k] = v.getShort() & 0xffff; break;
+								case 4: l[k] = v.getInt() & 0xffffffffL; break;
+								case 8: l[k] = v.getLong(); break;
+							}
+						}
+						ifd.values.put(tag, l);
+						break;
+				}
+			}
+			ifd.next = big ? bb.getLong(n * entrySize) : bb.getInt(n * entrySize) & 0xffffffffL;
+			return ifd;
+		}
+
+		private static int typeSize(int type) {
+			switch(type) {
+				case 1: case 2: case 6: case 7: return 1;
+				case 3: case 8:                 return 2;
+				case 4: case 9: case 13:        return 4;
+				case 5: case 10:                return 8;
+				case 16: case 17: case 18:      return 8;
+				default:                        return 0;
+			}
+		}
+
+		boolean has(int tag) {
+			return values.containsKey(tag);
+		}
+
+		long get(int tag, long defaultValue) {
+			long[] v = values.get(tag);
+			return v == null || v.length == 0 ? defaultValue : v[0];
+		}
+
+		long[] getAll(int tag) {
+			long[] v = values.get(tag);
+			return v == null ? new long[0] : v;
+		}
+
+		byte[] getBytes(int tag) {
+			long[] v = values.get(tag);
+			if(v == null)
+				return null;
+			byte[] ret = new byte[v.length];
+			for(int i = 0; i < v.length; i++)
+				ret[i] = (byte) v[i];
+			return ret;
+		}
+
+		double getRational(int tag) {
+			double[] v = rationals.get(tag);
+			return v == null || v.length == 0 ? 0 : v[0];
+		}
+
+		String getString(int tag) {
+			return strings.get(tag);
+		}
+
+		/**
+		 * Whether this IFD stores a smaller version of the image in <code>full</code>, as
+		 * opposed to e.g. another plane of a stack or a label or macro image.
+		 */
+		boolean isReducedResolutionOf(Ifd full) {
+			long w = get(IMAGE_WIDTH, 0), h = get(IMAGE_LENGTH, 0);
+			long fw = full.get(IMAGE_WIDTH, 0), fh = full.get(IMAGE_LENGTH, 0);
+			if(w <= 0 || h <= 0 || w >= fw)
+				return false;
+			double aspect = (double) w / h;
+			double fullAspect = (double) fw / fh;
+			return Math.abs(aspect - fullAspect) / fullAspect < 0.02;
+		}
+	}
+}
@@ -0,0 +1,264 @@
+package nlScript.figure;
+
+import ij.CompositeImage;
+import ij.IJ;
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.gui.Overlay;
+import ij.gui.Roi;
+import ij.io.RoiEncoder;
+import ij.process.ImageProcessor;
+import ij.process.LUT;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Comparator;
+
+/**
+ * A content-addressed cache of rendered figures in a local directory.
+ *
+ * The key of a figure is the SHA-256 hash of the normalized script, all figure settings and
+ * the contents of all panels: the pixels and display settings of captured images, and the
+ * fingerprint of multi-resolution sources. An unchanged figure therefore only costs
+ * evaluating the script and hashing, instead of rendering.
+ *
+ * The size of the cache directory is bounded; the least recently used figures are evicted
+ * first.
+ */
+public class RenderCache {
+
+	/** Changes whenever the rendering changes, to invalidate existing caches */
+	private static final String VERSION = "nlFigure-render-cache-1";
+
+	private static final String SUFFIX = ".pdf";
+
+	private final File dir;
+
+	private final long maxBytes;
+
+	public RenderCache(File dir, long maxBytes) {
+		if(!dir.isDirectory() && !dir.mkdirs())
+			throw new RuntimeException("Cannot create render cache directory " + dir);
+		this.dir = dir;
+		this.maxBytes = maxBytes;
+	}
+
+	/**
+	 * Writes the figure rendered from <code>script</code> to <code>out</code>, from the cache if
+	 * possible, and closes <code>out</code> afterwards.
+	 */
+	public void render(String script, Figure figure, OutputStream out) {
+		String key = key(script, figure);
+		if(key == null) {
+			figure.createFigure(out);
+			return;
+		}
+		try {
+			if(copyTo(key, out))
+				return;
+			ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+			figure.createFigure(buffer);
+			byte[] pdf = buffer.toByteArray();
+			put(key, pdf);
+			try(OutputStream o = out) {
+				o.write(pdf);
+			}
+		} catch(IOException e) {
+			throw new RuntimeException("Cannot write figure", e);
+		}
+	}
+
+	/**
+	 * Calculates the cache key for <code>figure</code>, which was evaluated from
+	 * <code>script</code>, or <code>null</code> if its content cannot be identified.
+	 */
+	public static String key(String script, Figure figure) {
+		MessageDigest md = newDigest();
+		update(md, VERSION, normalize(script));
+		if(!figure.digest(md))
+			return null;
+		return toHex(md.digest());
+	}
+
+	/**
+	 * Removes leading and trailing whitespace, empty lines and repeated whitespace.
+	 */
+	static String normalize(String script) {
+		StringBuilder sb = new StringBuilder();
+		for(String line : script.split("\r?\n")) {
+			line = line.trim().replaceAll("\\s+", " ");
+			if(!line.isEmpty())
+				sb.append(line).append('\n');
+		}
+		return sb.toString();
+	}
+
+	/**
+	 * Copies the cached figure with the given key to <code>out</code>, and closes
+	 * <code>out</code>. Returns <code>false</code> (leaving <code>out</code> open) if there is
+	 * no such figure.
+	 */
+	public boolean copyTo(String key, OutputStream out) throws IOException {
+		File file = new File(dir, key + SUFFIX);
+		if(!file.isFile())
+			return false;
+		byte[] pdf;
+		try {
+			pdf = Files.readAllBytes(file.toPath());
+		} catch(IOException e) {
+			// evicted in the meantime
+			return false;
+		}
+		file.setLastModified(System.currentTimeMillis());
+		try(OutputStream o = out) {
+			o.write(pdf);
+		}
+		return true;
+	}
+
+	/**
+	 * Stores a rendered figure. Failing to do so is logged, but does not fail rendering.
+	 */
+	public void put(String key, byte[] pdf) {
+		try {
+			File tmp = File.createTempFile(key, ".tmp", dir);
+			Files.write(tmp.toPath(), pdf);
+			Files.move(tmp.toPath(), new File(dir, key + SUFFIX).toPath(), StandardCopyOption.REPLACE_EXISTING);
+		} catch(IOException e) {
+			IJ.log("Cannot write to render cache " + dir + ": " + e.getMessage());
+			return;
+		}
+		evict();
+	}
+
+	private synchronized void evict() {
+		File[] files = dir.listFiles(f -> f.isFile() && f.getName().endsWith(SUFFIX));
+		if(files == null)
+			return;
+		long total = 0;
+		for(File f : files)
+			total += f.length();
+		if(total <= maxBytes)
+			return;
+		Arrays.sort(files, Comparator.comparingLong(File::lastModified));
+		for(File f : files) {
+			if(total <= maxBytes)
+				break;
+			long length = f.length();
+			if(f.delete())
+				total -= length;
+		}
+	}
+
+	/**
+	 * Feeds the string representation of each value into <code>md</code>.
+	 */
+	static void update(MessageDigest md, Object... values) {
+		for(Object v : values) {
+			md.update(String.valueOf(v).getBytes(StandardCharsets.UTF_8));
+			md.update((byte) 0);
+		}
+	}
+
+	static void update(MessageDigest md, LUT lut) {
+		if(lut == null) {
+			update(md, "no lut");
+			return;
+		}
+		md.update(lut.getBytes());
+		update(md, lut.min, lut.max);
+	}
+
+	static void update(MessageDigest md, Roi roi) {
+		if(roi == null) {
+			update(md, "no roi");
+			return;
+		}
+		byte[] bytes = RoiEncoder.saveAsByteArray(roi);
+		if(bytes != null)
+			md.update(bytes);
+		update(md, roi.getName(), roi.getStrokeColor(), roi.getFillColor(), roi.getStrokeWidth());
+	}
+
+	static void update(MessageDigest md, Overlay overlay) {
+		if(overlay == null) {
+			update(md, "no overlay");
+			return;
+		}
+		for(Roi roi : overlay)
+			update(md, roi);
+	}
+
+	static void update(MessageDigest md, ImageProcessor ip) {
+		Object pixels = ip.getPixels();
+		if(pixels instanceof byte[]) {
+			md.update((byte[]) pixels);
+			return;
+		}
+		int n = ip.getPixelCount();
+		ByteBuffer buffer = ByteBuffer.allocate(n * (pixels instanceof short[] ? 2 : 4)).order(ByteOrder.nativeOrder());
+		if(pixels instanceof short[])
+			buffer.asShortBuffer().put((short[]) pixels);
+		else if(pixels instanceof int[])
+			buffer.asIntBuffer().put((int[]) pixels);
+		else
+			buffer.asFloatBuffer().put((float[]) pixels);
+		md.update(buffer);
+	}
+
+	/**
+	 * Feeds the pixels of all slices and the display settings of <code>imp</code> into
+	 * <code>md</code>.
+	 */
+	static void updatePixels(MessageDigest md, ImagePlus imp) {
+		ImageStack stack = imp.getStack();
+		update(md, imp.getWidth(), imp.getHeight(), stack.getSize(), imp.getBitDepth());
+		for(int s = 1; s <= stack.getSize(); s++)
+			update(md, stack.getProcessor(s));
+		if(imp instanceof CompositeImage) {
+			CompositeImage ci = (CompositeImage) imp;
+			update(md, ci.getMode(), ci.getC(), Arrays.toString(ci.getActiveChannels()));
+			for(LUT lut : ci.getLuts())
+				update(md, lut);
+		}
+		else if(imp.getBitDepth() != 24) {
+			ImageProcessor ip = imp.getProcessor();
+			update(md, ip.getLut());
+			update(md, ip.getMin(), ip.getMax());
+		}
+	}
+
+	/**
+	 * Feeds the overlay and selection of <code>imp</code> into <code>md</code>.
+	 */
+	static void updateOverlay(MessageDigest md, ImagePlus imp) {
+		update(md, imp.getHideOverlay());
+		update(md, imp.getOverlay());
+		update(md, imp.getRoi());
+	}
+
+	static MessageDigest newDigest() {
+		try {
+			return MessageDigest.getInstance("SHA-256");
+		} catch(NoSuchAlgorithmException e) {
+			throw new RuntimeException("Cannot create SHA-256 digest", e);
+		}
+	}
+
+	static String toHex(byte[] hash) {
+		StringBuilder hex = new StringBuilder();
+		for(byte b : hash)
+			hex.append(String.format("%02x", b & 0xff));
+		return hex.toString();
+	}
+}
@@ -10,6 +10,7 @@ import ij.gui.Roi;
 import ij.plugin.ChannelSplitter;
 import ij.plugin.PlugIn;
 import ij.plugin.WindowOrganizer;
+import nlScript.ParseException;
 import nlScript.Parser;
 import nlScript.core.Autocompletion;
 import nlScript.ui.ACEditor;
@@ -20,8 +21,12 @@ import java.awt.Font;
 import java.awt.Rectangle;
 import java.io.File;
 import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
 import java.util.Arrays;
 import java.util.List;
+import java.util.function.Function;
 
 import static nlScript.figure.FigureInterface.ScalebarPosition.*;
 
@@ -77,6 +82,17 @@ public class ScriptedFigure implements PlugIn {
 
 	private FigureInterface figure;
 
+	/** Looks up the images referenced by title in the script */
+	private Function<String, ImagePlus> imageResolver = WindowManager::getImage;
+
+	private RenderCache renderCache = null;
+
+	private boolean liveRender = false;
+
+	private boolean displayReadySnapshots = false;
+
+	private boolean asyncCapture = false;
+
 	private enum FontName {
 		Helvetica,
 		Arial,
@@ -100,7 +116,7 @@ public class ScriptedFigure implements PlugIn {
 		}
 	}
 
-	public void run() {
+	private Parser createParser() {
 		final Parser parser = new Parser();
 
 		parser.defineType("title", "'{title:[^']:+}'",
@@ -319,6 +335,11 @@ public class ScriptedFigure implements PlugIn {
 			return null;
 		});
 
+		parser.defineSentence("{Set the image resolution} to {dpi:int} dpi.", e -> {
+			figure.setTargetDPI((int) e.evaluate("dpi"));
+			return null;
+		});
+
 		// Panel setup
 		// -----------
 		parser.defineSentence("{Set the panel} {label scheme} to {scheme:label-scheme}.", e -> {
@@ -390,6 +411,38 @@ public class ScriptedFigure implements PlugIn {
 			figure.setFitToPage(FigureInterface.PageFit.FIT_TO_WIDTH);
 			return null;
 		});
+		parser.defineSentence("{Layout panels} to make column {c:int} {w:float} mm wide.", e -> {
+			figure.setColumnWidthMM((int) e.evaluate("c") - 1, (double) e.evaluate("w"));
+			return null;
+		});
+		parser.defineSentence("{Layout panels} to make column {c:int} {w:float}% wide.", e -> {
+			figure.setColumnWidthPercent((int) e.evaluate("c") - 1, (double) e.evaluate("w"));
+			return null;
+		});
+		parser.defineSentence("{Layout panels} to make row {r:int} {h:float} mm high.", e -> {
+			figure.setRowHeightMM((int) e.evaluate("r") - 1, (double) e.evaluate("h"));
+			return null;
+		});
+		parser.defineSentence("{Layout panels} to make row {r:int} {h:float}% high.", e -> {
+			figure.setRowHeightPercent((int) e.evaluate("r") - 1, (double) e.evaluate("h"));
+			return null;
+		});
+		parser.defineSentence("Render timepoints {from:int}-{to:int} as time-lapse.", e -> {
+			figure.setTimeLapse((int) e.evaluate("from"), (int) e.evaluate("to"));
+			return null;
+		});
+		parser.defineSentence("Convert colors to CMYK using ICC profile {profile:title}.", e -> {
+			figure.setCmykProfile(new File((String) e.evaluate("profile")));
+			return null;
+		});
+		parser.defineSentence("Render pages in parallel.", e -> {
+			figure.setParallelPages(true);
+			return null;
+		});
+		parser.defineSentence("Capture images asynchronously.", e -> {
+			figure.setAsyncCapture(true);
+			return null;
+		});
 
 		parser.defineType("panel", "{panel:tuple<int,row,column>}", e -> {
 			Object[] o = (Object[]) e.evaluate("panel");
@@ -404,7 +457,7 @@ public class ScriptedFigure implements PlugIn {
 				(e, justCheck) -> Autocompletion.literal(e, Arrays.asList(WindowManager.getImageTitles()), "'", "'"));
 
 		parser.defineSentence("Add image {image:image} to panel {panel:panel} {mag:image-magnification}.", e -> {
-			ImagePlus image = WindowManager.getImage((String) e.evaluate("image"));
+			ImagePlus image = imageResolver.apply((String) e.evaluate("image"));
 			int[] panel = (int[]) e.evaluate("panel");
 			figure.addImage(
 					image,
@@ -415,9 +468,84 @@ public class ScriptedFigure implements PlugIn {
 		});
 		// Add image 'title' x to panel b [preserving magnification | resize to fit]
 
+		parser.defineSentence("Add multi-resolution image {file:title} to panel {panel:panel} {mag:image-magnification}.", e -> {
+			PanelSource source = openSource(new File((String) e.evaluate("file")));
+			int[] panel = (int[]) e.evaluate("panel");
+			figure.addImage(
+					source,
+					null,
+					panel[0] - 1,
+					panel[1] - 1,
+					(FigureInterface.ImageResize) e.evaluate("mag"));
+			return null;
+		});
+
+		parser.defineSentence("Add multi-resolution image {file:title} limited to {fov:field-of-view} to panel {panel:panel} {mag:image-magnification}.", e -> {
+			PanelSource source = openSource(new File((String) e.evaluate("file")));
+			int[] panel = (int[]) e.evaluate("panel");
+			figure.addImage(
+					source,
+					(Rectangle) e.evaluate("fov"),
+					panel[0] - 1,
+					panel[1] - 1,
+					(FigureInterface.ImageResize) e.evaluate("mag"));
+			return null;
+		});
+
+		parser.defineSentence("Add channels {channels:list<int>} at plane {z:int} and timepoint {t:int} of multi-resolution image {file:title} to panel {panel:panel} {mag:image-magnification}.", e -> {
+			PanelSource source = openSource(new File((String) e.evaluate("file")), (Object[]) e.evaluate("channels"), (int) e.evaluate("z"), (int) e.evaluate("t"));
+			int[] panel = (int[]) e.evaluate("panel");
+			figure.addImage(
+					source,
+					null,
+					panel[0] - 1,
+					panel[1] - 1,
+					(FigureInterface.ImageResize) e.evaluate("mag"));
+			return null;
+		});
+
+		parser.defineSentence("Add channels {channels:list<int>} at plane {z:int} and timepoint {t:int} of multi-resolution image {file:title} limited to {fov:field-of-view} to panel {panel:panel} {mag:image-magnification}.", e -> {
+			PanelSource source = openSource(new File((String) e.evaluate("file")), (Object[]) e.evaluate("channels"), (int) e.evaluate("z"), (int) e.evaluate("t"));
+			int[] panel = (int[]) e.evaluate("panel");
+			figure.addImage(
+					source,
+					(Rectangle) e.evaluate("fov"),
+					panel[0] - 1,
+					panel[1] - 1,
+					(FigureInterface.ImageResize) e.evaluate("mag"));
+			return null;
+		});
+
+		parser.defineType("stack-axis", "planes",     e -> FigureInterface.StackAxis.PLANES);
+		parser.defineType("stack-axis", "timepoints", e -> FigureInterface.StackAxis.TIMEPOINTS);
+
+		parser.defineSentence("Add {axis:stack-axis} {from:int}-{to:int} of image {image:image} to row {row:int} {mag:image-magnification}.", e -> {
+			ImagePlus image = imageResolver.apply((String) e.evaluate("image"));
+			figure.addImages(
+					image,
+					(FigureInterface.StackAxis) e.evaluate("axis"),
+					(int) e.evaluate("from"),
+					(int) e.evaluate("to"),
+					(int) e.evaluate("row") - 1,
+					0,
+					(FigureInterface.ImageResize) e.evaluate("mag"));
+			return null;
+		});
+
+		parser.defineSentence("Add all images in folder {folder:title} as contact sheet.", e -> {
+			figure.addContactSheet(new File((String) e.evaluate("folder")));
+			return null;
+		});
+
+		parser.defineSentence("Add all {axis:stack-axis} of image {image:image} as contact sheet.", e -> {
+			ImagePlus image = imageResolver.apply((String) e.evaluate("image"));
+			figure.addContactSheet(image, (FigureInterface.StackAxis) e.evaluate("axis"));
+			return null;
+		});
+
 		// Image manipulation
 		parser.defineSentence("Modify image {image:image} {to display channels} {channels:list<int>}.", e -> {
-			ImagePlus image = WindowManager.getImage((String) e.evaluate("image"));
+			ImagePlus image = imageResolver.apply((String) e.evaluate("image"));
 			List<Object> channels = Arrays.asList((Object[]) e.evaluate("channels"));
 			StringBuilder activeChannelsString = new StringBuilder();
 			for(int c = 0; c < image.getNChannels(); c++)
@@ -430,23 +558,26 @@ public class ScriptedFigure implements PlugIn {
 		});
 
 		parser.defineSentence("Modify image {image:image} {to display timepoint} {timepoint:int}.", e -> {
-			ImagePlus image = WindowManager.getImage((String) e.evaluate("image"));
+			ImagePlus image = imageResolver.apply((String) e.evaluate("image"));
 			int t = (int) e.evaluate("timepoint");
 			image.setT(t);
 			return null;
 		});
 
 		parser.defineSentence("Modify image {image:image} {to display plane} {plane:int}.", e -> {
-			ImagePlus image = WindowManager.getImage((String) e.evaluate("image"));
+			ImagePlus image = imageResolver.apply((String) e.evaluate("image"));
 			int z = (int) e.evaluate("plane");
 			image.setZ(z);
 			return null;
 		});
 
 		parser.defineSentence("Modify image {image:image} {to limit the field of view to} {fov:field-of-view}.", e -> {
-			ImagePlus image = WindowManager.getImage((String) e.evaluate("image"));
+			ImagePlus image = imageResolver.apply((String) e.evaluate("image"));
 			Rectangle fov = (Rectangle) e.evaluate("fov");
-			image.getCanvas().setSourceRect(fov);
+			if(image.getCanvas() != null)
+				image.getCanvas().setSourceRect(fov);
+			else
+				image.setProperty(Figure.FIELD_OF_VIEW_PROPERTY, fov);
 			return null;
 		});
 
@@ -459,7 +590,7 @@ public class ScriptedFigure implements PlugIn {
 		}, true);
 
 		parser.defineSentence("Modify image {image:image} to show a {r:rectangle}.", e -> {
-			ImagePlus image = WindowManager.getImage((String) e.evaluate("image"));
+			ImagePlus image = imageResolver.apply((String) e.evaluate("image"));
 			Rectangle r = (Rectangle) e.evaluate("r");
 			Overlay overlay = image.getOverlay();
 			if(overlay == null) {
@@ -471,26 +602,123 @@ public class ScriptedFigure implements PlugIn {
 		});
 
 		parser.defineSentence("Modify image {image:image} to hide the overlay.", e -> {
-			ImagePlus image = WindowManager.getImage((String) e.evaluate("image"));
+			ImagePlus image = imageResolver.apply((String) e.evaluate("image"));
 			image.setHideOverlay(false);
 			return null;
 		});
 
 		parser.defineSentence("Modify image {image:image} to show the overlay.", e -> {
-			ImagePlus image = WindowManager.getImage((String) e.evaluate("image"));
+			ImagePlus image = imageResolver.apply((String) e.evaluate("image"));
 			image.setHideOverlay(true);
 			return null;
 		});
 
 		parser.defineSentence("Modify image {image:image} to clear the overlay.", e -> {
-			ImagePlus image = WindowManager.getImage((String) e.evaluate("image"));
+			ImagePlus image = imageResolver.apply((String) e.evaluate("image"));
 			image.setOverlay(null);
 			return null;
 		});
 
+		return parser;
+	}
+
+	/**
+	 * Sets how images referenced by title are looked up; by default, among the open images.
+	 */
+	public void setImageResolver(Function<String, ImagePlus> imageResolver) {
+		this.imageResolver = imageResolver;
+	}
+
+	/**
+	 * Whether figures created by {@link #evaluate(String)} capture display-ready snapshots of
+	 * their images, see {@link FigureInterface#setDisplayReadySnapshots(boolean)}.
+	 */
+	public void setDisplayReadySnapshots(boolean b) {
+		this.displayReadySnapshots = b;
+	}
+
+	/**
+	 * Whether figures created by {@link #evaluate(String)} capture their images
+	 * asynchronously, see {@link FigureInterface#setAsyncCapture(boolean)}. Scripts can
+	 * also turn it on with "Capture images asynchronously."
+	 */
+	public void setAsyncCapture(boolean b) {
+		this.asyncCapture = b;
+	}
+
+	/**
+	 * Evaluates <code>script</code> into a new figure, without creating it yet.
+	 */
+	public FigureInterface evaluate(String script) {
+		Parser parser = createParser();
+		figure = new Figure();
+		figure.setDisplayReadySnapshots(displayReadySnapshots);
+		figure.setAsyncCapture(asyncCapture);
+		try {
+			parser.parse(script, null).evaluate();
+		} catch (ParseException e) {
+			throw new RuntimeException("Cannot parse figure script", e);
+		}
+		return figure;
+	}
+
+	/**
+	 * Evaluates <code>script</code> and writes the resulting PDF to <code>out</code>, without
+	 * going through a file. <code>out</code> is closed afterwards.
+	 */
+	public void render(String script, OutputStream out) {
+		try {
+			FigureInterface figure = evaluate(script);
+			if(renderCache != null && figure instanceof Figure)
+				renderCache.render(script, (Figure) figure, out);
+			else
+				figure.createFigure(out);
+		} finally {
+			// also if the script does not parse; closing twice is fine
+			try {
+				out.close();
+			} catch(IOException ignored) {
+			}
+		}
+	}
+
+	/**
+	 * Evaluates <code>script</code> and saves the resulting figure, together with the script,
+	 * as a self-contained bundle, which can be re-rendered with {@link Figure#loadBundle(File)}
+	 * without the original images.
+	 */
+	public void saveBundle(String script, File file) {
+		FigureInterface figure = evaluate(script);
+		if(!(figure instanceof Figure))
+			throw new RuntimeException("Cannot save " + figure.getClass().getSimpleName() + " as bundle");
+		((Figure) figure).saveBundle(file, script);
+	}
+
+	/**
+	 * Sets a cache for {@link #render(String, OutputStream)}, or <code>null</code> to always
+	 * render.
+	 */
+	public void setRenderCache(RenderCache renderCache) {
+		this.renderCache = renderCache;
+	}
 
+	public void render(String script, WritableByteChannel channel) {
+		render(script, Channels.newOutputStream(channel));
+	}
+
+	/**
+	 * Whether the editor opened by {@link #run()} re-renders the script automatically, on a
+	 * background thread, whenever typing pauses (see {@link LiveRender}).
+	 */
+	public void setLiveRender(boolean liveRender) {
+		this.liveRender = liveRender;
+	}
 
+	public void run() {
+		final Parser parser = createParser();
 		final ACEditor editor = new ACEditor(parser);
+		if(liveRender)
+			new LiveRender(imageResolver).install(editor.getTextArea());
 
 		editor.setBeforeRun(() -> {
 			figure = new Figure();
@@ -513,10 +741,35 @@ public class ScriptedFigure implements PlugIn {
 		editor.setVisible(true);
 	}
 
+	/**
+	 * Opens the editor; the argument "live" enables live rendering, see
+	 * {@link #setLiveRender(boolean)}.
+	 */
 	public void run(String arg) {
+		if("live".equals(arg))
+			setLiveRender(true);
 		run();
 	}
 
+	private static PanelSource openSource(File file) {
+		return ZarrSource.isZarr(file) ? ZarrSource.open(file) : PyramidSource.open(file);
+	}
+
+	private static PanelSource openSource(File file, Object[] channels, int z, int t) {
+		if(!ZarrSource.isZarr(file))
+			throw new RuntimeException("Cannot select channels, plane and timepoint of " + file + ", which is not a Zarr or N5 dataset");
+		ZarrSource source = ZarrSource.open(file);
+		int[] c = new int[channels.length];
+		for(int i = 0; i < c.length; i++) {
+			c[i] = (int) channels[i];
+			if(c[i] < 1 || c[i] > source.getNChannels())
+				throw new RuntimeException("Cannot read channel " + c[i] + " of " + file + ", which has " + source.getNChannels() + " channels");
+		}
+		if(z < 1 || z > source.getNSlices() || t < 1 || t > source.getNFrames())
+			throw new RuntimeException("Cannot read plane " + z + " at timepoint " + t + " of " + file);
+		return source.withChannels(c).withPosition(z, t);
+	}
+
 	public static void main(String[] args) {
 		/*
 			Set the title of the figure to 'The Clowns'.
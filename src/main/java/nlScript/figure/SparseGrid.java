@@ -0,0 +1,165 @@
+package nlScript.figure;
+
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * A sparse, unbounded 2D grid.
+ *
+ * Cells are stored in blocks of 64 x 64, which are only allocated once a cell within them is
+ * set. Growing the grid never copies cells, only the (small) tables of block references.
+ * Iteration visits occupied cells in row-major order and skips empty blocks entirely.
+ */
+final class SparseGrid<T> implements Iterable<SparseGrid.Cell<T>> {
+
+	private static final int SHIFT = 6;
+	private static final int BLOCK = 1 << SHIFT;
+	private static final int MASK = BLOCK - 1;
+
+	/** A single occupied cell */
+	static final class Cell<T> {
+		final int row;
+		final int column;
+		final T value;
+
+		private Cell(int row, int column, T value) {
+			this.row = row;
+			this.column = column;
+			this.value = value;
+		}
+	}
+
+	/** blocks[rowBlock][columnBlock][(row & MASK) * BLOCK + (column & MASK)] */
+	private Object[][][] blocks = new Object[0][][];
+
+	private int size = 0;
+
+	@SuppressWarnings("unchecked")
+	T get(int row, int column) {
+		int rb = row >>> SHIFT;
+		int cb = column >>> SHIFT;
+		if(rb >= blocks.length || blocks[rb] == null || cb >= blocks[rb].length)
+			return null;
+		Object[] block = blocks[rb][cb];
+		return block == null ? null : (T) block[index(row, column)];
+	}
+
+	/**
+	 * Sets the value of a cell, <code>null</code> to clear it, and returns the previous value.
+	 */
+	@SuppressWarnings("unchecked")
+	T set(int row, int column, T value) {
+		if(row < 0 || column < 0)
+			throw new IndexOutOfBoundsException("Cell (" + row + ", " + column + ")");
+		Object[] block = value == null ? findBlock(row, column) : getOrCreateBlock(row, column);
+		if(block == null)
+			return null;
+		int i = index(row, column);
+		T previous = (T) block[i];
+		block[i] = value;
+		if(previous == null && value != null)
+			size++;
+		else if(previous != null && value == null)
+			size--;
+		return previous;
+	}
+
+	/** Removes all cells and releases all blocks */
+	void clear() {
+		blocks = new Object[0][][];
+		size = 0;
+	}
+
+	/** The number of occupied cells */
+	int size() {
+		return size;
+	}
+
+	private static int index(int row, int column) {
+		return ((row & MASK) << SHIFT) | (column & MASK);
+	}
+
+	private Object[] findBlock(int row, int column) {
+		int rb = row >>> SHIFT;
+		int cb = column >>> SHIFT;
+		if(rb >= blocks.length || blocks[rb] == null || cb >= blocks[rb].length)
+			return null;
+		return blocks[rb][cb];
+	}
+
+	private Object[] getOrCreateBlock(int row, int column) {
+		int rb = row >>> SHIFT;
+		int cb = column >>> SHIFT;
+		if(rb >= blocks.length)
+			blocks = grow(blocks, rb);
+		Object[][] rowBlocks = blocks[rb];
+		if(rowBlocks == null)
+			rowBlocks = blocks[rb] = new Object[cb + 1][];
+		else if(cb >= rowBlocks.length)
+			rowBlocks = blocks[rb] = grow(rowBlocks, cb);
+		Object[] block = rowBlocks[cb];
+		if(block == null)
+			block = rowBlocks[cb] = new Object[BLOCK * BLOCK];
+		return block;
+	}
+
+	private static <A> A[] grow(A[] array, int minIndex) {
+		return Arrays.copyOf(array, Math.max(minIndex + 1, 2 * array.length));
+	}
+
+	@Override
+	public Iterator<Cell<T>> iterator() {
+		return new Iterator<Cell<T>>() {
+			private int row = 0;
+			private int column = -1;
+			private Cell<T> next = advance();
+
+			@SuppressWarnings("unchecked")
+			private Cell<T> advance() {
+				while(true) {
+					column++;
+					int rb = row >>> SHIFT;
+					if(rb >= blocks.length)
+						return null;
+					Object[][] rowBlocks = blocks[rb];
+					if(rowBlocks == null) {
+						// skip the whole block row
+						row = (rb + 1) << SHIFT;
+						column = -1;
+						continue;
+					}
+					int cb = column >>> SHIFT;
+					if(cb >= rowBlocks.length) {
+						row++;
+						column = -1;
+						continue;
+					}
+					Object[] block = rowBlocks[cb];
+					if(block == null) {
+						// skip to the first column of the next block
+						column = ((cb + 1) << SHIFT) - 1;
+						continue;
+					}
+					Object v = block[index(row, column)];
+					if(v != null)
+						return new Cell<>(row, column, (T) v);
+				}
+			}
+
+			@Override
+			public boolean hasNext() {
+				return next != null;
+			}
+
+			@Override
+			public Cell<T> next() {
+				if(next == null)
+					throw new NoSuchElementException();
+				Cell<T> ret = next;
+				next = advance();
+				return ret;
+			}
+		};
+	}
+}
@@ -6,6 +6,9 @@ import java.awt.Color;
 import java.awt.Font;
 import java.awt.geom.Rectangle2D;
 import java.io.File;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
 
 public interface VectorDocument {
 
@@ -41,6 +44,17 @@ public interface VectorDocument {
 
 	void startDocument(File file, double width, double height);
 
+	/**
+	 * Starts a document which is streamed to <code>out</code>, e.g. into an HTTP response or an
+	 * in-memory buffer. <code>out</code> is closed by {@link #endDocument()}, which returns
+	 * <code>null</code> in this case.
+	 */
+	void startDocument(OutputStream out, double width, double height);
+
+	default void startDocument(WritableByteChannel channel, double width, double height) {
+		startDocument(Channels.newOutputStream(channel), width, height);
+	}
+
 	File endDocument();
 
 	void setFillColor(Color color);
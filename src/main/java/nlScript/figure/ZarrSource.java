@@ -0,0 +1,1061 @@
+package nlScript.figure;
+
+import ij.CompositeImage;
+import ij.IJ;
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.measure.Calibration;
+import ij.process.ByteProcessor;
+import ij.process.FloatProcessor;
+import ij.process.ImageProcessor;
+import ij.process.LUT;
+import ij.process.ShortProcessor;
+
+import java.awt.Color;
+import java.awt.Rectangle;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * A panel source reading from a local, chunked Zarr (v2) or N5 directory. Both single arrays
+ * and multiscale groups (OME-Zarr datasets or N5 scale levels s0, s1, ...) are supported;
+ * for the latter, the coarsest level meeting the requested resolution is read.
+ *
+ * Only the chunks which intersect the field of view at the selected channels, plane and
+ * timepoint are read. They are decompressed in parallel and kept in a bounded LRU cache,
+ * which is shared by all sources.
+ *
+ * Supported compressors are raw, zlib and gzip, supported data types are 8, 16 and 32 bit
+ * integers and 32 and 64 bit floats. Axes are taken from the OME-Zarr metadata if present,
+ * and otherwise default to (t, c, z, y, x), with x varying fastest. Missing chunks are
+ * filled with the array's <code>fill_value</code>.
+ *
+ * 32 bit integers are read into 32 bit float images. If a plane holds values beyond the
+ * range of integers representable exactly as floats (&plusmn;2^24), the plane's minimum is
+ * subtracted from all of its pixels (and from the display range), so that no precision is
+ * lost as long as the values span less than 2^24.
+ */
+public class ZarrSource implements PanelSource {
+
+	private static final ChunkCache CACHE = new ChunkCache(256L * 1024 * 1024);
+
+	private static final ExecutorService EXECUTOR = Executors.newFixedThreadPool(
+			Runtime.getRuntime().availableProcessors(),
+			r -> {
+				Thread t = new Thread(r, "nlFigure-zarr");
+				t.setDaemon(true);
+				return t;
+			});
+
+	private final String title;
+
+	/** The resolution levels, sorted from finest to coarsest */
+	private final List<Level> levels;
+
+	/** The axes (one of 'x', 'y', 'z', 'c', 't') in storage order, slowest varying first */
+	private final char[] axes;
+
+	private final Color[] channelColors;
+	private final double[][] channelWindows;
+
+	private Calibration calibration;
+
+	/** The 1-based channels to read */
+	private final int[] channels;
+
+	/** The 1-based plane to read */
+	private final int z;
+
+	/** The 1-based timepoint to read */
+	private final int t;
+
+	private ZarrSource(String title, List<Level> levels, char[] axes, Color[] channelColors, double[][] channelWindows, Calibration calibration, int[] channels, int z, int t) {
+		this.title = title;
+		this.levels = levels;
+		this.axes = axes;
+		this.channelColors = channelColors;
+		this.channelWindows = channelWindows;
+		this.calibration = calibration;
+		this.channels = channels;
+		this.z = z;
+		this.t = t;
+	}
+
+	/**
+	 * Sets the maximum number of bytes of decompressed chunks kept in memory by all sources.
+	 */
+	public static void setCacheSize(long bytes) {
+		CACHE.setMaxBytes(bytes);
+	}
+
+	/**
+	 * Whether the given directory is a Zarr array or group, or an N5 dataset or group.
+	 */
+	public static boolean isZarr(File dir) {
+		return dir.isDirectory() && (
+				new File(dir, ".zarray").exists() ||
+				new File(dir, ".zattrs").exists() ||
+				new File(dir, ".zgroup").exists() ||
+				new File(dir, "attributes.json").exists());
+	}
+
+	public static ZarrSource open(File dir) {
+		try {
+			return read(dir);
+		} catch(IOException e) {
+			throw new RuntimeException("Cannot open " + dir, e);
+		} catch(ClassCastException e) {
+			throw new RuntimeException("Cannot open " + dir, new IOException("Unexpected metadata structure", e));
+		}
+	}
+
+	@SuppressWarnings("unchecked")
+	private static ZarrSource read(File dir) throws IOException {
+		List<Level> levels = new ArrayList<>();
+		Calibration cal = new Calibration();
+		List<Object> axesMeta = null;
+		List<Object> channelMeta = null;
+
+		File zattrs = new File(dir, ".zattrs");
+		if(new File(dir, ".zarray").exists()) {
+			levels.add(Level.zarr(dir));
+		}
+		else if(zattrs.exists()) {
+			Map<String, Object> attrs = (Map<String, Object>) Json.read(zattrs);
+			List<Object> multiscales = (List<Object>) attrs.get("multiscales");
+			if(multiscales == null || multiscales.isEmpty())
+				throw new IOException("No multiscales found in " + zattrs);
+			Map<String, Object> multiscale = (Map<String, Object>) multiscales.get(0);
+			axesMeta = (List<Object>) multiscale.get("axes");
+			List<Object> datasets = (List<Object>) multiscale.get("datasets");
+			for(Object o : datasets)
+				levels.add(Level.zarr(new File(dir, (String) ((Map<String, Object>) o).get("path"))));
+
+			double[] scale = getScale((Map<String, Object>) datasets.get(0));
+			if(scale != null && scale.length >= 2) {
+				cal.pixelWidth  = scale[scale.length - 1];
+				cal.pixelHeight = scale[scale.length - 2];
+			}
+			Map<String, Object> omero = (Map<String, Object>) attrs.get("omero");
+			if(omero != null)
+				channelMeta = (List<Object>) omero.get("channels");
+		}
+		else if(new File(dir, "attributes.json").exists() && new File(new File(dir, "s0"), "attributes.json").exists()) {
+			for(int s = 0; new File(new File(dir, "s" + s), "attributes.json").exists(); s++)
+				levels.add(Level.n5(new File(dir, "s" + s)));
+			readN5Resolution(new File(new File(dir, "s0"), "attributes.json"), cal);
+		}
+		else if(new File(dir, "attributes.json").exists()) {
+			levels.add(Level.n5(dir));
+			readN5Resolution(new File(dir, "attributes.json"), cal);
+		}
+		else {
+			throw new IOException("Neither a Zarr nor an N5 dataset: " + dir);
+		}
+
+		int nDims = levels.get(0).shape.length;
+		char[] axes = new char[nDims];
+		if(axesMeta != null && axesMeta.size() == nDims) {
+			for(int d = 0; d < nDims; d++) {
+				Object axis = axesMeta.get(d);
+				// OME-Zarr 0.3 lists axis names, later versions axis objects
+				Object name = axis instanceof Map ? ((Map<String, Object>) axis).get("name") : axis;
+				if(!(name instanceof String) || ((String) name).isEmpty())
+					throw new IOException("Invalid axis: " + axis);
+				axes[d] = ((String) name).charAt(0);
+				Object unit = axis instanceof Map ? ((Map<String, Object>) axis).get("unit") : null;
+				if(axes[d] == 'x' && unit instanceof String)
+					cal.setUnit("micrometer".equals(unit) ? "micron" : (String) unit);
+			}
+		}
+		else {
+			String defaultAxes = "tczyx";
+			if(nDims > defaultAxes.length())
+				throw new IOException("Unsupported number of dimensions: " + nDims);
+			axes = defaultAxes.substring(defaultAxes.length() - nDims).toCharArray();
+		}
+		if(axes[nDims - 1] != 'x' || indexOf(axes, 'y') < 0)
+			throw new IOException("The x axis must be stored fastest varying");
+
+		int nChannels = 1;
+		int ci = indexOf(axes, 'c');
+		if(ci >= 0)
+			nChannels = (int) levels.get(0).shape[ci];
+		Color[] colors = new Color[nChannels];
+		double[][] windows = new double[nChannels][];
+		for(int c = 0; c < nChannels; c++) {
+			colors[c] = nChannels == 1 ? Color.WHITE : DEFAULT_COLORS[c % DEFAULT_COLORS.length];
+			if(channelMeta == null || c >= channelMeta.size())
+				continue;
+			Map<String, Object> channel = (Map<String, Object>) channelMeta.get(c);
+			if(channel.get("color") instanceof String)
+				colors[c] = new Color(Integer.parseInt((String) channel.get("color"), 16));
+			Map<String, Object> window = (Map<String, Object>) channel.get("window");
+			if(window != null && window.get("start") instanceof Double && window.get("end") instanceof Double)
+				windows[c] = new double[] { (Double) window.get("start"), (Double) window.get("end") };
+		}
+
+		int[] channels = new int[nChannels];
+		for(int c = 0; c < nChannels; c++)
+			channels[c] = c + 1;
+
+		levels.sort((a, b) -> Long.compare(b.shape[nDims - 1], a.shape[nDims - 1]));
+		return new ZarrSource(dir.getName(), levels, axes, colors, windows, cal, channels, 1, 1);
+	}
+
+	private static final Color[] DEFAULT_COLORS = {
+			Color.RED, Color.GREEN, Color.BLUE, Color.GRAY, Color.CYAN, Color.MAGENTA, Color.YELLOW
+	};
+
+	@SuppressWarnings("unchecked")
+	private static double[] getScale(Map<String, Object> dataset) {
+		List<Object> transformations = (List<Object>) dataset.get("coordinateTransformations");
+		if(transformations == null)
+			return null;
+		for(Object o : transformations) {
+			Map<String, Object> transformation = (Map<String, Object>) o;
+			if("scale".equals(transformation.get("type")))
+				return Json.toDoubles(transformation.get("scale"));
+		}
+		return null;
+	}
+
+	@SuppressWarnings("unchecked")
+	private static void readN5Resolution(File attributes, Calibration cal) throws IOException {
+		Map<String, Object> attrs = (Map<String, Object>) Json.read(attributes);
+		Object resolution = attrs.containsKey("resolution") ? attrs.get("resolution") : attrs.get("pixelResolution");
+		if(resolution instanceof Map) {
+			Map<String, Object> r = (Map<String, Object>) resolution;
+			if(r.get("unit") instanceof String)
+				cal.setUnit((String) r.get("unit"));
+			resolution = r.get("dimensions");
+		}
+		double[] res = Json.toDoubles(resolution);
+		if(res != null && res.length >= 2) {
+			// N5 lists dimensions fastest varying first
+			cal.pixelWidth  = res[0];
+			cal.pixelHeight = res[1];
+		}
+	}
+
+	/**
+	 * Returns a view of this source which reads the given (1-based) channels.
+	 */
+	public ZarrSource withChannels(int... channels) {
+		return new ZarrSource(title, levels, axes, channelColors, channelWindows, calibration, channels.clone(), z, t);
+	}
+
+	/**
+	 * Returns a view of this source which reads the given (1-based) plane and timepoint.
+	 */
+	public ZarrSource withPosition(int z, int t) {
+		return new ZarrSource(title, levels, axes, channelColors, channelWindows, calibration, channels, z, t);
+	}
+
+	public void setCalibration(Calibration calibration) {
+		this.calibration = calibration;
+	}
+
+	public int getNChannels() {
+		return getSize('c');
+	}
+
+	public int getNSlices() {
+		return getSize('z');
+	}
+
+	public int getNFrames() {
+		return getSize('t');
+	}
+
+	private int getSize(char axis) {
+		int d = indexOf(axes, axis);
+		return d < 0 ? 1 : (int) levels.get(0).shape[d];
+	}
+
+	@Override
+	public String getTitle() {
+		return title;
+	}
+
+	@Override
+	public int getWidth() {
+		return (int) levels.get(0).shape[indexOf(axes, 'x')];
+	}
+
+	@Override
+	public int getHeight() {
+		return (int) levels.get(0).shape[indexOf(axes, 'y')];
+	}
+
+	@Override
+	public Calibration getCalibration() {
+		return calibration;
+	}
+
+	/**
+	 * Identifies the dataset by its metadata and the modification times of the level
+	 * directories, which change when chunks are added or removed (but not necessarily when
+	 * chunks are rewritten in place).
+	 */
+	@Override
+	public String getFingerprint() {
+		StringBuilder sb = new StringBuilder(title);
+		for(Level level : levels) {
+			sb.append('|').append(level.dir.getAbsolutePath())
+					.append(':').append(level.dir.lastModified())
+					.append(':').append(Arrays.toString(level.shape))
+					.append(':').append(Arrays.toString(level.chunks))
+					.append(':').append(level.type)
+					.append(':').append(level.compression)
+					.append(':').append(level.fillValue);
+		}
+		sb.append('|').append(Arrays.toString(channels))
+				.append('|').append(z).append('|').append(t)
+				.append('|').append(Arrays.toString(channelColors))
+				.append('|').append(Arrays.deepToString(channelWindows))
+				.append('|').append(calibration);
+		return sb.toString();
+	}
+
+	@Override
+	public ImagePlus read(Rectangle fov, int targetWidth) {
+		int xi = indexOf(axes, 'x');
+		int yi = indexOf(axes, 'y');
+
+		Level level = levels.get(0);
+		for(int l = levels.size() - 1; l > 0; l--) {
+			if(fov.width * (double) levels.get(l).shape[xi] / getWidth() >= targetWidth) {
+				level = levels.get(l);
+				break;
+			}
+		}
+
+		double sx = (double) level.shape[xi] / getWidth();
+		double sy = (double) level.shape[yi] / getHeight();
+		int x0 = (int) Math.floor(fov.x * sx);
+		int y0 = (int) Math.floor(fov.y * sy);
+		int x1 = (int) Math.ceil((fov.x + fov.width)  * sx);
+		int y1 = (int) Math.ceil((fov.y + fov.height) * sy);
+		Rectangle r = new Rectangle(x0, y0, x1 - x0, y1 - y0).intersection(
+				new Rectangle(0, 0, (int) level.shape[xi], (int) level.shape[yi]));
+
+		ImageStack stack = new ImageStack(r.width, r.height);
+		double[] offsets = new double[channels.length];
+		try {
+			for(int c = 0; c < channels.length; c++)
+				stack.addSlice(readPlane(level, r, channels[c] - 1, offsets, c));
+		} catch(IOException e) {
+			throw new RuntimeException("Cannot read " + r + " from " + title, e);
+		}
+
+		ImagePlus imp = new ImagePlus(title, stack);
+		Calibration cal = calibration.copy();
+		cal.pixelWidth  = calibration.pixelWidth  * fov.width  / r.width;
+		cal.pixelHeight = calibration.pixelHeight * fov.height / r.height;
+		imp.setCalibration(cal);
+
+		if(channels.length == 1) {
+			Color color = channelColors[channels[0] - 1];
+			if(!Color.WHITE.equals(color))
+				imp.getProcessor().setLut(LUT.createLutFromColor(color));
+			double[] window = channelWindows[channels[0] - 1];
+			if(window != null)
+				imp.setDisplayRange(window[0] - offsets[0], window[1] - offsets[0]);
+			return imp;
+		}
+
+		imp.setDimensions(channels.length, 1, 1);
+		CompositeImage ci = new CompositeImage(imp, IJ.COMPOSITE);
+		for(int c = 0; c < channels.length; c++) {
+			LUT lut = LUT.createLutFromColor(channelColors[channels[c] - 1]);
+			double[] window = channelWindows[channels[c] - 1];
+			ImageProcessor ip = stack.getProcessor(c + 1);
+			ip.resetMinAndMax();
+			lut.min = window != null ? window[0] - offsets[c] : ip.getMin();
+			lut.max = window != null ? window[1] - offsets[c] : ip.getMax();
+			ci.setChannelLut(lut, c + 1);
+		}
+		return ci;
+	}
+
+	/**
+	 * Reads the rectangle <code>r</code> of the given (0-based) channel at the current plane
+	 * and timepoint from <code>level</code>. The value subtracted from 32 bit integer pixels
+	 * (see the class documentation) is stored in <code>offsets[index]</code>.
+	 */
+	private ImageProcessor readPlane(Level level, Rectangle r, int channel, double[] offsets, int index) throws IOException {
+		int nDims = axes.length;
+		int xi = nDims - 1;
+		int yi = indexOf(axes, 'y');
+
+		long[] position = new long[nDims];
+		for(int d = 0; d < nDims; d++) {
+			switch(axes[d]) {
+				case 'c': position[d] = channel; break;
+				case 'z': position[d] = z - 1;   break;
+				case 't': position[d] = t - 1;   break;
+			}
+			position[d] = Math.max(0, Math.min(level.shape[d] - 1, position[d]));
+		}
+
+		int cx0 = r.x / level.chunks[xi], cx1 = (r.x + r.width  - 1) / level.chunks[xi];
+		int cy0 = r.y / level.chunks[yi], cy1 = (r.y + r.height - 1) / level.chunks[yi];
+
+		List<long[]> indices = new ArrayList<>();
+		List<Callable<Chunk>> tasks = new ArrayList<>();
+		for(int cy = cy0; cy <= cy1; cy++) {
+			for(int cx = cx0; cx <= cx1; cx++) {
+				long[] idx = new long[nDims];
+				for(int d = 0; d < nDims; d++)
+					idx[d] = position[d] / level.chunks[d];
+				idx[xi] = cx;
+				idx[yi] = cy;
+				indices.add(idx);
+				tasks.add(() -> loadChunk(level, idx));
+			}
+		}
+
+		List<Future<Chunk>> futures;
+		try {
+			futures = EXECUTOR.invokeAll(tasks);
+		} catch(InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted while reading chunks", e);
+		}
+
+		Object plane = level.type.allocate(r.width * r.height);
+		for(int i = 0; i < futures.size(); i++) {
+			Chunk chunk;
+			try {
+				chunk = futures.get(i).get();
+			} catch(InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new IOException("Interrupted while reading chunks", e);
+			} catch(ExecutionException e) {
+				throw new IOException("Cannot read chunk " + Arrays.toString(indices.get(i)), e.getCause());
+			}
+			long[] idx = indices.get(i);
+
+			// strides within the chunk, in C-order
+			int[] stride = new int[nDims];
+			stride[nDims - 1] = 1;
+			for(int d = nDims - 2; d >= 0; d--)
+				stride[d] = stride[d + 1] * chunk.dims[d + 1];
+			int base = 0;
+			for(int d = 0; d < nDims; d++) {
+				if(d != xi && d != yi)
+					base += (int) (position[d] - idx[d] * level.chunks[d]) * stride[d];
+			}
+
+			int chunkX = (int) idx[xi] * level.chunks[xi];
+			int chunkY = (int) idx[yi] * level.chunks[yi];
+			int xs = Math.max(r.x, chunkX), xe = Math.min(r.x + r.width,  chunkX + chunk.dims[xi]);
+			int ys = Math.max(r.y, chunkY), ye = Math.min(r.y + r.height, chunkY + chunk.dims[yi]);
+			for(int y = ys; y < ye; y++) {
+				int src = base + (y - chunkY) * stride[yi] + (xs - chunkX);
+				int dst = (y - r.y) * r.width + (xs - r.x);
+				System.arraycopy(chunk.data, src, plane, dst, xe - xs);
+			}
+		}
+
+		if(plane instanceof byte[])
+			return new ByteProcessor(r.width, r.height, (byte[]) plane);
+		if(plane instanceof short[])
+			return new ShortProcessor(r.width, r.height, (short[]) plane, null);
+		if(plane instanceof int[]) {
+			int[] ints = (int[]) plane;
+			boolean unsigned = level.type == DataType.UINT32;
+			long min = Long.MAX_VALUE, max = Long.MIN_VALUE;
+			for(int v : ints) {
+				long l = unsigned ? v & 0xffffffffL : v;
+				min = Math.min(min, l);
+				max = Math.max(max, l);
+			}
+			long offset = min >= -FLOAT_INT_LIMIT && max <= FLOAT_INT_LIMIT ? 0 : min;
+			float[] f = new float[ints.length];
+			for(int i = 0; i < ints.length; i++)
+				f[i] = (unsigned ? ints[i] & 0xffffffffL : ints[i]) - offset;
+			offsets[index] = offset;
+			return new FloatProcessor(r.width, r.height, f);
+		}
+		return new FloatProcessor(r.width, r.height, (float[]) plane);
+	}
+
+	/** The largest magnitude up to which all integers are exactly representable as floats */
+	private static final long FLOAT_INT_LIMIT = 1 << 24;
+
+	private static Chunk loadChunk(Level level, long[] idx) throws IOException {
+		String key = level.dir.getAbsolutePath() + Arrays.toString(idx);
+		return CACHE.get(key, () -> level.readChunk(idx));
+	}
+
+	private static int indexOf(char[] a, char c) {
+		for(int i = 0; i < a.length; i++)
+			if(a[i] == c)
+				return i;
+		return -1;
+	}
+
+	private enum DataType {
+		UINT8, INT8, UINT16, INT16, UINT32, INT32, FLOAT32, FLOAT64;
+
+		static DataType forZarr(String dtype) throws IOException {
+			char kind = dtype.charAt(1);
+			int size = Integer.parseInt(dtype.substring(2));
+			switch(kind + "" + size) {
+				case "u1": return UINT8;
+				case "i1": return INT8;
+				case "u2": return UINT16;
+				case "i2": return INT16;
+				case "u4": return UINT32;
+				case "i4": return INT32;
+				case "f4": return FLOAT32;
+				case "f8": return FLOAT64;
+				default: throw new IOException("Unsupported data type: " + dtype);
+			}
+		}
+
+		static DataType forN5(String dataType) throws IOException {
+			try {
+				return valueOf(dataType.toUpperCase());
+			} catch(IllegalArgumentException e) {
+				throw new IOException("Unsupported data type: " + dataType);
+			}
+		}
+
+		int bytesPerElement() {
+			switch(this) {
+				case UINT8: case INT8:   return 1;
+				case UINT16: case INT16: return 2;
+				default:                 return 4;
+			}
+		}
+
+		Object allocate(int n) {
+			switch(this) {
+				case UINT8: case INT8:   return new byte[n];
+				case UINT16: case INT16: return new short[n];
+				case UINT32: case INT32: return new int[n];
+				default:                 return new float[n];
+			}
+		}
+
+		/**
+		 * Returns an array of <code>n</code> elements, all set to <code>value</code>
+		 * (in the representation returned by {@link #decode(byte[], ByteOrder, int)}).
+		 */
+		Object fill(int n, double value) {
+			Object a = allocate(n);
+			if(value == 0 && this != INT8 && this != INT16)
+				return a;
+			switch(this) {
+				case UINT8:  Arrays.fill((byte[]) a,  (byte) (long) value);             break;
+				case INT8:   Arrays.fill((byte[]) a,  (byte) ((long) value + 128));     break;
+				case UINT16: Arrays.fill((short[]) a, (short) (long) value);            break;
+				case INT16:  Arrays.fill((short[]) a, (short) ((long) value + 32768));  break;
+				case UINT32:
+				case INT32:  Arrays.fill((int[]) a,   (int) (long) value);              break;
+				default:     Arrays.fill((float[]) a, (float) value);                   break;
+			}
+			return a;
+		}
+
+		/**
+		 * Converts the decompressed chunk into the pixel array type used by ImageJ.
+		 * Signed 8 and 16 bit integers are shifted into the unsigned range, as ImageJ does.
+		 * 32 bit integers are kept as raw ints, and converted to floats per plane.
+		 */
+		Object decode(byte[] raw, ByteOrder order, int n) {
+			ByteBuffer bb = ByteBuffer.wrap(raw).order(order);
+			switch(this) {
+				case UINT8:
+					return Arrays.copyOf(raw, n);
+				case INT8:
+					byte[] b = new byte[n];
+					for(int i = 0; i < n; i++)
+						b[i] = (byte) (raw[i] + 128);
+					return b;
+				case UINT16:
+				case INT16:
+					short[] s = new short[n];
+					bb.asShortBuffer().get(s);
+					if(this == INT16) {
+						for(int i = 0; i < n; i++)
+							s[i] = (short) (s[i] + 32768);
+					}
+					return s;
+				case UINT32:
+				case INT32:
+					int[] ints = new int[n];
+					bb.asIntBuffer().get(ints);
+					return ints;
+				default:
+					float[] f = new float[n];
+					for(int i = 0; i < n; i++)
+						f[i] = this == FLOAT32 ? bb.getFloat(4 * i) : (float) bb.getDouble(8 * i);
+					return f;
+			}
+		}
+	}
+
+	private static final class Chunk {
+		final Object data;
+
+		/** The dimensions of this chunk, in C-order */
+		final int[] dims;
+
+		final long bytes;
+
+		Chunk(Object data, int[] dims, long bytes) {
+			this.data = data;
+			this.dims = dims;
+			this.bytes = bytes;
+		}
+	}
+
+	/**
+	 * A single Zarr array or N5 dataset. Shape and chunk size are stored in C-order,
+	 * slowest varying dimension first.
+	 */
+	private static final class Level {
+		final File dir;
+		final long[] shape;
+		final int[] chunks;
+		final DataType type;
+		final ByteOrder order;
+		final String compression;
+		final boolean n5;
+		final String separator;
+
+		/** The value of pixels in missing chunks */
+		final double fillValue;
+
+		private Level(File dir, long[] shape, int[] chunks, DataType type, ByteOrder order, String compression, boolean n5, String separator, double fillValue) {
+			this.dir = dir;
+			this.shape = shape;
+			this.chunks = chunks;
+			this.type = type;
+			this.order = order;
+			this.compression = compression;
+			this.n5 = n5;
+			this.separator = separator;
+			this.fillValue = fillValue;
+		}
+
+		@SuppressWarnings("unchecked")
+		static Level zarr(File dir) throws IOException {
+			Map<String, Object> a = (Map<String, Object>) Json.read(new File(dir, ".zarray"));
+			if("F".equals(a.get("order")))
+				throw new IOException("Fortran order is not supported");
+			if(a.get("filters") != null)
+				throw new IOException("Filters are not supported");
+			String dtype = (String) a.get("dtype");
+			Map<String, Object> compressor = (Map<String, Object>) a.get("compressor");
+			String separator = (String) a.get("dimension_separator");
+			// numbers, or "NaN", "Infinity" and "-Infinity" for floats; null leaves it undefined
+			Object fill = a.get("fill_value");
+			double fillValue = 0;
+			if(fill instanceof Number)
+				fillValue = ((Number) fill).doubleValue();
+			else if(fill instanceof String) {
+				try {
+					fillValue = Double.parseDouble((String) fill);
+				} catch(NumberFormatException e) {
+					throw new IOException("Unsupported fill value: " + fill);
+				}
+			}
+			return new Level(dir,
+					Json.toLongs(a.get("shape")),
+					Json.toInts(a.get("chunks")),
+					DataType.forZarr(dtype),
+					dtype.charAt(0) == '>' ? ByteOrder.BIG_ENDIAN : ByteOrder.LITTLE_ENDIAN,
+					compressor == null ? "raw" : (String) compressor.get("id"),
+					false,
+					separator == null ? "." : separator,
+					fillValue);
+		}
+
+		@SuppressWarnings("unchecked")
+		static Level n5(File dir) throws IOException {
+			Map<String, Object> a = (Map<String, Object>) Json.read(new File(dir, "attributes.json"));
+			String compression = "raw";
+			Object c = a.get("compression");
+			if(c instanceof Map) {
+				Map<String, Object> cm = (Map<String, Object>) c;
+				compression = (String) cm.get("type");
+				if("gzip".equals(compression) && Boolean.TRUE.equals(cm.get("useZlib")))
+					compression = "zlib";
+			}
+			else if(a.get("compressionType") instanceof String) {
+				compression = (String) a.get("compressionType");
+			}
+			// N5 lists dimensions fastest varying first
+			return new Level(dir,
+					reverse(Json.toLongs(a.get("dimensions"))),
+					reverse(Json.toInts(a.get("blockSize"))),
+					DataType.forN5((String) a.get("dataType")),
+					ByteOrder.BIG_ENDIAN,
+					compression,
+					true,
+					"/",
+					0);
+		}
+
+		private File chunkFile(long[] idx) {
+			StringBuilder path = new StringBuilder();
+			if(n5) {
+				for(int d = idx.length - 1; d >= 0; d--)
+					path.append(idx[d]).append(d > 0 ? "/" : "");
+			}
+			else {
+				for(int d = 0; d < idx.length; d++)
+					path.append(idx[d]).append(d < idx.length - 1 ? separator : "");
+			}
+			return new File(dir, path.toString());
+		}
+
+		Chunk readChunk(long[] idx) throws IOException {
+			int[] dims = chunks.clone();
+			File file = chunkFile(idx);
+			if(!file.exists()) {
+				int n = product(dims);
+				return new Chunk(type.fill(n, fillValue), dims, (long) n * type.bytesPerElement());
+			}
+
+			byte[] bytes = Files.readAllBytes(file.toPath());
+			int offset = 0;
+			if(n5) {
+				ByteBuffer header = ByteBuffer.wrap(bytes);
+				int mode = header.getShort();
+				int nDims = header.getShort();
+				int[] blockSize = new int[nDims];
+				for(int d = 0; d < nDims; d++)
+					blockSize[d] = header.getInt();
+				if(mode == 1)
+					header.getInt();
+				else if(mode != 0)
+					throw new IOException("Unsupported N5 block mode: " + mode);
+				dims = reverse(blockSize);
+				offset = header.position();
+			}
+			byte[] raw = decompress(bytes, offset);
+			int n = product(dims);
+			return new Chunk(type.decode(raw, order, n), dims, (long) n * type.bytesPerElement());
+		}
+
+		private byte[] decompress(byte[] bytes, int offset) throws IOException {
+			InputStream in = new ByteArrayInputStream(bytes, offset, bytes.length - offset);
+			switch(compression) {
+				case "raw":  return offset == 0 ? bytes : Arrays.copyOfRange(bytes, offset, bytes.length);
+				case "zlib": in = new InflaterInputStream(in); break;
+				case "gzip": in = new GZIPInputStream(in); break;
+				default: throw new IOException("Unsupported compression: " + compression);
+			}
+			ByteArrayOutputStream out = new ByteArrayOutputStream();
+			byte[] buffer = new byte[65536];
+			try(InputStream is = in) {
+				int read;
+				while((read = is.read(buffer)) >= 0)
+					out.write(buffer, 0, read);
+			}
+			return out.toByteArray();
+		}
+
+		private static int product(int[] a) {
+			int p = 1;
+			for(int v : a)
+				p *= v;
+			return p;
+		}
+
+		private static long[] reverse(long[] a) {
+			long[] r = new long[a.length];
+			for(int i = 0; i < a.length; i++)
+				r[i] = a[a.length - 1 - i];
+			return r;
+		}
+
+		private static int[] reverse(int[] a) {
+			int[] r = new int[a.length];
+			for(int i = 0; i < a.length; i++)
+				r[i] = a[a.length - 1 - i];
+			return r;
+		}
+	}
+
+	/**
+	 * A bounded LRU cache of decompressed chunks.
+	 */
+	private interface ChunkReader {
+		Chunk read() throws IOException;
+	}
+
+	private static final class ChunkCache {
+		private final LinkedHashMap<String, Chunk> chunks = new LinkedHashMap<>(16, 0.75f, true);
+
+		/** Chunks which are currently read, so that concurrent requests wait instead of reading them again */
+		private final HashMap<String, CompletableFuture<Chunk>> loading = new HashMap<>();
+		private long maxBytes;
+		private long bytes = 0;
+
+		ChunkCache(long maxBytes) {
+			this.maxBytes = maxBytes;
+		}
+
+		synchronized void setMaxBytes(long maxBytes) {
+			this.maxBytes = maxBytes;
+			evict();
+		}
+
+		/**
+		 * Returns the cached chunk for <code>key</code>, reading it with <code>reader</code>
+		 * if it is neither cached nor currently read by another thread.
+		 */
+		Chunk get(String key, ChunkReader reader) throws IOException {
+			CompletableFuture<Chunk> future;
+			boolean read = false;
+			synchronized(this) {
+				Chunk chunk = chunks.get(key);
+				if(chunk != null)
+					return chunk;
+				future = loading.get(key);
+				if(future == null) {
+					future = new CompletableFuture<>();
+					loading.put(key, future);
+					read = true;
+				}
+			}
+
+			if(read) {
+				try {
+					Chunk chunk = reader.read();
+					synchronized(this) {
+						put(key, chunk);
+						loading.remove(key);
+					}
+					future.complete(chunk);
+					return chunk;
+				} catch(IOException | RuntimeException e) {
+					synchronized(this) {
+						loading.remove(key);
+					}
+					future.completeExceptionally(e);
+					throw e;
+				}
+			}
+
+			try {
+				return future.get();
+			} catch(InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new IOException("Interrupted while reading chunk " + key, e);
+			} catch(ExecutionException e) {
+				if(e.getCause() instanceof IOException)
+					throw (IOException) e.getCause();
+				throw new IOException("Cannot read chunk " + key, e.getCause());
+			}
+		}
+
+		synchronized void put(String key, Chunk chunk) {
+			Chunk old = chunks.put(key, chunk);
+			if(old != null)
+				bytes -= old.bytes;
+			bytes += chunk.bytes;
+			evict();
+		}
+
+		private void evict() {
+			Iterator<Chunk> it = chunks.values().iterator();
+			while(bytes > maxBytes && chunks.size() > 1 && it.hasNext()) {
+				bytes -= it.next().bytes;
+				it.remove();
+			}
+		}
+	}
+
+	/**
+	 * A minimal JSON parser, sufficient for Zarr and N5 metadata. Objects are returned as
+	 * Maps, arrays as Lists and numbers as Doubles.
+	 */
+	static final class Json {
+		private final String s;
+		private int i = 0;
+
+		private Json(String s) {
+			this.s = s;
+		}
+
+		static Object read(File file) throws IOException {
+			return parse(new String(Files.readAllBytes(file.toPath()), StandardCharsets.UTF_8));
+		}
+
+		static Object parse(String s) throws IOException {
+			try {
+				return new Json(s).value();
+			} catch(RuntimeException e) {
+				throw new IOException("Malformed JSON", e);
+			}
+		}
+
+		static double[] toDoubles(Object o) {
+			if(!(o instanceof List))
+				return null;
+			List<?> list = (List<?>) o;
+			double[] ret = new double[list.size()];
+			for(int i = 0; i < ret.length; i++)
+				ret[i] = ((Number) list.get(i)).doubleValue();
+			return ret;
+		}
+
+		static long[] toLongs(Object o) {
+			double[] d = toDoubles(o);
+			long[] ret = new long[d.length];
+			for(int i = 0; i < d.length; i++)
+				ret[i] = (long) d[i];
+			return ret;
+		}
+
+		static int[] toInts(Object o) {
+			double[] d = toDoubles(o);
+			int[] ret = new int[d.length];
+			for(int i = 0; i < d.length; i++)
+				ret[i] = (int) d[i];
+			return ret;
+		}
+
+		private void skipWhitespace() {
+			while(i < s.length() && Character.isWhitespace(s.charAt(i)))
+				i++;
+		}
+
+		private void expect(char c) {
+			skipWhitespace();
+			if(s.charAt(i) != c)
+				throw new IllegalStateException("Expected '" + c + "' at position " + i);
+			i++;
+		}
+
+		private Object value() {
+			skipWhitespace();
+			char c = s.charAt(i);
+			switch(c) {
+				case '{': return object();
+				case '[': return array();
+				case '"': return string();
+				case 't': return literal("true", Boolean.TRUE);
+				case 'f': return literal("false", Boolean.FALSE);
+				case 'n': return literal("null", null);
+				default:  return number();
+			}
+		}
+
+		private Object literal(String word, Object value) {
+			if(!s.startsWith(word, i))
+				throw new IllegalStateException("Expected '" + word + "' at position " + i);
+			i += word.length();
+			return value;
+		}
+
+		private Map<String, Object> object() {
+			Map<String, Object> map = new LinkedHashMap<>();
+			expect('{');
+			skipWhitespace();
+			if(s.charAt(i) == '}') {
+				i++;
+				return map;
+			}
+			while(true) {
+				skipWhitespace();
+				String key = string();
+				expect(':');
+				map.put(key, value());
+				skipWhitespace();
+				char c = s.charAt(i++);
+				if(c == '}')
+					return map;
+				if(c != ',')
+					throw new IllegalStateException("Expected ',' or '}' at position " + (i - 1));
+			}
+		}
+
+		private List<Object> array() {
+			List<Object> list = new ArrayList<>();
+			expect('[');
+			skipWhitespace();
+			if(s.charAt(i) == ']') {
+				i++;
+				return list;
+			}
+			while(true) {
+				list.add(value());
+				skipWhitespace();
+				char c = s.charAt(i++);
+				if(c == ']')
+					return list;
+				if(c != ',')
+					throw new IllegalStateException("Expected ',' or ']' at position " + (i - 1));
+			}
+		}
+
+		private String string() {
+			expect('"');
+			StringBuilder sb = new StringBuilder();
+			char c;
+			while((c = s.charAt(i++)) != '"') {
+				if(c != '\\') {
+					sb.append(c);
+					continue;
+				}
+				char e = s.charAt(i++);
+				switch(e) {
+					case 'n': sb.append('\n'); break;
+					case 't': sb.append('\t'); break;
+					case 'r': sb.append('\r'); break;
+					case 'b': sb.append('\b'); break;
+					case 'f': sb.append('\f'); break;
+					case 'u':
+						sb.append((char) Integer.parseInt(s.substring(i, i + 4), 16));
+						i += 4;
+						break;
+					default: sb.append(e);
+				}
+			}
+			return sb.toString();
+		}
+
+		private Object number() {
+			int start = i;
+			while(i < s.length() && "+-0123456789.eE".indexOf(s.charAt(i)) >= 0)
+				i++;
+			if(start == i) {
+				// e.g. NaN or Infinity, which some writers emit unquoted
+				while(i < s.length() && Character.isLetter(s.charAt(i)))
+					i++;
+			}
+			return Double.parseDouble(s.substring(start, i));
+		}
+	}
+}
@@ -0,0 +1,343 @@
+package nlScript.figure;
+
+import ij.process.ImageProcessor;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.awt.Rectangle;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.zip.Deflater;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+public class PyramidSourceTest {
+
+	private static final int IMAGE_WIDTH       = 256;
+	private static final int IMAGE_LENGTH      = 257;
+	private static final int BITS_PER_SAMPLE   = 258;
+	private static final int COMPRESSION       = 259;
+	private static final int PHOTOMETRIC       = 262;
+	private static final int STRIP_OFFSETS     = 273;
+	private static final int SAMPLES_PER_PIXEL = 277;
+	private static final int ROWS_PER_STRIP    = 278;
+	private static final int STRIP_BYTE_COUNTS = 279;
+	private static final int PREDICTOR         = 317;
+	private static final int TILE_WIDTH        = 322;
+	private static final int TILE_LENGTH       = 323;
+	private static final int TILE_OFFSETS      = 324;
+	private static final int TILE_BYTE_COUNTS  = 325;
+
+	private static final int W = 40;
+	private static final int H = 24;
+
+	@Rule
+	public TemporaryFolder tmp = new TemporaryFolder();
+
+	private static int pattern(int x, int y) {
+		return (x * 7 + y * 13) & 0xff;
+	}
+
+	@Test
+	public void testPackBitsDecode() {
+		// example from Apple Technical Note TN1023
+		byte[] in = bytes(0xfe, 0xaa, 0x02, 0x80, 0x00, 0x2a, 0xfd, 0xaa, 0x03, 0x80, 0x00, 0x2a, 0x22, 0xf7, 0xaa);
+		byte[] expected = bytes(
+				0xaa, 0xaa, 0xaa, 0x80, 0x00, 0x2a, 0xaa, 0xaa, 0xaa, 0xaa, 0x80, 0x00,
+				0x2a, 0x22, 0xaa, 0xaa, 0xaa, 0xaa, 0xaa, 0xaa, 0xaa, 0xaa, 0xaa, 0xaa);
+		assertArrayEquals(expected, PyramidSource.packBitsDecode(in, expected.length));
+	}
+
+	@Test
+	public void testLzwDecode() throws IOException {
+		// clear, 'A', 'B', 'C', end of information
+		assertArrayEquals("ABC".getBytes("US-ASCII"),
+				PyramidSource.lzwDecode(packCodes(256, 65, 66, 67, 257), 3));
+		// clear, 'A', "AA" (the code which is just being defined), 'A', end of information
+		assertArrayEquals("AAAA".getBytes("US-ASCII"),
+				PyramidSource.lzwDecode(packCodes(256, 65, 258, 65, 257), 4));
+	}
+
+	@Test
+	public void testInflate() throws IOException {
+		byte[] data = new byte[1000];
+		for(int i = 0; i < data.length; i++)
+			data[i] = (byte) pattern(i, i / 40);
+		assertArrayEquals(data, PyramidSource.inflate(deflate(data), data.length));
+	}
+
+	@Test
+	public void testTiledTiff() throws IOException {
+		int tile = 16;
+		int across = (W + tile - 1) / tile;
+		int down = (H + tile - 1) / tile;
+		ByteArrayOutputStream data = new ByteArrayOutputStream();
+		long[] offsets = new long[across * down];
+		long[] counts = new long[across * down];
+		for(int ty = 0; ty < down; ty++) {
+			for(int tx = 0; tx < across; tx++) {
+				offsets[ty * across + tx] = data.size();
+				counts[ty * across + tx] = tile * tile;
+				for(int y = ty * tile; y < (ty + 1) * tile; y++)
+					for(int x = tx * tile; x < (tx + 1) * tile; x++)
+						data.write(x < W && y < H ? pattern(x, y) : 0);
+			}
+		}
+		TreeMap<Integer, long[]> tags = baseTags();
+		tags.put(COMPRESSION, new long[] { 1 });
+		tags.put(TILE_WIDTH, new long[] { tile });
+		tags.put(TILE_LENGTH, new long[] { tile });
+		tags.put(TILE_OFFSETS, offsets);
+		tags.put(TILE_BYTE_COUNTS, counts);
+
+		File file = write("tiled.tif", false, tags, data.toByteArray());
+		assertPattern(file, new Rectangle(5, 7, 30, 15));
+		assertPattern(file, new Rectangle(0, 0, W, H));
+	}
+
+	@Test
+	public void testBigTiffDeflateStrips() throws IOException {
+		int rowsPerStrip = 5;
+		int nStrips = (H + rowsPerStrip - 1) / rowsPerStrip;
+		ByteArrayOutputStream data = new ByteArrayOutputStream();
+		long[] offsets = new long[nStrips];
+		long[] counts = new long[nStrips];
+		for(int s = 0; s < nStrips; s++) {
+			int rows = Math.min(rowsPerStrip, H - s * rowsPerStrip);
+			byte[] strip = new byte[W * rows];
+			for(int r = 0; r < rows; r++) {
+				int y = s * rowsPerStrip + r;
+				// horizontal differencing, predictor 2
+				for(int x = 0; x < W; x++)
+					strip[r * W + x] = (byte) (pattern(x, y) - (x == 0 ? 0 : pattern(x - 1, y)));
+			}
+			byte[] compressed = deflate(strip);
+			offsets[s] = data.size();
+			counts[s] = compressed.length;
+			data.write(compressed);
+		}
+		TreeMap<Integer, long[]> tags = baseTags();
+		tags.put(COMPRESSION, new long[] { 8 });
+		tags.put(PREDICTOR, new long[] { 2 });
+		tags.put(ROWS_PER_STRIP, new long[] { rowsPerStrip });
+		tags.put(STRIP_OFFSETS, offsets);
+		tags.put(STRIP_BYTE_COUNTS, counts);
+
+		File file = write("big.tif", true, tags, data.toByteArray());
+		assertPattern(file, new Rectangle(3, 4, 20, 13));
+		assertPattern(file, new Rectangle(0, 0, W, H));
+	}
+
+	/**
+	 * A two-level pyramid of a linear ramp, sampled at the pixel centers of each level, so
+	 * that bilinear resampling of the coarse level reproduces the ramp exactly.
+	 */
+	private File writePyramid() throws IOException {
+		ByteArrayOutputStream data = new ByteArrayOutputStream();
+		for(int y = 0; y < H; y++)
+			for(int x = 0; x < W; x++)
+				data.write(ramp(x + 0.5, y + 0.5));
+		for(int y = 0; y < H / 2; y++)
+			for(int x = 0; x < W / 2; x++)
+				data.write(ramp(2 * x + 1, 2 * y + 1));
+
+		TreeMap<Integer, long[]> full = baseTags();
+		full.put(COMPRESSION, new long[] { 1 });
+		full.put(ROWS_PER_STRIP, new long[] { H });
+		full.put(STRIP_OFFSETS, new long[] { 0 });
+		full.put(STRIP_BYTE_COUNTS, new long[] { W * H });
+
+		TreeMap<Integer, long[]> reduced = new TreeMap<>(full);
+		reduced.put(IMAGE_WIDTH, new long[] { W / 2 });
+		reduced.put(IMAGE_LENGTH, new long[] { H / 2 });
+		reduced.put(ROWS_PER_STRIP, new long[] { H / 2 });
+		reduced.put(STRIP_OFFSETS, new long[] { W * H });
+		reduced.put(STRIP_BYTE_COUNTS, new long[] { W * H / 4 });
+
+		return write("pyramid.tif", false, Arrays.asList(full, reduced), data.toByteArray());
+	}
+
+	/** The ramp at (continuous) position (x, y), in full resolution pixels */
+	private static int ramp(double x, double y) {
+		return (int) Math.round(4 * x + 2 * y);
+	}
+
+	@Test
+	public void testFovBetweenCoarsePixels() throws IOException {
+		PyramidSource source = PyramidSource.fromTiff(writePyramid());
+		assertEquals(2, source.getNLevels());
+
+		// starts and ends in the middle of pixels of the coarse level
+		Rectangle fov = new Rectangle(5, 7, 20, 10);
+		ImageProcessor ip = source.read(fov, 10).getProcessor();
+		assertEquals(10, ip.getWidth());
+		assertEquals(5, ip.getHeight());
+		for(int y = 0; y < 5; y++)
+			for(int x = 0; x < 10; x++)
+				assertEquals("pixel (" + x + ", " + y + ")", ramp(fov.x + 2 * x + 1, fov.y + 2 * y + 1), ip.get(x, y));
+	}
+
+	@Test
+	public void testFovAtImageEdge() throws IOException {
+		PyramidSource source = PyramidSource.fromTiff(writePyramid());
+		// extends beyond the bottom right corner, and is clipped to the image
+		ImageProcessor ip = source.read(new Rectangle(W - 7, H - 3, 20, 10), 20).getProcessor();
+		assertEquals(7, ip.getWidth());
+		assertEquals(3, ip.getHeight());
+		for(int y = 0; y < 3; y++)
+			for(int x = 0; x < 7; x++)
+				assertEquals("pixel (" + x + ", " + y + ")", ramp(W - 7 + x + 0.5, H - 3 + y + 0.5), ip.get(x, y));
+	}
+
+	@Test
+	public void testFovOutsideImage() throws IOException {
+		PyramidSource source = PyramidSource.fromTiff(writePyramid());
+		try {
+			source.read(new Rectangle(W + 5, 0, 10, 10), 10);
+			fail("Expected an IllegalArgumentException");
+		} catch(IllegalArgumentException expected) {
+		}
+	}
+
+	private static void assertPattern(File file, Rectangle fov) {
+		PyramidSource source = PyramidSource.fromTiff(file);
+		assertEquals(W, source.getWidth());
+		assertEquals(H, source.getHeight());
+		ImageProcessor ip = source.read(fov, fov.width).getProcessor();
+		assertEquals(fov.width, ip.getWidth());
+		assertEquals(fov.height, ip.getHeight());
+		for(int y = 0; y < fov.height; y++)
+			for(int x = 0; x < fov.width; x++)
+				assertEquals("pixel (" + x + ", " + y + ")", pattern(fov.x + x, fov.y + y), ip.get(x, y));
+	}
+
+	private static TreeMap<Integer, long[]> baseTags() {
+		TreeMap<Integer, long[]> tags = new TreeMap<>();
+		tags.put(IMAGE_WIDTH, new long[] { W });
+		tags.put(IMAGE_LENGTH, new long[] { H });
+		tags.put(BITS_PER_SAMPLE, new long[] { 8 });
+		tags.put(PHOTOMETRIC, new long[] { 1 });
+		tags.put(SAMPLES_PER_PIXEL, new long[] { 1 });
+		return tags;
+	}
+
+	private File write(String name, boolean big, TreeMap<Integer, long[]> tags, byte[] data) throws IOException {
+		return write(name, big, Collections.singletonList(tags), data);
+	}
+
+	/**
+	 * Writes a little-endian TIFF (or BigTIFF) file: the header, followed by <code>data</code>,
+	 * and for each IFD its entries and the values which do not fit into them. Strip and tile
+	 * offsets are given relative to <code>data</code>. All values are written as LONG (LONG8
+	 * for BigTIFF).
+	 */
+	private File write(String name, boolean big, List<TreeMap<Integer, long[]>> ifds, byte[] data) throws IOException {
+		int headerSize = big ? 16 : 8;
+		int valueSize = big ? 8 : 4;
+		int entrySize = big ? 20 : 12;
+		int countSize = big ? 8 : 2;
+
+		long[] ifdOffsets = new long[ifds.size()];
+		long size = headerSize + data.length;
+		for(int i = 0; i < ifds.size(); i++) {
+			ifdOffsets[i] = size;
+			size += countSize + (long) ifds.get(i).size() * entrySize + valueSize;
+			for(long[] v : ifds.get(i).values())
+				if(v.length > 1)
+					size += v.length * valueSize;
+		}
+
+		ByteBuffer bb = ByteBuffer.allocate((int) size).order(ByteOrder.LITTLE_ENDIAN);
+		bb.put((byte) 'I').put((byte) 'I');
+		if(big)
+			bb.putShort((short) 43).putShort((short) 8).putShort((short) 0).putLong(ifdOffsets[0]);
+		else
+			bb.putShort((short) 42).putInt((int) ifdOffsets[0]);
+		bb.put(data);
+
+		for(int i = 0; i < ifds.size(); i++) {
+			TreeMap<Integer, long[]> tags = ifds.get(i);
+			if(big)
+				bb.putLong(tags.size());
+			else
+				bb.putShort((short) tags.size());
+			List<long[]> extra = new ArrayList<>();
+			long pos = ifdOffsets[i] + countSize + (long) tags.size() * entrySize + valueSize;
+			for(Map.Entry<Integer, long[]> e : tags.entrySet()) {
+				long[] v = e.getValue().clone();
+				if(e.getKey() == STRIP_OFFSETS || e.getKey() == TILE_OFFSETS)
+					for(int k = 0; k < v.length; k++)
+						v[k] += headerSize;
+				bb.putShort((short) (int) e.getKey()).putShort((short) (big ? 16 : 4));
+				putValue(bb, big, v.length);
+				if(v.length == 1) {
+					putValue(bb, big, v[0]);
+				}
+				else {
+					putValue(bb, big, pos);
+					pos += v.length * valueSize;
+					extra.add(v);
+				}
+			}
+			putValue(bb, big, i + 1 < ifds.size() ? ifdOffsets[i + 1] : 0);
+			for(long[] v : extra)
+				for(long l : v)
+					putValue(bb, big, l);
+		}
+
+		File file = tmp.newFile(name);
+		Files.write(file.toPath(), bb.array());
+		return file;
+	}
+
+	private static void putValue(ByteBuffer bb, boolean big, long v) {
+		if(big)
+			bb.putLong(v);
+		else
+			bb.putInt((int) v);
+	}
+
+	/** Packs 9-bit codes MSB-first, as TIFF LZW does for the first 510 codes */
+	private static byte[] packCodes(int... codes) {
+		byte[] out = new byte[(codes.length * 9 + 7) / 8];
+		int bitPos = 0;
+		for(int code : codes) {
+			for(int i = 8; i >= 0; i--, bitPos++)
+				if(((code >> i) & 1) != 0)
+					out[bitPos >> 3] |= (byte) (0x80 >> (bitPos & 7));
+		}
+		return out;
+	}
+
+	private static byte[] deflate(byte[] data) {
+		Deflater deflater = new Deflater();
+		deflater.setInput(data);
+		deflater.finish();
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		byte[] buffer = new byte[1024];
+		while(!deflater.finished())
+			out.write(buffer, 0, deflater.deflate(buffer));
+		deflater.end();
+		return out.toByteArray();
+	}
+
+	private static byte[] bytes(int... values) {
+		byte[] b = new byte[values.length];
+		for(int i = 0; i < values.length; i++)
+			b[i] = (byte) values[i];
+		return b;
+	}
+}
@@ -0,0 +1,31 @@
+package nlScript.figure;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class ScriptedFigureTest {
+
+	@Test
+	public void testAsyncCaptureOffByDefault() {
+		FigureInterface figure = new ScriptedFigure().evaluate("Render pages in parallel.");
+		assertFalse(figure.isAsyncCapture());
+	}
+
+	@Test
+	public void testAsyncCaptureSentence() {
+		FigureInterface figure = new ScriptedFigure().evaluate("Capture images asynchronously.");
+		assertTrue(figure.isAsyncCapture());
+	}
+
+	@Test
+	public void testAsyncCaptureSetting() {
+		ScriptedFigure scriptedFigure = new ScriptedFigure();
+		scriptedFigure.setAsyncCapture(true);
+		assertTrue(scriptedFigure.evaluate("Render pages in parallel.").isAsyncCapture());
+
+		scriptedFigure.setAsyncCapture(false);
+		assertFalse(scriptedFigure.evaluate("Render pages in parallel.").isAsyncCapture());
+	}
+}